@@ -33,12 +33,13 @@
  */
 package interactive;
 
-import interactive.remote.catmaid.CATMAIDRandomAccessibleInterval;
+import interactive.remote.catmaid.MultiscaleCATMAIDRandomAccessibleInterval;
 import io.scif.img.ImgIOException;
 import net.imglib2.RandomAccessible;
-import net.imglib2.converter.TypeIdentity;
+import net.imglib2.converter.Converter;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.volatiles.VolatileARGBType;
 import net.imglib2.ui.overlay.LogoPainter;
 import net.imglib2.ui.viewer.InteractiveViewer3D;
 import net.imglib2.view.Views;
@@ -56,17 +57,24 @@ public class InteractiveCATMAIDRotationExample
 //					0,
 //					256,
 //					256 );
-		final CATMAIDRandomAccessibleInterval map =
-				new CATMAIDRandomAccessibleInterval(
+		/* tiles are loaded in the background from the scale level that
+		 * matches the zoom, missing tiles are painted from coarser levels
+		 * and refined as they arrive */
+		final MultiscaleCATMAIDRandomAccessibleInterval map =
+				new MultiscaleCATMAIDRandomAccessibleInterval(
 						"http://catmaid.mpi-cbg.de/map/c-elegans/",
 						6016,
 						4464,
 						803,
-						0,
+						5,
 						256,
 						256 );
 //		final CATMAIDRandomAccessibleInterval map = new CATMAIDRandomAccessibleInterval( 6016, 4464, 803, "http://localhost/catmaid/" );
 
+		/* keep decoded tiles on disk across sessions, works for file: URLs as well */
+//		map.setDiskCache( new File( System.getProperty( "java.io.tmpdir" ), "catmaid-cache" ), 1L << 30 );
+//		map.setColdCache( 1L << 29 );
+
 		final int w = 400, h = 300;
 
 		final double yScale = 1.0, zScale = 12.0;
@@ -77,9 +85,18 @@ public class InteractiveCATMAIDRotationExample
 			0.0, yScale, 0.0, ( h - map.dimension( 1 ) * yScale ) / 2.0,
 			0.0, 0.0, zScale, -( map.dimension( 2 ) / 2.0 - 0.5 ) * zScale );
 
-		final RandomAccessible< ARGBType > extended = Views.extendValue( map, new ARGBType( 0xff006600 ) );
-		final InteractiveViewer3D< ARGBType > viewer = new InteractiveViewer3D< ARGBType >( w, h, extended, map, initial, new TypeIdentity< ARGBType >() );
+		final RandomAccessible< VolatileARGBType > extended = Views.extendValue( map, new VolatileARGBType( 0xff006600 ) );
+		final Converter< VolatileARGBType, ARGBType > converter = ( a, b ) -> b.set( a.get() );
+		final InteractiveViewer3D< VolatileARGBType > viewer = new InteractiveViewer3D< VolatileARGBType >( w, h, extended, map, initial, converter );
 		viewer.getDisplayCanvas().addOverlayRenderer( new LogoPainter() );
+		map.setTransform( initial, w, h );
+		viewer.getDisplayCanvas().addTransformListener(
+				t -> {
+					/* tiles requested for the previous view that are still queued are dropped */
+					map.nextGeneration();
+					map.setTransform( t, viewer.getDisplayCanvas().getWidth(), viewer.getDisplayCanvas().getHeight() );
+				} );
+		map.setLoadListener( viewer::requestRepaint );
 		viewer.requestRepaint();
 	}
 
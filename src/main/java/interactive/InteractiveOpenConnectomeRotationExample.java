@@ -42,6 +42,7 @@ public class InteractiveOpenConnectomeRotationExample
 //		final VolatileOpenConnectomeRandomAccessibleInterval map = new VolatileOpenConnectomeRandomAccessibleInterval( "http://openconnecto.me/emca/bock11", 135424, 119808, 1239, 128, 128, 16, 2917, 0 );
 		final VolatileOpenConnectomeRandomAccessibleInterval map = new VolatileOpenConnectomeRandomAccessibleInterval( "http://openconnecto.me/emca/bock11", 135424, 119808, 1239, 256, 256, 32, 2917, 0 );
 		//final VolatileOpenConnectomeRandomAccessibleInterval map = new VolatileOpenConnectomeRandomAccessibleInterval( "http://openconnecto.me/emca/kasthuri11", 21504, 26624, 1850, 50, 50, 5, 1, 0 );
+		//map.setOffHeap( 1L << 30 );
 
 		final int w = 720, h = 405;
 
@@ -49,55 +49,483 @@
  */
 package interactive.remote;
 
-import java.lang.ref.Reference;
-import java.util.HashMap;
+import interactive.remote.cache.Cache;
+import interactive.remote.cache.ClockCache;
+import interactive.remote.cache.DiskCache;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
 
 import net.imglib2.AbstractInterval;
+import net.imglib2.Cursor;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellImg;
+import net.imglib2.type.Type;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
 
 /**
  * Read pixels served by a remote service.
  * 
+ * Loaded tiles are stored in a {@link Cache} with an explicit memory budget.
+ * By default, that is a {@link ClockCache} using a quarter of the maximum
+ * heap size.  Tiles are identified by a linear index into the tile grid,
+ * so that lookups need neither key objects nor boxing.  Optionally, a {@link DiskCache} keeps tiles across sessions,
+ * it is consulted before downloading a tile that is not in memory.
+ * Optionally, a cold tier {@link #setColdCache(Cache)} keeps tiles in
+ * compressed form in memory, such that tiles evicted from the cache of
+ * decoded tiles are decoded again instead of downloaded.
+ * {@link #getMetrics()} counts hits, misses and loads and measures download
+ * and decode times.
+ * 
  * @author Stephan Saalfeld
  */
-abstract public class AbstractRemoteRandomAccessibleInterval< T, K, E > extends AbstractInterval implements RandomAccessibleInterval< T >
+abstract public class AbstractRemoteRandomAccessibleInterval< T, E extends AbstractRemoteRandomAccessibleInterval< T, E >.Entry > extends AbstractInterval implements RandomAccessibleInterval< T >
 {
-	public AbstractRemoteRandomAccessibleInterval( final Interval interval)
+	final static public long defaultCacheBytes = Runtime.getRuntime().maxMemory() / 4;
+	
+	final static public int defaultPrefetchDistance = 2;
+	
+	final static public int maxReadAhead = 256;
+	
+	public AbstractRemoteRandomAccessibleInterval( final Interval interval, final Cache< E > cache )
 	{
 		super( interval );
+		this.cache = cache;
+	}
+	
+	public AbstractRemoteRandomAccessibleInterval( final Interval interval )
+	{
+		this( interval, new ClockCache< E >( defaultCacheBytes ) );
 	}
 
-	public AbstractRemoteRandomAccessibleInterval( final long[] min, final long[] max )
+	public AbstractRemoteRandomAccessibleInterval( final long[] min, final long[] max, final Cache< E > cache )
 	{
 		super( min, max );
+		this.cache = cache;
+	}
+
+	public AbstractRemoteRandomAccessibleInterval( final long[] min, final long[] max )
+	{
+		this( min, max, new ClockCache< E >( defaultCacheBytes ) );
 	}
 	
-	public AbstractRemoteRandomAccessibleInterval( final long[] dimensions )
+	public AbstractRemoteRandomAccessibleInterval( final long[] dimensions, final Cache< E > cache )
 	{
 		super( dimensions );
+		this.cache = cache;
+	}
+	
+	public AbstractRemoteRandomAccessibleInterval( final long[] dimensions )
+	{
+		this( dimensions, new ClockCache< E >( defaultCacheBytes ) );
+	}
+	
+	public AbstractRemoteRandomAccessibleInterval( final int n, final Cache< E > cache )
+	{
+		super( n );
+		this.cache = cache;
+	}
+	
+	public AbstractRemoteRandomAccessibleInterval( final int n )
+	{
+		this( n, new ClockCache< E >( defaultCacheBytes ) );
 	}
 
-	public class Entry
+	abstract public class Entry
 	{
-		final public K key;
+		final public long key;
 		
-		public Entry( final K key )
+		public Entry( final long key )
 		{
 			this.key = key;
 		}
 		
-		@Override
-		public void finalize()
+		/**
+		 * @return the number of bytes this entry occupies in the cache
+		 */
+		abstract public long bytes();
+		
+		/**
+		 * @return false for placeholders of entries that are still loading
+		 */
+		public boolean isValid()
+		{
+			return true;
+		}
+	}
+	
+	final protected Cache< E > cache;
+	
+	/**
+	 * Tiles that are currently being loaded.  Concurrent requests for the
+	 * same tile join the one pending load instead of blocking all others.
+	 */
+	final protected ConcurrentHashMap< Long, FutureTask< E > > loading = new ConcurrentHashMap< Long, FutureTask< E > >();
+	
+	protected volatile DiskCache diskCache = null;
+	
+	/* compressed tiles, consulted before the disk cache */
+	protected volatile Cache< byte[] > coldCache = null;
+	
+	/**
+	 * How many tiles ahead of a moving {@link net.imglib2.RandomAccess} are
+	 * loaded in the background, 0 disables prefetching.
+	 */
+	protected volatile int prefetchDistance = defaultPrefetchDistance;
+	
+	/* started on the first prefetch */
+	private volatile FetcherPool< Long, Long > prefetchers = null;
+	
+	/* null if background loads run in the worker threads */
+	private Semaphore loadPermits = null;
+	
+	final protected RemoteMetrics metrics = new RemoteMetrics( this );
+	
+	public Cache< E > getCache()
+	{
+		return cache;
+	}
+	
+	public RemoteMetrics getMetrics()
+	{
+		return metrics;
+	}
+	
+	/**
+	 * @return the number of tiles that are queued for loading in the
+	 * 		background
+	 */
+	public int queueSize()
+	{
+		final FetcherPool< Long, Long > pool = prefetchers;
+		return pool == null ? 0 : pool.queueSize();
+	}
+	
+	public DiskCache getDiskCache()
+	{
+		return diskCache;
+	}
+	
+	/**
+	 * Set the persistent cache for decoded tiles, null disables it.
+	 */
+	public void setDiskCache( final DiskCache diskCache )
+	{
+		this.diskCache = diskCache;
+	}
+	
+	public Cache< byte[] > getColdCache()
+	{
+		return coldCache;
+	}
+	
+	/**
+	 * Set the cold tier for compressed tiles, null disables it.  Every
+	 * loaded tile is stored there, such that the cache of decoded tiles
+	 * can be kept small.
+	 */
+	public void setColdCache( final Cache< byte[] > coldCache )
+	{
+		this.coldCache = coldCache;
+	}
+	
+	/**
+	 * Keep compressed tiles in a {@link ClockCache} of maxBytes.
+	 */
+	public void setColdCache( final long maxBytes )
+	{
+		setColdCache( new ClockCache< byte[] >( maxBytes ) );
+	}
+	
+	public int getPrefetchDistance()
+	{
+		return prefetchDistance;
+	}
+	
+	public void setPrefetchDistance( final int prefetchDistance )
+	{
+		this.prefetchDistance = prefetchDistance;
+	}
+	
+	/**
+	 * Load an entry from the {@link DiskCache} or the remote service.
+	 * Called at most once at a time per key.
+	 * 
+	 * @throws UncheckedIOException if the entry could not be loaded, it is
+	 * 		not cached then and loaded again on the next request
+	 */
+	abstract protected E loadEntry( final long key ) throws InterruptedException;
+	
+	/**
+	 * @return the exception that {@link #loadEntry(long)} throws when key
+	 * 		could not be loaded
+	 */
+	protected UncheckedIOException loadFailed( final long key )
+	{
+		return new UncheckedIOException( new IOException( getClass().getSimpleName() + " failed loading " + key ) );
+	}
+	
+	protected FetcherPool< Long, Long > getPrefetchers()
+	{
+		FetcherPool< Long, Long > pool = prefetchers;
+		if ( pool == null )
 		{
-			synchronized ( cache )
+			synchronized ( this )
 			{
-//				System.out.println( "finalizing..." );
-				cache.remove( key );
-//				System.out.println( cache.size() + " tiles chached." );
+				pool = prefetchers;
+				if ( pool == null )
+				{
+					pool = new FetcherPool< Long, Long >( this::loadAhead, key -> {}, FetcherPool.defaultNumFetchers, getClass().getSimpleName() + " Prefetcher" );
+					pool.setThreadPerRequest( loadPermits );
+					prefetchers = pool;
+				}
 			}
 		}
+		return pool;
+	}
+	
+	/**
+	 * Run every background load in a thread of its own, limited by permits,
+	 * null runs them in the worker threads.
+	 * 
+	 * @see FetcherPool#setThreadPerRequest(Semaphore)
+	 */
+	synchronized public void setThreadPerRequest( final Semaphore permits )
+	{
+		loadPermits = permits;
+		final FetcherPool< Long, Long > pool = prefetchers;
+		if ( pool != null )
+			pool.setThreadPerRequest( permits );
+	}
+	
+	/**
+	 * Load key in the background unless it is cached or being loaded.
+	 * 
+	 * @param priority smaller values are loaded first, typically the
+	 * 		distance in tiles from the {@link net.imglib2.RandomAccess} that
+	 * 		triggered the prefetch
+	 */
+	protected void prefetch( final long key, final double priority )
+	{
+		if ( cache.get( key ) == null && !loading.containsKey( key ) )
+			getPrefetchers().request( key, key, priority );
+	}
+	
+	/**
+	 * @return how many entries of bytesPerEntry bytes a bulk read should
+	 * 		request ahead of the entry it is copying, at most half of the
+	 * 		cache such that they are not evicted before they are copied
+	 */
+	protected int readAhead( final long bytesPerEntry )
+	{
+		return ( int )Math.max( 1, Math.min( maxReadAhead, cache.maxBytes() / 2 / bytesPerEntry ) );
+	}
+	
+	/**
+	 * @return the primitive array type, e.g. int[].class, that
+	 * 		{@link #read(long[], int[], Object)} copies into, or null if
+	 * 		there is no bulk read
+	 */
+	protected Class< ? > storageClass()
+	{
+		return null;
+	}
+	
+	/**
+	 * Copy the box of size[0] &times; size[1] &times; size[2] pixels at min
+	 * into storage, x fastest.  storage is an array of
+	 * {@link #storageClass()}.
+	 * 
+	 * @throws UncheckedIOException if an entry could not be loaded
+	 */
+	protected void read( final long[] min, final int[] size, final Object storage )
+	{
+		throw new UnsupportedOperationException( getClass().getSimpleName() + " has no bulk read" );
 	}
 	
-	final protected HashMap< K, Reference< E > > cache = new HashMap< K, Reference< E > >();
+	/**
+	 * @return the primitive array of access if it is an array of
+	 * 		{@link #storageClass()}, null otherwise
+	 */
+	protected Object storage( final Object access )
+	{
+		final Class< ? > storageClass = storageClass();
+		if ( storageClass != null && access instanceof ArrayDataAccess )
+		{
+			final Object storage = ( ( ArrayDataAccess< ? > )access ).getCurrentStorageArray();
+			if ( storageClass.isInstance( storage ) )
+				return storage;
+		}
+		return null;
+	}
+	
+	/**
+	 * Copy interval into target, which has the dimensions of interval.
+	 * {@link ArrayImg ArrayImgs} and {@link CellImg CellImgs} backed by
+	 * arrays of {@link #storageClass()} are filled by copying whole rows of
+	 * entries, everything else pixel by pixel, which requires T to be a
+	 * {@link Type}.
+	 * 
+	 * @throws UncheckedIOException if an entry could not be loaded
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	public void read( final Interval interval, final RandomAccessibleInterval< T > target )
+	{
+		if ( !Intervals.equalDimensions( interval, target ) )
+			throw new IllegalArgumentException( "target dimensions do not match interval" );
+		if ( target instanceof ArrayImg && storage( ( ( ArrayImg< ?, ? > )target ).update( null ) ) != null )
+			readArrayImg( interval, ( ArrayImg< ?, ? > )target );
+		else if ( target instanceof CellImg && storage( ( ( CellImg< ?, ? > )target ).getCells().firstElement().getData() ) != null )
+			readCellImg( interval, ( CellImg< ?, ? > )target );
+		else
+		{
+			final Cursor< Type > s = ( Cursor< Type > )Views.flatIterable( Views.interval( this, interval ) ).cursor();
+			final Cursor< Type > t = ( Cursor< Type > )Views.flatIterable( target ).cursor();
+			while ( t.hasNext() )
+				t.next().set( s.next() );
+		}
+	}
+	
+	protected void readArrayImg( final Interval interval, final ArrayImg< ?, ? > target )
+	{
+		final long[] min = Intervals.minAsLongArray( interval );
+		final int[] size = new int[]{ 1, 1, 1 };
+		for ( int d = 0; d < target.numDimensions(); ++d )
+			size[ d ] = ( int )target.dimension( d );
+		read( min, size, storage( target.update( null ) ) );
+	}
+	
+	protected void readCellImg( final Interval interval, final CellImg< ?, ? > target )
+	{
+		final int n = target.numDimensions();
+		final long[] cellMin = new long[ n ];
+		final int[] cellSize = new int[ n ];
+		for ( final Cell< ? > cell : target.getCells() )
+		{
+			cell.min( cellMin );
+			cell.dimensions( cellSize );
+			final long[] min = new long[ 3 ];
+			final int[] size = new int[]{ 1, 1, 1 };
+			for ( int d = 0; d < n; ++d )
+			{
+				min[ d ] = interval.min( d ) + cellMin[ d ];
+				size[ d ] = cellSize[ d ];
+			}
+			read( min, size, storage( cell.getData() ) );
+		}
+	}
+	
+	protected void loadAhead( final long key )
+	{
+		try
+		{
+			getOrLoad( key );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch ( final UncheckedIOException e )
+		{
+			/* counted and logged by the loader, requested again when visited */
+		}
+	}
+	
+	/**
+	 * Start a new generation of background requests, typically when the
+	 * view has moved.  Requests from older generations that are still queued
+	 * are dropped.
+	 * 
+	 * @see FetcherPool#nextGeneration()
+	 */
+	public void nextGeneration()
+	{
+		final FetcherPool< Long, Long > pool = prefetchers;
+		if ( pool != null )
+			pool.nextGeneration();
+	}
+	
+	/**
+	 * Stop background loading.
+	 */
+	public void shutdown()
+	{
+		final FetcherPool< Long, Long > pool = prefetchers;
+		if ( pool != null )
+			pool.shutdown();
+	}
+	
+	/**
+	 * Get the cached entry for key or load and cache it with
+	 * {@link #loadEntry(long)}.  Only one load per key is running at a time,
+	 * other threads requesting the same key wait for it to finish.  Cache
+	 * hits do not allocate.
+	 * 
+	 * @throws UncheckedIOException if the entry could not be loaded
+	 * @throws InterruptedException if the calling thread was interrupted
+	 * 		while waiting for or running the load
+	 */
+	protected E getOrLoad( final long key ) throws InterruptedException
+	{
+		final E cachedEntry = cache.get( key );
+		if ( cachedEntry != null )
+		{
+			metrics.hit();
+			return cachedEntry;
+		}
+		metrics.miss();
+		
+		final FutureTask< E > task = new FutureTask< E >(
+				() -> {
+					/* another thread may have finished loading this tile between our cache miss and registering the load */
+					final E entry = cache.get( key );
+					if ( entry != null )
+						return entry;
+					metrics.load();
+					final E loadedEntry = loadEntry( key );
+					cache.put( key, loadedEntry, loadedEntry.bytes() );
+					return loadedEntry;
+				} );
+		final FutureTask< E > pendingTask = loading.putIfAbsent( key, task );
+		final FutureTask< E > loadingTask;
+		if ( pendingTask == null )
+		{
+			loadingTask = task;
+			try
+			{
+				task.run();
+			}
+			finally
+			{
+				loading.remove( key, task );
+			}
+		}
+		else
+			loadingTask = pendingTask;
+		
+		try
+		{
+			return loadingTask.get();
+		}
+		catch ( final ExecutionException e )
+		{
+			final Throwable cause = e.getCause();
+			if ( cause instanceof Error )
+				throw ( Error )cause;
+			if ( cause instanceof RuntimeException )
+				throw ( RuntimeException )cause;
+			if ( cause instanceof InterruptedException )
+				throw ( InterruptedException )cause;
+			throw new RuntimeException( cause );
+		}
+	}
 }
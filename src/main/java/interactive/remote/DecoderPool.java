@@ -0,0 +1,134 @@
+/*
+ * #%L
+ * ImgLib2: a general-purpose, multidimensional image processing library.
+ * %%
+ * Copyright (C) 2009 - 2016 Tobias Pietzsch, Stephan Preibisch, Stephan Saalfeld,
+ * John Bogovic, Albert Cardona, Barry DeZonia, Christian Dietz, Jan Funke,
+ * Aivar Grislis, Jonathan Hale, Grant Harris, Stefan Helfrich, Mark Hiner,
+ * Martin Horn, Steffen Jaensch, Lee Kamentsky, Larry Lindsey, Melissa Linkert,
+ * Mark Longair, Brian Northan, Nick Perry, Curtis Rueden, Johannes Schindelin,
+ * Jean-Yves Tinevez and Michael Zinsmaier.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package interactive.remote;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * <p>A small pool of decoders with native state or large buffers, shared
+ * by all threads that load tiles.  A ThreadLocal would create a decoder
+ * for every thread, which, with {@link FetcherPool#setThreadPerRequest(java.util.concurrent.Semaphore)},
+ * is a fresh thread for every load.</p>
+ * 
+ * <p>{@link #borrow()} never blocks, it creates a decoder if none is idle.
+ * At most {@link #setMaxIdle(int) maxIdle} decoders are kept for reuse,
+ * further decoders that are returned are disposed.  Since the number of
+ * concurrent loads is limited by the fetcher threads or the host permits,
+ * maxIdle should be about that number.</p>
+ * 
+ * @author Stephan Saalfeld
+ */
+public class DecoderPool< D >
+{
+	final protected ConcurrentLinkedQueue< D > idle = new ConcurrentLinkedQueue< D >();
+	final protected AtomicInteger numIdle = new AtomicInteger();
+	final protected Supplier< D > factory;
+	final protected Consumer< D > disposer;
+	protected volatile int maxIdle;
+	
+	/**
+	 * @param factory creates a decoder
+	 * @param disposer releases the native resources of a decoder that is
+	 * 		not kept
+	 * @param maxIdle maximum number of idle decoders
+	 */
+	public DecoderPool( final Supplier< D > factory, final Consumer< D > disposer, final int maxIdle )
+	{
+		this.factory = factory;
+		this.disposer = disposer;
+		this.maxIdle = maxIdle;
+	}
+	
+	/**
+	 * @return an idle decoder or a new one, to be returned with
+	 * 		{@link #release(Object)} in a finally block
+	 */
+	public D borrow()
+	{
+		final D decoder = idle.poll();
+		if ( decoder == null )
+			return factory.get();
+		numIdle.decrementAndGet();
+		return decoder;
+	}
+	
+	public void release( final D decoder )
+	{
+		if ( numIdle.incrementAndGet() <= maxIdle )
+			idle.offer( decoder );
+		else
+		{
+			numIdle.decrementAndGet();
+			disposer.accept( decoder );
+		}
+	}
+	
+	public int getMaxIdle()
+	{
+		return maxIdle;
+	}
+	
+	public void setMaxIdle( final int maxIdle )
+	{
+		this.maxIdle = maxIdle;
+	}
+	
+	/**
+	 * Keep at least maxIdle idle decoders, e.g. for the permits of a host.
+	 */
+	synchronized public void ensureMaxIdle( final int maxIdle )
+	{
+		if ( this.maxIdle < maxIdle )
+			this.maxIdle = maxIdle;
+	}
+}
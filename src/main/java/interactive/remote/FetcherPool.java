@@ -0,0 +1,446 @@
+/*
+ * #%L
+ * ImgLib2: a general-purpose, multidimensional image processing library.
+ * %%
+ * Copyright (C) 2009 - 2016 Tobias Pietzsch, Stephan Preibisch, Stephan Saalfeld,
+ * John Bogovic, Albert Cardona, Barry DeZonia, Christian Dietz, Jan Funke,
+ * Aivar Grislis, Jonathan Hale, Grant Harris, Stefan Helfrich, Mark Hiner,
+ * Martin Horn, Steffen Jaensch, Lee Kamentsky, Larry Lindsey, Melissa Linkert,
+ * Mark Longair, Brian Northan, Nick Perry, Curtis Rueden, Johannes Schindelin,
+ * Jean-Yves Tinevez and Michael Zinsmaier.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package interactive.remote;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * <p>A pool of worker threads that load cache entries in the background.
+ * Requests are served by priority, which is the distance of the requested
+ * tile or cell to the focus of attention, e.g. the screen centre, in units
+ * of tiles, minus a bonus for recency:</p>
+ * 
+ * <pre>priority = distance - recencyWeight * sequence</pre>
+ * 
+ * <p>where <em>sequence</em> counts all requests.  Smaller values are loaded
+ * first.  With the default weight, a request that was issued 64 requests
+ * later than another is worth one tile of distance.  Only one request per
+ * key can be pending at a time, duplicates are ignored.</p>
+ * 
+ * <p>Requests belong to the generation in which they were issued.  A viewer
+ * calls {@link #nextGeneration()} when the view moves.  Requests that are
+ * more than {@link #setMaxAge(long) maxAge} generations old when a worker
+ * picks them up are not loaded but handed to the canceller, e.g. to drop
+ * the placeholder entry from the cache.  Requesting a pending key again in a
+ * newer generation renews the request with the new generation and
+ * priority.</p>
+ * 
+ * <p>By default, the workers load entries themselves, so there are at most
+ * as many loads at a time as there are workers.  With
+ * {@link #setThreadPerRequest(Semaphore)}, the workers only dispatch
+ * requests, each load runs in a thread of its own, a virtual thread where
+ * the platform supports them, and a {@link Semaphore}, typically shared by
+ * all pools loading from the same host ({@link #hostPermits(String, int)}),
+ * limits the number of concurrent loads.</p>
+ * 
+ * @author Stephan Saalfeld
+ */
+public class FetcherPool< K, E >
+{
+	final static public double defaultRecencyWeight = 1.0 / 64.0;
+	
+	final static public long defaultMaxAge = 1;
+	
+	final static public int defaultNumFetchers = Math.max( 2, Runtime.getRuntime().availableProcessors() );
+	
+	final protected class Request implements Comparable< Request >
+	{
+		final public K key;
+		final public E entry;
+		final public double priority;
+		final public long generation;
+		
+		public Request( final K key, final E entry, final double priority, final long generation )
+		{
+			this.key = key;
+			this.entry = entry;
+			this.priority = priority;
+			this.generation = generation;
+		}
+		
+		@Override
+		public int compareTo( final Request other )
+		{
+			return Double.compare( priority, other.priority );
+		}
+	}
+	
+	protected class Fetcher extends Thread
+	{
+		public Fetcher( final String name )
+		{
+			super( name );
+			setDaemon( true );
+		}
+		
+		@Override
+		final public void run()
+		{
+			while ( !isInterrupted() )
+			{
+				final Request request;
+				try
+				{
+					request = queue.take();
+				}
+				catch ( final InterruptedException e )
+				{
+					break;
+				}
+				final Semaphore permits = FetcherPool.this.permits;
+				if ( permits == null )
+				{
+					if ( pending.remove( request.key, request ) )
+					{
+						if ( isStale( request ) )
+							canceller.accept( request.entry );
+						else
+							loader.accept( request.entry );
+					}
+				}
+				else
+				{
+					try
+					{
+						permits.acquire();
+					}
+					catch ( final InterruptedException e )
+					{
+						break;
+					}
+					dispatch( request, permits );
+				}
+			}
+		}
+	}
+	
+	/* shared by all pools that limit their loads per host */
+	final static protected ConcurrentHashMap< String, Semaphore > hostPermits = new ConcurrentHashMap< String, Semaphore >();
+	
+	final protected PriorityBlockingQueue< Request > queue = new PriorityBlockingQueue< Request >();
+	final protected ConcurrentHashMap< K, Request > pending = new ConcurrentHashMap< K, Request >();
+	final protected AtomicLong sequence = new AtomicLong();
+	final protected AtomicLong generation = new AtomicLong();
+	final protected Consumer< E > loader;
+	final protected Consumer< E > canceller;
+	final protected Thread[] fetchers;
+	protected volatile double recencyWeight = defaultRecencyWeight;
+	protected volatile long maxAge = defaultMaxAge;
+	
+	/* null if the workers load entries themselves */
+	protected volatile Semaphore permits = null;
+	protected volatile ExecutorService loaders = null;
+	final protected String name;
+	
+	/**
+	 * @param loader loads an entry, called from the worker threads
+	 * @param canceller called from the worker threads instead of loader for
+	 * 		entries whose request has become stale
+	 * @param numFetchers number of worker threads
+	 * @param name prefix of the worker thread names
+	 */
+	public FetcherPool( final Consumer< E > loader, final Consumer< E > canceller, final int numFetchers, final String name )
+	{
+		this.loader = loader;
+		this.canceller = canceller;
+		this.name = name;
+		fetchers = new Thread[ numFetchers ];
+		for ( int i = 0; i < numFetchers; ++i )
+		{
+			fetchers[ i ] = new Fetcher( name + "-" + i );
+			fetchers[ i ].start();
+		}
+	}
+	
+	/**
+	 * Stale requests are loaded anyway.
+	 * 
+	 * @param loader loads an entry, called from the worker threads
+	 * @param numFetchers number of worker threads
+	 * @param name prefix of the worker thread names
+	 */
+	public FetcherPool( final Consumer< E > loader, final int numFetchers, final String name )
+	{
+		this( loader, loader, numFetchers, name );
+	}
+	
+	/**
+	 * The shared {@link Semaphore} for all loads from the host of url.  The
+	 * first call for a host decides the number of permits.
+	 */
+	public static Semaphore hostPermits( final String url, final int permits )
+	{
+		String host;
+		try
+		{
+			host = new URL( url ).getAuthority();
+		}
+		catch ( final MalformedURLException e )
+		{
+			host = url;
+		}
+		return hostPermits.computeIfAbsent( host, h -> new Semaphore( permits ) );
+	}
+	
+	/**
+	 * @return an executor that runs every task in a new virtual thread, or,
+	 * 		where virtual threads are not available, in a cached daemon
+	 * 		thread
+	 */
+	protected static ExecutorService newThreadPerTaskExecutor( final String name )
+	{
+		try
+		{
+			return ( ExecutorService )Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+		}
+		catch ( final ReflectiveOperationException e )
+		{
+			final AtomicLong n = new AtomicLong();
+			return Executors.newCachedThreadPool(
+					r -> {
+						final Thread thread = new Thread( r, name + "-" + n.getAndIncrement() );
+						thread.setDaemon( true );
+						return thread;
+					} );
+		}
+	}
+	
+	/**
+	 * Run every load in a thread of its own, at most as many at a time as
+	 * there are permits.  The workers dispatch requests in order of
+	 * priority as permits become available.  null makes the workers load
+	 * entries themselves again.
+	 */
+	synchronized public void setThreadPerRequest( final Semaphore permits )
+	{
+		if ( permits != null && loaders == null )
+			loaders = newThreadPerTaskExecutor( name + " Loader" );
+		this.permits = permits;
+	}
+	
+	protected boolean isStale( final Request request )
+	{
+		return generation.get() - request.generation > maxAge;
+	}
+	
+	/**
+	 * Start loading request in a thread of its own with a permit that has
+	 * been acquired already.  The permit is released when the load is done
+	 * or if the request has been renewed, claimed or become stale while
+	 * waiting for the permit.
+	 */
+	protected void dispatch( final Request request, final Semaphore permits )
+	{
+		if ( !pending.remove( request.key, request ) )
+		{
+			permits.release();
+			return;
+		}
+		if ( isStale( request ) )
+		{
+			permits.release();
+			canceller.accept( request.entry );
+			return;
+		}
+		try
+		{
+			loaders.execute(
+					() -> {
+						try
+						{
+							loader.accept( request.entry );
+						}
+						finally
+						{
+							permits.release();
+						}
+					} );
+		}
+		catch ( final RejectedExecutionException e )
+		{
+			permits.release();
+		}
+	}
+	
+	/**
+	 * Queue entry for loading unless a request for key is pending already.
+	 * A pending request from an older generation is renewed.
+	 * 
+	 * @param distance distance to the focus of attention in tiles
+	 */
+	public void request( final K key, final E entry, final double distance )
+	{
+		final Request request = new Request( key, entry, distance - recencyWeight * sequence.getAndIncrement(), generation.get() );
+		if ( pending.putIfAbsent( key, request ) == null )
+			queue.put( request );
+		else
+			renew( key, entry, distance );
+	}
+	
+	/**
+	 * Move a pending request for key from an older generation into the
+	 * current generation with a new priority.  The replaced request is
+	 * skipped when it reaches the head of the queue.  Does nothing if no
+	 * request for key is pending, e.g. because it is being loaded right now.
+	 * 
+	 * @param distance distance to the focus of attention in tiles
+	 */
+	public void renew( final K key, final E entry, final double distance )
+	{
+		final long g = generation.get();
+		for ( Request pendingRequest = pending.get( key ); pendingRequest != null && pendingRequest.generation < g; pendingRequest = pending.get( key ) )
+		{
+			final Request request = new Request( key, entry, distance - recencyWeight * sequence.getAndIncrement(), g );
+			if ( pending.replace( key, pendingRequest, request ) )
+			{
+				queue.put( request );
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Start a new generation of requests, typically when the view has
+	 * moved.
+	 * 
+	 * @return the new generation
+	 */
+	public long nextGeneration()
+	{
+		return generation.incrementAndGet();
+	}
+	
+	public long getGeneration()
+	{
+		return generation.get();
+	}
+	
+	/**
+	 * Set how many generations a request may be behind the current
+	 * generation and still be loaded.
+	 */
+	public void setMaxAge( final long maxAge )
+	{
+		this.maxAge = maxAge;
+	}
+	
+	/**
+	 * @return true if a request for key is waiting for a worker
+	 */
+	public boolean isPending( final K key )
+	{
+		return pending.containsKey( key );
+	}
+	
+	/**
+	 * Take the pending request for key away from the workers, e.g. to load
+	 * it together with the entry that a worker is loading right now.  A
+	 * stale request is handed to the canceller as a worker would do.
+	 * 
+	 * @return the entry of the request or null if there was none or it
+	 * 		was stale
+	 */
+	public E claim( final K key )
+	{
+		final Request request = pending.remove( key );
+		if ( request == null )
+			return null;
+		if ( isStale( request ) )
+		{
+			canceller.accept( request.entry );
+			return null;
+		}
+		return request.entry;
+	}
+	
+	public void setRecencyWeight( final double recencyWeight )
+	{
+		this.recencyWeight = recencyWeight;
+	}
+	
+	public int numFetchers()
+	{
+		return fetchers.length;
+	}
+	
+	/**
+	 * @return the number of requests that are waiting for a worker
+	 */
+	public int queueSize()
+	{
+		return pending.size();
+	}
+	
+	/**
+	 * Drop all pending requests and stop the worker threads.  Requests that
+	 * are being loaded right now will finish.
+	 */
+	public void shutdown()
+	{
+		for ( final Thread fetcher : fetchers )
+			fetcher.interrupt();
+		pending.clear();
+		queue.clear();
+		synchronized ( this )
+		{
+			if ( loaders != null )
+				loaders.shutdown();
+		}
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ * #%L
+ * ImgLib2: a general-purpose, multidimensional image processing library.
+ * %%
+ * Copyright (C) 2009 - 2016 Tobias Pietzsch, Stephan Preibisch, Stephan Saalfeld,
+ * John Bogovic, Albert Cardona, Barry DeZonia, Christian Dietz, Jan Funke,
+ * Aivar Grislis, Jonathan Hale, Grant Harris, Stefan Helfrich, Mark Hiner,
+ * Martin Horn, Steffen Jaensch, Lee Kamentsky, Larry Lindsey, Melissa Linkert,
+ * Mark Longair, Brian Northan, Nick Perry, Curtis Rueden, Johannes Schindelin,
+ * Jean-Yves Tinevez and Michael Zinsmaier.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package interactive.remote;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A lock-free latency histogram in the spirit of HdrHistogram.  Values
+ * are recorded in microseconds into logarithmic buckets with
+ * 2<sup>{@value #subBucketBits}</sup> linear sub-buckets each.  Values below
+ * 2<sup>{@value #subBucketBits} + 1</sup>&micro;s are exact.  Larger values
+ * are resolved with a relative error below
+ * 2<sup>-{@value #subBucketBits}</sup>.  Recording is a handful of
+ * instructions and one atomic increment.</p>
+ * 
+ * <p>{@link #copy()} returns a snapshot that does not change any more.</p>
+ * 
+ * @author Stephan Saalfeld
+ */
+public class LatencyHistogram
+{
+	final static public int subBucketBits = 3;
+	final static protected int subBuckets = 1 << subBucketBits;
+	final static protected int linearBuckets = subBuckets << 1;
+	
+	/* enough for 2^40us, i.e. 12 days */
+	final static protected int maxExponent = 40;
+	final static protected int numBuckets = linearBuckets + ( maxExponent - subBucketBits ) * subBuckets;
+	
+	final protected AtomicLongArray counts;
+	final protected AtomicLong count;
+	final protected AtomicLong sum;
+	final protected AtomicLong max;
+	
+	public LatencyHistogram()
+	{
+		counts = new AtomicLongArray( numBuckets );
+		count = new AtomicLong();
+		sum = new AtomicLong();
+		max = new AtomicLong();
+	}
+	
+	protected LatencyHistogram( final LatencyHistogram histogram )
+	{
+		counts = new AtomicLongArray( numBuckets );
+		for ( int i = 0; i < numBuckets; ++i )
+			counts.set( i, histogram.counts.get( i ) );
+		count = new AtomicLong( histogram.count.get() );
+		sum = new AtomicLong( histogram.sum.get() );
+		max = new AtomicLong( histogram.max.get() );
+	}
+	
+	static protected int bucket( final long micros )
+	{
+		if ( micros < linearBuckets )
+			return ( int )micros;
+		final int exponent = 63 - Long.numberOfLeadingZeros( micros );
+		final int subBucket = ( int )( micros >>> ( exponent - subBucketBits ) ) & ( subBuckets - 1 );
+		return Math.min( numBuckets - 1, linearBuckets + ( exponent - subBucketBits - 1 ) * subBuckets + subBucket );
+	}
+	
+	/**
+	 * @return the largest value in microseconds that falls into bucket i
+	 */
+	static protected long highestValue( final int i )
+	{
+		if ( i < linearBuckets )
+			return i;
+		final int exponent = ( i - linearBuckets ) / subBuckets + subBucketBits + 1;
+		final long subBucket = ( i - linearBuckets ) % subBuckets;
+		final int shift = exponent - subBucketBits;
+		return ( ( subBuckets + subBucket + 1 ) << shift ) - 1;
+	}
+	
+	/**
+	 * Record a latency measured with {@link System#nanoTime()}.
+	 */
+	public void recordNanos( final long nanos )
+	{
+		record( nanos / 1000 );
+	}
+	
+	public void record( final long micros )
+	{
+		final long v = Math.max( 0, micros );
+		counts.incrementAndGet( bucket( v ) );
+		count.incrementAndGet();
+		sum.addAndGet( v );
+		for ( long m = max.get(); v > m && !max.compareAndSet( m, v ); m = max.get() );
+	}
+	
+	public long count()
+	{
+		return count.get();
+	}
+	
+	public double meanMicros()
+	{
+		final long n = count.get();
+		return n == 0 ? 0 : ( double )sum.get() / n;
+	}
+	
+	public long maxMicros()
+	{
+		return max.get();
+	}
+	
+	/**
+	 * @param quantile in [0, 1]
+	 * @return an upper bound of the value in microseconds below which the
+	 * 		given quantile of all recorded values falls
+	 */
+	public long quantileMicros( final double quantile )
+	{
+		long total = 0;
+		for ( int i = 0; i < numBuckets; ++i )
+			total += counts.get( i );
+		if ( total == 0 )
+			return 0;
+		final long rank = Math.max( 1, ( long )Math.ceil( quantile * total ) );
+		long n = 0;
+		for ( int i = 0; i < numBuckets; ++i )
+		{
+			n += counts.get( i );
+			if ( n >= rank )
+				return Math.min( highestValue( i ), max.get() );
+		}
+		return max.get();
+	}
+	
+	public void reset()
+	{
+		for ( int i = 0; i < numBuckets; ++i )
+			counts.set( i, 0 );
+		count.set( 0 );
+		sum.set( 0 );
+		max.set( 0 );
+	}
+	
+	public LatencyHistogram copy()
+	{
+		return new LatencyHistogram( this );
+	}
+	
+	@Override
+	public String toString()
+	{
+		return String.format(
+				"n=%d mean=%.0fus p50=%dus p90=%dus p99=%dus max=%dus",
+				count(),
+				meanMicros(),
+				quantileMicros( 0.5 ),
+				quantileMicros( 0.9 ),
+				quantileMicros( 0.99 ),
+				maxMicros() );
+	}
+}
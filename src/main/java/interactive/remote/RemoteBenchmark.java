@@ -0,0 +1,223 @@
+/*
+ * #%L
+ * ImgLib2: a general-purpose, multidimensional image processing library.
+ * %%
+ * Copyright (C) 2009 - 2016 Tobias Pietzsch, Stephan Preibisch, Stephan Saalfeld,
+ * John Bogovic, Albert Cardona, Barry DeZonia, Christian Dietz, Jan Funke,
+ * Aivar Grislis, Jonathan Hale, Grant Harris, Stefan Helfrich, Mark Hiner,
+ * Martin Horn, Steffen Jaensch, Lee Kamentsky, Larry Lindsey, Melissa Linkert,
+ * Mark Longair, Brian Northan, Nick Perry, Curtis Rueden, Johannes Schindelin,
+ * Jean-Yves Tinevez and Michael Zinsmaier.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package interactive.remote;
+
+import interactive.remote.cache.ClockCache;
+import interactive.remote.catmaid.CATMAIDRandomAccessibleInterval;
+import interactive.remote.openconnectome.OpenConnectomeRandomAccessibleInterval;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.ToIntFunction;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+
+/**
+ * Load benchmark for the remote readers against a local {@link TileServer}.
+ * A number of threads render frames like a projector, row by row through
+ * a {@link RandomAccess}, while panning across the data set and
+ * occasionally stepping in z.  Reports frame throughput and latency, the
+ * {@link RemoteMetrics} of the source and what the server has sent.
+ * 
+ * Usage: RemoteBenchmark [catmaid|openconnectome] [threads] [frames per
+ * thread] [latency ms] [bandwidth kB/s, 0 for unlimited] [failure rate]
+ * [cache MB]
+ * 
+ * @author Stephan Saalfeld
+ */
+public class RemoteBenchmark
+{
+	final static int frameWidth = 640;
+	final static int frameHeight = 480;
+	final static int panStep = 32;
+	final static int framesPerSection = 10;
+	
+	/**
+	 * Render frames of one viewer panning across source.
+	 * 
+	 * @return a checksum of all rendered pixels
+	 */
+	static protected < T > long traverse(
+			final RandomAccessibleInterval< T > source,
+			final ToIntFunction< T > value,
+			final int numFrames,
+			final long seed,
+			final LatencyHistogram frameLatency )
+	{
+		final Random rnd = new Random( seed );
+		final long maxX = source.dimension( 0 ) - frameWidth;
+		final long maxY = source.dimension( 1 ) - frameHeight;
+		final long maxZ = source.dimension( 2 ) - 1;
+		long x = ( long )( rnd.nextDouble() * maxX );
+		long y = ( long )( rnd.nextDouble() * maxY );
+		long z = ( long )( rnd.nextDouble() * maxZ );
+		long dx = rnd.nextBoolean() ? panStep : -panStep;
+		long dy = rnd.nextBoolean() ? panStep / 2 : -panStep / 2;
+		long dz = rnd.nextBoolean() ? 1 : -1;
+		
+		final RandomAccess< T > access = source.randomAccess();
+		final long[] position = new long[ 3 ];
+		long checksum = 0;
+		for ( int frame = 0; frame < numFrames; ++frame )
+		{
+			final long t = System.nanoTime();
+			for ( int row = 0; row < frameHeight; ++row )
+			{
+				position[ 0 ] = x;
+				position[ 1 ] = y + row;
+				position[ 2 ] = z;
+				access.setPosition( position );
+				for ( int col = 0; col < frameWidth; ++col )
+				{
+					checksum += value.applyAsInt( access.get() );
+					access.fwd( 0 );
+				}
+			}
+			frameLatency.recordNanos( System.nanoTime() - t );
+			
+			if ( x + dx < 0 || x + dx > maxX ) dx = -dx;
+			if ( y + dy < 0 || y + dy > maxY ) dy = -dy;
+			x += dx;
+			y += dy;
+			if ( frame % framesPerSection == framesPerSection - 1 )
+			{
+				if ( z + dz < 0 || z + dz > maxZ ) dz = -dz;
+				z += dz;
+			}
+		}
+		return checksum;
+	}
+	
+	static protected < T > void benchmark(
+			final TileServer server,
+			final AbstractRemoteRandomAccessibleInterval< T, ? > source,
+			final ToIntFunction< T > value,
+			final int numThreads,
+			final int numFrames ) throws InterruptedException, ExecutionException
+	{
+		final LatencyHistogram frameLatency = new LatencyHistogram();
+		final ExecutorService threads = Executors.newFixedThreadPool( numThreads );
+		final ArrayList< Future< Long > > results = new ArrayList< Future< Long > >();
+		
+		final long t = System.nanoTime();
+		for ( int i = 0; i < numThreads; ++i )
+		{
+			final long seed = i;
+			final Callable< Long > viewer = () -> traverse( source, value, numFrames, seed, frameLatency );
+			results.add( threads.submit( viewer ) );
+		}
+		long checksum = 0;
+		for ( final Future< Long > result : results )
+			checksum += result.get();
+		final double seconds = ( System.nanoTime() - t ) / 1e9;
+		threads.shutdown();
+		
+		final long frames = ( long )numThreads * numFrames;
+		System.out.println( String.format(
+				"%d threads x %d frames of %dx%d px in %.2f s: %.1f frames/s, %.1f Mpx/s (checksum %d)",
+				numThreads, numFrames, frameWidth, frameHeight, seconds,
+				frames / seconds, frames * frameWidth * frameHeight / seconds / 1e6, checksum ) );
+		System.out.println( "frame    " + frameLatency );
+		System.out.println( source.getMetrics().snapshot() );
+		System.out.println( String.format(
+				"server: %d requests, %d failed, %.1f MB sent",
+				server.getRequests(), server.getFailures(), server.getBytesSent() / 1e6 ) );
+	}
+	
+	final static public void main( final String[] args ) throws IOException, InterruptedException, ExecutionException
+	{
+		final String service = args.length > 0 ? args[ 0 ] : "catmaid";
+		final int numThreads = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 4;
+		final int numFrames = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : 100;
+		final long latency = args.length > 3 ? Long.parseLong( args[ 3 ] ) : 50;
+		final long bandwidth = args.length > 4 ? Long.parseLong( args[ 4 ] ) * 1000 : 0;
+		final double failureRate = args.length > 5 ? Double.parseDouble( args[ 5 ] ) : 0;
+		final long cacheBytes = args.length > 6 ? Long.parseLong( args[ 6 ] ) << 20 : 256L << 20;
+		
+		final TileServer server = new TileServer( 256, 256 );
+		server.setLatency( latency, latency / 2 );
+		server.setBandwidth( bandwidth );
+		server.setFailureRate( failureRate );
+		server.start();
+		
+		try
+		{
+			if ( service.equals( "openconnectome" ) )
+			{
+				final OpenConnectomeRandomAccessibleInterval source = new OpenConnectomeRandomAccessibleInterval(
+						server.openConnectomeUrl(), 16384, 16384, 512, 64, 64, 8, 0, 0,
+						new ClockCache< OpenConnectomeRandomAccessibleInterval.Entry >( cacheBytes ) );
+				benchmark( server, source, UnsignedByteType::get, numThreads, numFrames );
+				source.shutdown();
+			}
+			else
+			{
+				final CATMAIDRandomAccessibleInterval source = new CATMAIDRandomAccessibleInterval(
+						server.catmaidUrl(), 16384, 16384, 512, 0, 256, 256,
+						new ClockCache< CATMAIDRandomAccessibleInterval.Entry >( cacheBytes ) );
+				benchmark( server, source, ARGBType::get, numThreads, numFrames );
+				source.shutdown();
+			}
+		}
+		finally
+		{
+			server.stop();
+		}
+	}
+}
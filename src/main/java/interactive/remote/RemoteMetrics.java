@@ -0,0 +1,294 @@
+/*
+ * #%L
+ * ImgLib2: a general-purpose, multidimensional image processing library.
+ * %%
+ * Copyright (C) 2009 - 2016 Tobias Pietzsch, Stephan Preibisch, Stephan Saalfeld,
+ * John Bogovic, Albert Cardona, Barry DeZonia, Christian Dietz, Jan Funke,
+ * Aivar Grislis, Jonathan Hale, Grant Harris, Stefan Helfrich, Mark Hiner,
+ * Martin Horn, Steffen Jaensch, Lee Kamentsky, Larry Lindsey, Melissa Linkert,
+ * Mark Longair, Brian Northan, Nick Perry, Curtis Rueden, Johannes Schindelin,
+ * Jean-Yves Tinevez and Michael Zinsmaier.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package interactive.remote;
+
+import interactive.remote.cache.Cache;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * <p>Counters and latency histograms of an
+ * {@link AbstractRemoteRandomAccessibleInterval}: cache hits and misses,
+ * disk cache hits, loads and failed loads, entries and bytes resident,
+ * evictions, the number of queued requests, and the time spent downloading
+ * and decoding tiles.</p>
+ * 
+ * <p>Counters are {@link LongAdder LongAdders} and histograms are lock-free,
+ * so recording does not add contention to the fetch paths.  Read them
+ * through {@link #snapshot()} or register them as an MBean with
+ * {@link #register(String)} and watch them in e.g. JConsole.</p>
+ * 
+ * @author Stephan Saalfeld
+ */
+public class RemoteMetrics implements RemoteMetricsMBean
+{
+	/**
+	 * An immutable copy of all metrics at one point in time.
+	 */
+	public static class Snapshot
+	{
+		final public long hits, misses, diskHits, coldHits, loads, failures;
+		final public int entries;
+		final public long bytes, maxBytes, evictions, coldBytes;
+		final public int queueDepth;
+		final public LatencyHistogram download, decode;
+		
+		protected Snapshot( final RemoteMetrics metrics )
+		{
+			hits = metrics.hits.sum();
+			misses = metrics.misses.sum();
+			diskHits = metrics.diskHits.sum();
+			coldHits = metrics.coldHits.sum();
+			loads = metrics.loads.sum();
+			failures = metrics.failures.sum();
+			entries = metrics.source.getCache().size();
+			bytes = metrics.source.getCache().bytes();
+			maxBytes = metrics.source.getCache().maxBytes();
+			evictions = metrics.source.getCache().evictions();
+			queueDepth = metrics.source.queueSize();
+			coldBytes = metrics.getColdBytes();
+			download = metrics.download.copy();
+			decode = metrics.decode.copy();
+		}
+		
+		public double hitRatio()
+		{
+			final long n = hits + misses;
+			return n == 0 ? 0 : ( double )hits / n;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return String.format(
+					"hits=%d misses=%d (%.1f%%) coldHits=%d diskHits=%d loads=%d failures=%d%n" +
+					"entries=%d bytes=%d/%d evictions=%d coldBytes=%d queue=%d%n" +
+					"download %s%n" +
+					"decode   %s",
+					hits, misses, 100 * hitRatio(), coldHits, diskHits, loads, failures,
+					entries, bytes, maxBytes, evictions, coldBytes, queueDepth,
+					download, decode );
+		}
+	}
+	
+	final protected AbstractRemoteRandomAccessibleInterval< ?, ? > source;
+	
+	final protected LongAdder hits = new LongAdder();
+	final protected LongAdder misses = new LongAdder();
+	final protected LongAdder diskHits = new LongAdder();
+	final protected LongAdder coldHits = new LongAdder();
+	final protected LongAdder loads = new LongAdder();
+	final protected LongAdder failures = new LongAdder();
+	
+	final protected LatencyHistogram download = new LatencyHistogram();
+	final protected LatencyHistogram decode = new LatencyHistogram();
+	
+	public RemoteMetrics( final AbstractRemoteRandomAccessibleInterval< ?, ? > source )
+	{
+		this.source = source;
+	}
+	
+	public void hit()
+	{
+		hits.increment();
+	}
+	
+	public void miss()
+	{
+		misses.increment();
+	}
+	
+	public void diskHit()
+	{
+		diskHits.increment();
+	}
+	
+	public void coldHit()
+	{
+		coldHits.increment();
+	}
+	
+	public void load()
+	{
+		loads.increment();
+	}
+	
+	public void failure()
+	{
+		failures.increment();
+	}
+	
+	/**
+	 * Record the time from opening the connection until the payload was
+	 * received.
+	 */
+	public void download( final long nanos )
+	{
+		download.recordNanos( nanos );
+	}
+	
+	/**
+	 * Record the time spent decompressing or decoding a payload.
+	 */
+	public void decode( final long nanos )
+	{
+		decode.recordNanos( nanos );
+	}
+	
+	public LatencyHistogram getDownloadHistogram()
+	{
+		return download;
+	}
+	
+	public LatencyHistogram getDecodeHistogram()
+	{
+		return decode;
+	}
+	
+	public Snapshot snapshot()
+	{
+		return new Snapshot( this );
+	}
+	
+	/**
+	 * Register with the platform MBean server as
+	 * <code>interactive.remote:type=RemoteMetrics,name=</code><em>name</em>.
+	 */
+	public ObjectName register( final String name ) throws JMException
+	{
+		final ObjectName objectName = new ObjectName( "interactive.remote:type=RemoteMetrics,name=" + ObjectName.quote( name ) );
+		ManagementFactory.getPlatformMBeanServer().registerMBean( this, objectName );
+		return objectName;
+	}
+	
+	public void unregister( final ObjectName objectName ) throws JMException
+	{
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean( objectName );
+	}
+	
+	@Override
+	public long getHits() { return hits.sum(); }
+	@Override
+	public long getMisses() { return misses.sum(); }
+	@Override
+	public double getHitRatio()
+	{
+		final long h = hits.sum();
+		final long n = h + misses.sum();
+		return n == 0 ? 0 : ( double )h / n;
+	}
+	@Override
+	public long getDiskHits() { return diskHits.sum(); }
+	@Override
+	public long getColdHits() { return coldHits.sum(); }
+	@Override
+	public long getLoads() { return loads.sum(); }
+	@Override
+	public long getFailures() { return failures.sum(); }
+	
+	@Override
+	public int getEntries() { return source.getCache().size(); }
+	@Override
+	public long getBytes() { return source.getCache().bytes(); }
+	@Override
+	public long getMaxBytes() { return source.getCache().maxBytes(); }
+	@Override
+	public long getEvictions() { return source.getCache().evictions(); }
+	@Override
+	public int getQueueDepth() { return source.queueSize(); }
+	@Override
+	public long getColdBytes()
+	{
+		final Cache< byte[] > coldCache = source.getColdCache();
+		return coldCache == null ? 0 : coldCache.bytes();
+	}
+	
+	@Override
+	public long getDownloads() { return download.count(); }
+	@Override
+	public double getDownloadMeanMicros() { return download.meanMicros(); }
+	@Override
+	public long getDownloadP50Micros() { return download.quantileMicros( 0.5 ); }
+	@Override
+	public long getDownloadP99Micros() { return download.quantileMicros( 0.99 ); }
+	@Override
+	public long getDownloadMaxMicros() { return download.maxMicros(); }
+	
+	@Override
+	public long getDecodes() { return decode.count(); }
+	@Override
+	public double getDecodeMeanMicros() { return decode.meanMicros(); }
+	@Override
+	public long getDecodeP50Micros() { return decode.quantileMicros( 0.5 ); }
+	@Override
+	public long getDecodeP99Micros() { return decode.quantileMicros( 0.99 ); }
+	@Override
+	public long getDecodeMaxMicros() { return decode.maxMicros(); }
+	
+	/**
+	 * Reset counters and histograms, cache statistics are not affected.
+	 */
+	@Override
+	public void reset()
+	{
+		hits.reset();
+		misses.reset();
+		diskHits.reset();
+		coldHits.reset();
+		loads.reset();
+		failures.reset();
+		download.reset();
+		decode.reset();
+	}
+}
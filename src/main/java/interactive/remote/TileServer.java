@@ -0,0 +1,366 @@
+/*
+ * #%L
+ * ImgLib2: a general-purpose, multidimensional image processing library.
+ * %%
+ * Copyright (C) 2009 - 2016 Tobias Pietzsch, Stephan Preibisch, Stephan Saalfeld,
+ * John Bogovic, Albert Cardona, Barry DeZonia, Christian Dietz, Jan Funke,
+ * Aivar Grislis, Jonathan Hale, Grant Harris, Stefan Helfrich, Mark Hiner,
+ * Martin Horn, Steffen Jaensch, Lee Kamentsky, Larry Lindsey, Melissa Linkert,
+ * Mark Longair, Brian Northan, Nick Perry, Curtis Rueden, Johannes Schindelin,
+ * Jean-Yves Tinevez and Michael Zinsmaier.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package interactive.remote;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+import javax.imageio.ImageIO;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the remote services to exercise the remote readers
+ * offline and reproducibly.  It serves synthetic JPEG tiles in the CATMAID
+ * layout at {@link #catmaidUrl()}, e.g. for
+ * {@link interactive.remote.catmaid.CATMAIDRandomAccessibleInterval}, and
+ * zlib compressed cutouts in the Open Connectome layout at
+ * {@link #openConnectomeUrl()}, e.g. for
+ * {@link interactive.remote.openconnectome.OpenConnectomeRandomAccessibleInterval}.
+ * 
+ * Every response can be delayed by a fixed latency plus a random jitter,
+ * throttled to a bandwidth, and fail with a given probability.
+ * 
+ * @author Stephan Saalfeld
+ */
+public class TileServer
+{
+	/* number of distinct CATMAID tiles, tiles are reused across the grid */
+	final static protected int numVariants = 16;
+	
+	final protected HttpServer server;
+	final protected ExecutorService executor;
+	final protected int tileWidth, tileHeight;
+	final protected byte[][] variants;
+	
+	protected volatile long latencyMillis = 0;
+	protected volatile long jitterMillis = 0;
+	protected volatile long bytesPerSecond = 0;
+	protected volatile double failureRate = 0;
+	
+	final protected LongAdder requests = new LongAdder();
+	final protected LongAdder failures = new LongAdder();
+	final protected LongAdder bytesSent = new LongAdder();
+	
+	/**
+	 * @param port the port to listen at on localhost, 0 picks a free port
+	 * @param tileWidth width of the CATMAID tiles
+	 * @param tileHeight height of the CATMAID tiles
+	 */
+	public TileServer( final int port, final int tileWidth, final int tileHeight ) throws IOException
+	{
+		this.tileWidth = tileWidth;
+		this.tileHeight = tileHeight;
+		
+		variants = new byte[ numVariants ][];
+		for ( int i = 0; i < numVariants; ++i )
+			variants[ i ] = createTile( tileWidth, tileHeight, i );
+		
+		server = HttpServer.create( new InetSocketAddress( "localhost", port ), 0 );
+		server.createContext( "/catmaid/", this::serveTile );
+		server.createContext( "/openconnectome/zip/", this::serveCutout );
+		executor = Executors.newCachedThreadPool(
+				r -> {
+					final Thread thread = new Thread( r, "TileServer" );
+					thread.setDaemon( true );
+					return thread;
+				} );
+		server.setExecutor( executor );
+	}
+	
+	public TileServer( final int tileWidth, final int tileHeight ) throws IOException
+	{
+		this( 0, tileWidth, tileHeight );
+	}
+	
+	public TileServer() throws IOException
+	{
+		this( 256, 256 );
+	}
+	
+	static protected byte[] createTile( final int w, final int h, final int variant ) throws IOException
+	{
+		final BufferedImage image = new BufferedImage( w, h, BufferedImage.TYPE_BYTE_GRAY );
+		final byte[] pixels = new byte[ w * h ];
+		for ( int y = 0, i = 0; y < h; ++y )
+			for ( int x = 0; x < w; ++x, ++i )
+				pixels[ i ] = ( byte )( ( x + y ) / 4 + variant * 16 + ( ( x * y ) >> 5 ) % 32 );
+		image.getRaster().setDataElements( 0, 0, w, h, pixels );
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write( image, "jpg", out );
+		return out.toByteArray();
+	}
+	
+	public TileServer start()
+	{
+		server.start();
+		return this;
+	}
+	
+	public void stop()
+	{
+		server.stop( 0 );
+		executor.shutdownNow();
+	}
+	
+	public int getPort()
+	{
+		return server.getAddress().getPort();
+	}
+	
+	/**
+	 * @return the base URL for CATMAID readers
+	 */
+	public String catmaidUrl()
+	{
+		return "http://localhost:" + getPort() + "/catmaid/";
+	}
+	
+	/**
+	 * @return the base URL for Open Connectome readers
+	 */
+	public String openConnectomeUrl()
+	{
+		return "http://localhost:" + getPort() + "/openconnectome";
+	}
+	
+	/**
+	 * Delay every response by latencyMillis plus a uniformly distributed
+	 * random jitter of up to jitterMillis.
+	 */
+	public void setLatency( final long latencyMillis, final long jitterMillis )
+	{
+		this.latencyMillis = latencyMillis;
+		this.jitterMillis = jitterMillis;
+	}
+	
+	/**
+	 * Throttle every response to bytesPerSecond, 0 does not throttle.
+	 */
+	public void setBandwidth( final long bytesPerSecond )
+	{
+		this.bytesPerSecond = bytesPerSecond;
+	}
+	
+	/**
+	 * Answer a fraction of all requests with 503 Service Unavailable.
+	 */
+	public void setFailureRate( final double failureRate )
+	{
+		this.failureRate = failureRate;
+	}
+	
+	public long getRequests()
+	{
+		return requests.sum();
+	}
+	
+	public long getFailures()
+	{
+		return failures.sum();
+	}
+	
+	public long getBytesSent()
+	{
+		return bytesSent.sum();
+	}
+	
+	public void resetCounters()
+	{
+		requests.reset();
+		failures.reset();
+		bytesSent.reset();
+	}
+	
+	/**
+	 * Serve z/r_c_s.jpg
+	 */
+	protected void serveTile( final HttpExchange exchange ) throws IOException
+	{
+		try
+		{
+			final String path = exchange.getRequestURI().getPath();
+			final String[] zrcs = path.substring( exchange.getHttpContext().getPath().length() ).split( "[/_.]" );
+			final long z = Long.parseLong( zrcs[ 0 ] );
+			final long r = Long.parseLong( zrcs[ 1 ] );
+			final long c = Long.parseLong( zrcs[ 2 ] );
+			final long s = Long.parseLong( zrcs[ 3 ] );
+			respond( exchange, "image/jpeg", variants[ ( int )Math.floorMod( r * 31 + c * 17 + z * 7 + s, ( long )numVariants ) ] );
+		}
+		catch ( final RuntimeException e )
+		{
+			requests.increment();
+			exchange.sendResponseHeaders( 400, -1 );
+		}
+		finally
+		{
+			exchange.close();
+		}
+	}
+	
+	/**
+	 * Serve level/x0,x1/y0,y1/z0,z1/ as zlib compressed bytes, x fastest.
+	 */
+	protected void serveCutout( final HttpExchange exchange ) throws IOException
+	{
+		try
+		{
+			final String path = exchange.getRequestURI().getPath();
+			final String[] ranges = path.substring( exchange.getHttpContext().getPath().length() ).split( "/" );
+			final long[] min = new long[ 3 ];
+			final int[] size = new int[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+			{
+				final String[] range = ranges[ d + 1 ].split( "," );
+				min[ d ] = Long.parseLong( range[ 0 ] );
+				size[ d ] = ( int )( Long.parseLong( range[ 1 ] ) - min[ d ] );
+			}
+			final byte[] bytes = new byte[ size[ 0 ] * size[ 1 ] * size[ 2 ] ];
+			for ( int k = 0, i = 0; k < size[ 2 ]; ++k )
+				for ( int j = 0; j < size[ 1 ]; ++j )
+					for ( int l = 0; l < size[ 0 ]; ++l, ++i )
+					{
+						final long x = min[ 0 ] + l, y = min[ 1 ] + j, z = min[ 2 ] + k;
+						bytes[ i ] = ( byte )( ( x + y ) / 4 + z * 8 + ( ( x * y ) >> 5 ) % 32 );
+					}
+			
+			final Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+			deflater.setInput( bytes );
+			deflater.finish();
+			final ByteArrayOutputStream out = new ByteArrayOutputStream( bytes.length / 4 + 64 );
+			final byte[] chunk = new byte[ 16384 ];
+			while ( !deflater.finished() )
+				out.write( chunk, 0, deflater.deflate( chunk ) );
+			deflater.end();
+			respond( exchange, "application/octet-stream", out.toByteArray() );
+		}
+		catch ( final RuntimeException e )
+		{
+			requests.increment();
+			exchange.sendResponseHeaders( 400, -1 );
+		}
+		finally
+		{
+			exchange.close();
+		}
+	}
+	
+	/**
+	 * Send data after the configured latency, at the configured bandwidth,
+	 * or fail.
+	 */
+	protected void respond( final HttpExchange exchange, final String contentType, final byte[] data ) throws IOException
+	{
+		requests.increment();
+		final ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		final long jitter = jitterMillis;
+		sleep( latencyMillis + ( jitter > 0 ? rnd.nextLong( jitter ) : 0 ) );
+		
+		if ( rnd.nextDouble() < failureRate )
+		{
+			failures.increment();
+			exchange.sendResponseHeaders( 503, -1 );
+			return;
+		}
+		
+		exchange.getResponseHeaders().set( "Content-Type", contentType );
+		exchange.sendResponseHeaders( 200, data.length );
+		final long bandwidth = bytesPerSecond;
+		try ( final OutputStream out = exchange.getResponseBody() )
+		{
+			if ( bandwidth <= 0 )
+				out.write( data );
+			else
+			{
+				/* write in chunks of about 10ms worth of data */
+				final int chunk = ( int )Math.max( 1024, Math.min( data.length, bandwidth / 100 ) );
+				final long t = System.nanoTime();
+				for ( int offset = 0; offset < data.length; offset += chunk )
+				{
+					out.write( data, offset, Math.min( chunk, data.length - offset ) );
+					sleep( ( offset + chunk ) * 1000L / bandwidth - ( System.nanoTime() - t ) / 1000000 );
+				}
+			}
+		}
+		bytesSent.add( data.length );
+	}
+	
+	static protected void sleep( final long millis )
+	{
+		if ( millis <= 0 )
+			return;
+		try
+		{
+			Thread.sleep( millis );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	final static public void main( final String[] args ) throws IOException
+	{
+		final TileServer server = new TileServer( args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 8080, 256, 256 );
+		if ( args.length > 1 )
+			server.setLatency( Long.parseLong( args[ 1 ] ), args.length > 2 ? Long.parseLong( args[ 2 ] ) : 0 );
+		server.start();
+		System.out.println( "serving " + server.catmaidUrl() + " and " + server.openConnectomeUrl() );
+	}
+}
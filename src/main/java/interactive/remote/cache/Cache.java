@@ -0,0 +1,110 @@
+/*
+ * #%L
+ * ImgLib2: a general-purpose, multidimensional image processing library.
+ * %%
+ * Copyright (C) 2009 - 2016 Tobias Pietzsch, Stephan Preibisch, Stephan Saalfeld,
+ * John Bogovic, Albert Cardona, Barry DeZonia, Christian Dietz, Jan Funke,
+ * Aivar Grislis, Jonathan Hale, Grant Harris, Stefan Helfrich, Mark Hiner,
+ * Martin Horn, Steffen Jaensch, Lee Kamentsky, Larry Lindsey, Melissa Linkert,
+ * Mark Longair, Brian Northan, Nick Perry, Curtis Rueden, Johannes Schindelin,
+ * Jean-Yves Tinevez and Michael Zinsmaier.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package interactive.remote.cache;
+
+import java.util.function.Consumer;
+
+/**
+ * A cache that holds at most {@link #maxBytes()} bytes worth of values,
+ * keyed by primitive long indices, e.g. linear tile indices.
+ * Implementations decide which values to evict when a new value does not
+ * fit into the budget.  Callers have to report the size of each value they
+ * put, the cache does not try to measure it.
+ * 
+ * @author Stephan Saalfeld
+ */
+public interface Cache< V >
+{
+	/**
+	 * @return the value stored for key or null if there is none
+	 */
+	public V get( final long key );
+	
+	/**
+	 * Store value for key, replacing a previous value, and evict other
+	 * values if the budget is exceeded.
+	 */
+	public void put( final long key, final V value, final long bytes );
+	
+	/**
+	 * Store value for key unless there is a value for key already.
+	 * 
+	 * @return the value that was stored before or null if value was stored
+	 */
+	public V putIfAbsent( final long key, final V value, final long bytes );
+	
+	public V remove( final long key );
+	
+	public void clear();
+	
+	public int size();
+	
+	/**
+	 * @return sum of the sizes of all values currently stored
+	 */
+	public long bytes();
+	
+	public long maxBytes();
+	
+	/**
+	 * @return the number of values evicted to meet the budget since the
+	 * cache was created
+	 */
+	public long evictions();
+	
+	/**
+	 * Set a listener that is notified of every value that leaves the cache,
+	 * by eviction, {@link #remove(long)}, replacement or {@link #clear()},
+	 * e.g. to return its memory to a pool.  The listener is called while the
+	 * cache is locked and must not call back into the cache.  null removes
+	 * the listener.
+	 */
+	public void setRemovalListener( final Consumer< ? super V > listener );
+}
@@ -0,0 +1,239 @@
+/*
+ * #%L
+ * ImgLib2: a general-purpose, multidimensional image processing library.
+ * %%
+ * Copyright (C) 2009 - 2016 Tobias Pietzsch, Stephan Preibisch, Stephan Saalfeld,
+ * John Bogovic, Albert Cardona, Barry DeZonia, Christian Dietz, Jan Funke,
+ * Aivar Grislis, Jonathan Hale, Grant Harris, Stefan Helfrich, Mark Hiner,
+ * Martin Horn, Steffen Jaensch, Lee Kamentsky, Larry Lindsey, Melissa Linkert,
+ * Mark Longair, Brian Northan, Nick Perry, Curtis Rueden, Johannes Schindelin,
+ * Jean-Yves Tinevez and Michael Zinsmaier.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package interactive.remote.cache;
+
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+
+/**
+ * {@link Cache} with CLOCK (second chance) eviction.  Lookups go through a
+ * {@link ConcurrentLongHashMap} and only set a reference bit, so hits
+ * neither block nor allocate.  Insertion and eviction are synchronized on
+ * the cache.
+ * 
+ * @author Stephan Saalfeld
+ */
+public class ClockCache< V > implements Cache< V >
+{
+	final static protected class Node< V >
+	{
+		final public long key;
+		final public V value;
+		final public long bytes;
+		
+		volatile public boolean referenced = false;
+		
+		/* guarded by the cache */
+		public boolean removed = false;
+		
+		public Node( final long key, final V value, final long bytes )
+		{
+			this.key = key;
+			this.value = value;
+			this.bytes = bytes;
+		}
+	}
+	
+	final protected ConcurrentLongHashMap< Node< V > > map = new ConcurrentLongHashMap< Node< V > >();
+	
+	/* the clock, the hand points at its head, guarded by the cache */
+	final protected ArrayDeque< Node< V > > clock = new ArrayDeque< Node< V > >();
+	
+	final protected long maxBytes;
+	
+	/* guarded by the cache */
+	protected long bytes = 0;
+	protected int numRemoved = 0;
+	protected volatile long evictions = 0;
+	protected volatile Consumer< ? super V > removalListener = null;
+	
+	public ClockCache( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+	}
+	
+	@Override
+	public V get( final long key )
+	{
+		final Node< V > node = map.get( key );
+		if ( node == null )
+			return null;
+		node.referenced = true;
+		return node.value;
+	}
+	
+	@Override
+	synchronized public void put( final long key, final V value, final long bytes )
+	{
+		final Node< V > node = new Node< V >( key, value, bytes );
+		unlink( map.put( key, node ) );
+		clock.add( node );
+		this.bytes += bytes;
+		evict();
+	}
+	
+	@Override
+	synchronized public V putIfAbsent( final long key, final V value, final long bytes )
+	{
+		final Node< V > old = map.get( key );
+		if ( old != null )
+		{
+			old.referenced = true;
+			return old.value;
+		}
+		put( key, value, bytes );
+		return null;
+	}
+	
+	@Override
+	synchronized public V remove( final long key )
+	{
+		final Node< V > old = map.remove( key );
+		unlink( old );
+		return old == null ? null : old.value;
+	}
+	
+	@Override
+	synchronized public void clear()
+	{
+		final Consumer< ? super V > listener = removalListener;
+		if ( listener != null )
+			for ( final Node< V > node : clock )
+				if ( !node.removed )
+					listener.accept( node.value );
+		map.clear();
+		clock.clear();
+		bytes = 0;
+		numRemoved = 0;
+	}
+	
+	@Override
+	public int size()
+	{
+		return map.size();
+	}
+	
+	@Override
+	synchronized public long bytes()
+	{
+		return bytes;
+	}
+	
+	@Override
+	public long maxBytes()
+	{
+		return maxBytes;
+	}
+	
+	@Override
+	public long evictions()
+	{
+		return evictions;
+	}
+	
+	@Override
+	public void setRemovalListener( final Consumer< ? super V > listener )
+	{
+		removalListener = listener;
+	}
+	
+	/**
+	 * Account for a node that has been removed from the map.  The node stays
+	 * in the clock and is skipped by the hand, the clock is compacted when
+	 * such stale nodes start to dominate.
+	 */
+	protected void unlink( final Node< V > node )
+	{
+		if ( node == null )
+			return;
+		node.removed = true;
+		bytes -= node.bytes;
+		removed( node );
+		if ( ++numRemoved > clock.size() / 2 )
+		{
+			clock.removeIf( n -> n.removed );
+			numRemoved = 0;
+		}
+	}
+	
+	/**
+	 * Advance the hand until the budget is met.  Referenced nodes get a
+	 * second chance, unreferenced nodes are evicted.
+	 */
+	protected void evict()
+	{
+		while ( bytes > maxBytes && !clock.isEmpty() )
+		{
+			final Node< V > node = clock.poll();
+			if ( node.removed )
+				--numRemoved;
+			else if ( node.referenced )
+			{
+				node.referenced = false;
+				clock.add( node );
+			}
+			else
+			{
+				map.remove( node.key, node );
+				node.removed = true;
+				bytes -= node.bytes;
+				++evictions;
+				removed( node );
+			}
+		}
+	}
+	
+	protected void removed( final Node< V > node )
+	{
+		final Consumer< ? super V > listener = removalListener;
+		if ( listener != null )
+			listener.accept( node.value );
+	}
+}
@@ -0,0 +1,371 @@
+/*
+ * #%L
+ * ImgLib2: a general-purpose, multidimensional image processing library.
+ * %%
+ * Copyright (C) 2009 - 2016 Tobias Pietzsch, Stephan Preibisch, Stephan Saalfeld,
+ * John Bogovic, Albert Cardona, Barry DeZonia, Christian Dietz, Jan Funke,
+ * Aivar Grislis, Jonathan Hale, Grant Harris, Stefan Helfrich, Mark Hiner,
+ * Martin Horn, Steffen Jaensch, Lee Kamentsky, Larry Lindsey, Melissa Linkert,
+ * Mark Longair, Brian Northan, Nick Perry, Curtis Rueden, Johannes Schindelin,
+ * Jean-Yves Tinevez and Michael Zinsmaier.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package interactive.remote.cache;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * <p>A concurrent hash map from primitive long keys to objects.  Keys are
+ * spread over a fixed number of segments, each an open addressing table
+ * with linear probing that is guarded by a {@link StampedLock}.</p>
+ * 
+ * <p>Lookups are optimistic reads that neither lock nor allocate, they
+ * only fall back to a read lock if a writer modified the segment
+ * concurrently.  Removal shifts entries back instead of leaving
+ * tombstones.</p>
+ * 
+ * @author Stephan Saalfeld
+ */
+public class ConcurrentLongHashMap< V >
+{
+	final static protected class Segment extends StampedLock
+	{
+		private static final long serialVersionUID = 1L;
+		
+		protected long[] keys;
+		protected Object[] values;
+		protected int size = 0;
+		
+		public Segment( final int capacity )
+		{
+			keys = new long[ capacity ];
+			values = new Object[ capacity ];
+		}
+		
+		/**
+		 * Safe to call without holding the lock, the result is only
+		 * meaningful if the lock is validated afterwards.
+		 */
+		protected Object find( final long key, final long hash )
+		{
+			final long[] keys = this.keys;
+			final Object[] values = this.values;
+			if ( keys.length != values.length )
+				return null;
+			final int mask = keys.length - 1;
+			for ( int i = ( int )hash & mask, n = 0; n <= mask; i = ( i + 1 ) & mask, ++n )
+			{
+				final Object value = values[ i ];
+				if ( value == null )
+					return null;
+				if ( keys[ i ] == key )
+					return value;
+			}
+			return null;
+		}
+		
+		/**
+		 * @return the slot of key or -1, call with the write lock held
+		 */
+		protected int slot( final long key, final long hash )
+		{
+			final int mask = keys.length - 1;
+			for ( int i = ( int )hash & mask; values[ i ] != null; i = ( i + 1 ) & mask )
+				if ( keys[ i ] == key )
+					return i;
+			return -1;
+		}
+		
+		/**
+		 * Insert a key that is not in the table, call with the write lock
+		 * held.
+		 */
+		protected void insert( final long key, final long hash, final Object value )
+		{
+			if ( ( size + 1 ) * 4 > keys.length * 3 )
+				resize( keys.length * 2 );
+			final int mask = keys.length - 1;
+			int i = ( int )hash & mask;
+			while ( values[ i ] != null )
+				i = ( i + 1 ) & mask;
+			keys[ i ] = key;
+			values[ i ] = value;
+			++size;
+		}
+		
+		protected void resize( final int capacity )
+		{
+			final long[] oldKeys = keys;
+			final Object[] oldValues = values;
+			final long[] newKeys = new long[ capacity ];
+			final Object[] newValues = new Object[ capacity ];
+			final int mask = capacity - 1;
+			for ( int j = 0; j < oldKeys.length; ++j )
+			{
+				if ( oldValues[ j ] != null )
+				{
+					int i = ( int )hash( oldKeys[ j ] ) & mask;
+					while ( newValues[ i ] != null )
+						i = ( i + 1 ) & mask;
+					newKeys[ i ] = oldKeys[ j ];
+					newValues[ i ] = oldValues[ j ];
+				}
+			}
+			keys = newKeys;
+			values = newValues;
+		}
+		
+		/**
+		 * Remove the entry at slot i and shift following entries of the
+		 * same probe sequence back, call with the write lock held.
+		 */
+		protected Object removeSlot( int i )
+		{
+			final Object value = values[ i ];
+			final int mask = keys.length - 1;
+			int j = i;
+			while ( true )
+			{
+				j = ( j + 1 ) & mask;
+				if ( values[ j ] == null )
+					break;
+				final int k = ( int )hash( keys[ j ] ) & mask;
+				/* move j to i unless its home slot k lies cyclically in ( i, j ] */
+				if ( i <= j ? ( i < k && k <= j ) : ( i < k || k <= j ) )
+					continue;
+				keys[ i ] = keys[ j ];
+				values[ i ] = values[ j ];
+				i = j;
+			}
+			values[ i ] = null;
+			--size;
+			return value;
+		}
+	}
+	
+	final static public int defaultNumSegments = 16;
+	
+	final protected Segment[] segments;
+	final protected int segmentMask;
+	
+	/**
+	 * @param numSegments number of independently locked segments, rounded
+	 * 		up to a power of two
+	 */
+	public ConcurrentLongHashMap( final int numSegments )
+	{
+		int n = 1;
+		while ( n < numSegments )
+			n <<= 1;
+		segments = new Segment[ n ];
+		for ( int i = 0; i < n; ++i )
+			segments[ i ] = new Segment( 16 );
+		segmentMask = n - 1;
+	}
+	
+	public ConcurrentLongHashMap()
+	{
+		this( defaultNumSegments );
+	}
+	
+	final static protected long hash( final long key )
+	{
+		final long h = key * 0x9e3779b97f4a7c15L;
+		return h ^ ( h >>> 32 );
+	}
+	
+	final protected Segment segment( final long hash )
+	{
+		return segments[ ( int )( hash >>> 40 ) & segmentMask ];
+	}
+	
+	@SuppressWarnings( "unchecked" )
+	public V get( final long key )
+	{
+		final long hash = hash( key );
+		final Segment segment = segment( hash );
+		long stamp = segment.tryOptimisticRead();
+		Object value = segment.find( key, hash );
+		if ( !segment.validate( stamp ) )
+		{
+			stamp = segment.readLock();
+			try
+			{
+				value = segment.find( key, hash );
+			}
+			finally
+			{
+				segment.unlockRead( stamp );
+			}
+		}
+		return ( V )value;
+	}
+	
+	public boolean containsKey( final long key )
+	{
+		return get( key ) != null;
+	}
+	
+	/**
+	 * @return the previous value for key or null
+	 */
+	@SuppressWarnings( "unchecked" )
+	public V put( final long key, final V value )
+	{
+		final long hash = hash( key );
+		final Segment segment = segment( hash );
+		final long stamp = segment.writeLock();
+		try
+		{
+			final int i = segment.slot( key, hash );
+			if ( i < 0 )
+			{
+				segment.insert( key, hash, value );
+				return null;
+			}
+			final Object old = segment.values[ i ];
+			segment.values[ i ] = value;
+			return ( V )old;
+		}
+		finally
+		{
+			segment.unlockWrite( stamp );
+		}
+	}
+	
+	/**
+	 * @return the value for key if there is one, null if value was stored
+	 */
+	@SuppressWarnings( "unchecked" )
+	public V putIfAbsent( final long key, final V value )
+	{
+		final long hash = hash( key );
+		final Segment segment = segment( hash );
+		final long stamp = segment.writeLock();
+		try
+		{
+			final int i = segment.slot( key, hash );
+			if ( i < 0 )
+			{
+				segment.insert( key, hash, value );
+				return null;
+			}
+			return ( V )segment.values[ i ];
+		}
+		finally
+		{
+			segment.unlockWrite( stamp );
+		}
+	}
+	
+	/**
+	 * @return the removed value or null
+	 */
+	@SuppressWarnings( "unchecked" )
+	public V remove( final long key )
+	{
+		final long hash = hash( key );
+		final Segment segment = segment( hash );
+		final long stamp = segment.writeLock();
+		try
+		{
+			final int i = segment.slot( key, hash );
+			return i < 0 ? null : ( V )segment.removeSlot( i );
+		}
+		finally
+		{
+			segment.unlockWrite( stamp );
+		}
+	}
+	
+	/**
+	 * Remove key only if it is mapped to value (by identity).
+	 * 
+	 * @return true if the mapping was removed
+	 */
+	public boolean remove( final long key, final V value )
+	{
+		final long hash = hash( key );
+		final Segment segment = segment( hash );
+		final long stamp = segment.writeLock();
+		try
+		{
+			final int i = segment.slot( key, hash );
+			if ( i < 0 || segment.values[ i ] != value )
+				return false;
+			segment.removeSlot( i );
+			return true;
+		}
+		finally
+		{
+			segment.unlockWrite( stamp );
+		}
+	}
+	
+	public int size()
+	{
+		int size = 0;
+		for ( final Segment segment : segments )
+		{
+			final long stamp = segment.readLock();
+			size += segment.size;
+			segment.unlockRead( stamp );
+		}
+		return size;
+	}
+	
+	public void clear()
+	{
+		for ( final Segment segment : segments )
+		{
+			final long stamp = segment.writeLock();
+			try
+			{
+				segment.keys = new long[ 16 ];
+				segment.values = new Object[ 16 ];
+				segment.size = 0;
+			}
+			finally
+			{
+				segment.unlockWrite( stamp );
+			}
+		}
+	}
+}
@@ -0,0 +1,357 @@
+/*
+ * #%L
+ * ImgLib2: a general-purpose, multidimensional image processing library.
+ * %%
+ * Copyright (C) 2009 - 2016 Tobias Pietzsch, Stephan Preibisch, Stephan Saalfeld,
+ * John Bogovic, Albert Cardona, Barry DeZonia, Christian Dietz, Jan Funke,
+ * Aivar Grislis, Jonathan Hale, Grant Harris, Stefan Helfrich, Mark Hiner,
+ * Martin Horn, Steffen Jaensch, Lee Kamentsky, Larry Lindsey, Melissa Linkert,
+ * Mark Longair, Brian Northan, Nick Perry, Curtis Rueden, Johannes Schindelin,
+ * Jean-Yves Tinevez and Michael Zinsmaier.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package interactive.remote.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.UUID;
+
+/**
+ * <p>Persistent second level cache that stores decoded tiles or cells in
+ * memory-mapped files.  Each dataset (e.g. a base URL and a scale level)
+ * gets its own directory of fixed-size slot files, a cache hit is a copy
+ * from the page cache instead of a download and decode.</p>
+ * 
+ * <p>Every slot starts with a header of a long key, the payload length and a
+ * valid marker, followed by the payload.  The index of which key lives in
+ * which slot is not stored separately but rebuilt from the headers when the
+ * cache is opened, so the cache survives restarts.  When all slots are
+ * taken, slots are recycled in CLOCK order.</p>
+ * 
+ * <p>Slots are read and written under striped locks, such that copies of
+ * different slots do not wait for each other.  Only the allocation of a
+ * slot for a new key is serialized.  A slot may be recycled between the
+ * lookup and the copy, so readers check the key in the header under the
+ * slot lock.</p>
+ * 
+ * @author Stephan Saalfeld
+ */
+public class DiskCache
+{
+	final static protected int HEADER_BYTES = 16;
+	final static protected int VALID = 0x7ca4e;
+	final static protected long MAX_FILE_BYTES = 1L << 30;
+	final static protected int MAX_LOCKS = 64;
+	
+	final protected File directory;
+	final protected int payloadBytes;
+	final protected int slotBytes;
+	final protected int numSlots;
+	final protected int slotsPerFile;
+	
+	final protected ArrayList< MappedByteBuffer > files = new ArrayList< MappedByteBuffer >();
+	final protected ConcurrentLongHashMap< Integer > index = new ConcurrentLongHashMap< Integer >();
+	
+	/* guard the headers and payloads of the slots, slot % locks.length */
+	final protected Object[] locks;
+	
+	/* guarded by the cache */
+	final protected long[] keys;
+	final protected boolean[] used;
+	protected int hand = 0;
+	protected int numUsed = 0;
+	
+	/* set by readers without lock, a lost update only costs a CLOCK round */
+	final protected boolean[] referenced;
+	
+	/**
+	 * @param root directory that holds the caches of all datasets
+	 * @param dataset unique identifier of the dataset, e.g. its base URL and scale level
+	 * @param payloadBytes size of a single tile or cell in bytes
+	 * @param maxBytes maximum size of the cache on disk
+	 * 
+	 * @throws IOException
+	 */
+	public DiskCache( final File root, final String dataset, final int payloadBytes, final long maxBytes ) throws IOException
+	{
+		directory = new File( root, UUID.nameUUIDFromBytes( dataset.getBytes( StandardCharsets.UTF_8 ) ).toString() );
+		if ( !directory.isDirectory() && !directory.mkdirs() )
+			throw new IOException( "Could not create cache directory " + directory );
+		
+		this.payloadBytes = payloadBytes;
+		slotBytes = HEADER_BYTES + payloadBytes;
+		numSlots = ( int )Math.max( 1, Math.min( Integer.MAX_VALUE, maxBytes / slotBytes ) );
+		slotsPerFile = ( int )Math.max( 1, MAX_FILE_BYTES / slotBytes );
+		keys = new long[ numSlots ];
+		used = new boolean[ numSlots ];
+		referenced = new boolean[ numSlots ];
+		locks = new Object[ Math.min( numSlots, MAX_LOCKS ) ];
+		for ( int i = 0; i < locks.length; ++i )
+			locks[ i ] = new Object();
+		
+		for ( int firstSlot = 0, i = 0; firstSlot < numSlots; firstSlot += slotsPerFile, ++i )
+		{
+			final long fileBytes = ( long )Math.min( slotsPerFile, numSlots - firstSlot ) * slotBytes;
+			final RandomAccessFile file = new RandomAccessFile( new File( directory, "slots-" + i + "-" + slotBytes ), "rw" );
+			try
+			{
+				file.setLength( fileBytes );
+				files.add( file.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, fileBytes ) );
+			}
+			finally
+			{
+				/* the mapping stays valid after closing the file */
+				file.close();
+			}
+		}
+		
+		for ( int slot = 0; slot < numSlots; ++slot )
+		{
+			final ByteBuffer buffer = slotBuffer( slot );
+			final long key = buffer.getLong();
+			final int length = buffer.getInt();
+			final int valid = buffer.getInt();
+			if ( valid == VALID && length == payloadBytes && !index.containsKey( key ) )
+			{
+				keys[ slot ] = key;
+				used[ slot ] = true;
+				index.put( key, slot );
+				++numUsed;
+			}
+		}
+	}
+	
+	/**
+	 * @return a buffer positioned at the header of slot
+	 */
+	protected ByteBuffer slotBuffer( final int slot )
+	{
+		final ByteBuffer buffer = files.get( slot / slotsPerFile ).duplicate();
+		buffer.position( ( slot % slotsPerFile ) * slotBytes );
+		return buffer;
+	}
+	
+	protected Object lock( final int slot )
+	{
+		return locks[ slot % locks.length ];
+	}
+	
+	/**
+	 * Find a slot for a new key, recycling the least recently used slot if
+	 * all slots are taken.  Must be called with the monitor of the cache.
+	 */
+	protected int allocate()
+	{
+		while ( true )
+		{
+			final int slot = hand;
+			hand = ( hand + 1 ) % numSlots;
+			if ( !used[ slot ] )
+				return slot;
+			if ( numUsed < numSlots )
+				continue;
+			if ( referenced[ slot ] )
+				referenced[ slot ] = false;
+			else
+			{
+				index.remove( keys[ slot ] );
+				used[ slot ] = false;
+				--numUsed;
+				return slot;
+			}
+		}
+	}
+	
+	/**
+	 * Must be called with the lock of slot.
+	 * 
+	 * @return a buffer positioned at the payload of slot or null if slot
+	 * 		does not store key (anymore)
+	 */
+	protected ByteBuffer readBuffer( final int slot, final long key )
+	{
+		final ByteBuffer buffer = slotBuffer( slot );
+		final int position = buffer.position();
+		if ( buffer.getLong( position ) != key || buffer.getInt( position + 12 ) != VALID )
+			return null;
+		referenced[ slot ] = true;
+		buffer.position( position + HEADER_BYTES );
+		return buffer;
+	}
+	
+	/**
+	 * Find or reserve the slot for key.
+	 */
+	synchronized protected int slot( final long key )
+	{
+		Integer slot = index.get( key );
+		if ( slot == null )
+		{
+			slot = allocate();
+			keys[ slot ] = key;
+			used[ slot ] = true;
+			index.put( key, slot );
+			++numUsed;
+		}
+		referenced[ slot ] = true;
+		return slot;
+	}
+	
+	/**
+	 * Invalidate the header of slot, the header is written by
+	 * {@link #commit(ByteBuffer, long)} after the payload.  Must be called
+	 * with the lock of slot.
+	 * 
+	 * @return a buffer positioned at the header of slot
+	 */
+	protected ByteBuffer writeBuffer( final int slot )
+	{
+		final ByteBuffer buffer = slotBuffer( slot );
+		buffer.putInt( buffer.position() + 12, 0 );
+		return buffer;
+	}
+	
+	protected void commit( final ByteBuffer header, final long key )
+	{
+		header.putLong( key );
+		header.putInt( payloadBytes );
+		header.putInt( VALID );
+	}
+	
+	/**
+	 * Copy the cached payload for key into data.
+	 * 
+	 * @return true if key was cached, false otherwise
+	 */
+	public boolean read( final long key, final byte[] data )
+	{
+		final Integer slot = index.get( key );
+		if ( slot == null )
+			return false;
+		synchronized ( lock( slot ) )
+		{
+			final ByteBuffer buffer = readBuffer( slot, key );
+			if ( buffer == null )
+				return false;
+			buffer.get( data, 0, Math.min( data.length, payloadBytes ) );
+			return true;
+		}
+	}
+	
+	/**
+	 * Copy the cached payload for key into data.
+	 * 
+	 * @return true if key was cached, false otherwise
+	 */
+	public boolean read( final long key, final int[] data )
+	{
+		final Integer slot = index.get( key );
+		if ( slot == null )
+			return false;
+		synchronized ( lock( slot ) )
+		{
+			final ByteBuffer buffer = readBuffer( slot, key );
+			if ( buffer == null )
+				return false;
+			buffer.asIntBuffer().get( data, 0, Math.min( data.length, payloadBytes / 4 ) );
+			return true;
+		}
+	}
+	
+	public void write( final long key, final byte[] data )
+	{
+		final int slot = slot( key );
+		synchronized ( lock( slot ) )
+		{
+			final ByteBuffer header = writeBuffer( slot );
+			final ByteBuffer payload = header.duplicate();
+			payload.position( header.position() + HEADER_BYTES );
+			payload.put( data, 0, Math.min( data.length, payloadBytes ) );
+			commit( header, key );
+		}
+	}
+	
+	public void write( final long key, final int[] data )
+	{
+		final int slot = slot( key );
+		synchronized ( lock( slot ) )
+		{
+			final ByteBuffer header = writeBuffer( slot );
+			final ByteBuffer payload = header.duplicate();
+			payload.position( header.position() + HEADER_BYTES );
+			payload.asIntBuffer().put( data, 0, Math.min( data.length, payloadBytes / 4 ) );
+			commit( header, key );
+		}
+	}
+	
+	/**
+	 * @return true if a slot is reserved for key, its payload may still be
+	 * 		in the making
+	 */
+	public boolean contains( final long key )
+	{
+		return index.containsKey( key );
+	}
+	
+	synchronized public int size()
+	{
+		return numUsed;
+	}
+	
+	public long maxBytes()
+	{
+		return ( long )numSlots * slotBytes;
+	}
+	
+	/**
+	 * Write all changes through to disk.
+	 */
+	synchronized public void flush()
+	{
+		for ( final MappedByteBuffer file : files )
+			file.force();
+	}
+}
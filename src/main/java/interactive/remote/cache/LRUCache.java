@@ -0,0 +1,224 @@
+/*
+ * #%L
+ * ImgLib2: a general-purpose, multidimensional image processing library.
+ * %%
+ * Copyright (C) 2009 - 2016 Tobias Pietzsch, Stephan Preibisch, Stephan Saalfeld,
+ * John Bogovic, Albert Cardona, Barry DeZonia, Christian Dietz, Jan Funke,
+ * Aivar Grislis, Jonathan Hale, Grant Harris, Stefan Helfrich, Mark Hiner,
+ * Martin Horn, Steffen Jaensch, Lee Kamentsky, Larry Lindsey, Melissa Linkert,
+ * Mark Longair, Brian Northan, Nick Perry, Curtis Rueden, Johannes Schindelin,
+ * Jean-Yves Tinevez and Michael Zinsmaier.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package interactive.remote.cache;
+
+import java.util.function.Consumer;
+
+/**
+ * {@link Cache} that evicts the least recently used values first.  Values
+ * are kept in a {@link ConcurrentLongHashMap} and an access ordered
+ * doubly linked list.  All operations are synchronized on the cache.
+ * 
+ * @author Stephan Saalfeld
+ */
+public class LRUCache< V > implements Cache< V >
+{
+	final static protected class Node< V >
+	{
+		final public long key;
+		final public V value;
+		final public long bytes;
+		
+		public Node< V > previous, next;
+		
+		public Node( final long key, final V value, final long bytes )
+		{
+			this.key = key;
+			this.value = value;
+			this.bytes = bytes;
+		}
+	}
+	
+	final protected ConcurrentLongHashMap< Node< V > > map = new ConcurrentLongHashMap< Node< V > >( 1 );
+	
+	/* sentinel of the access ordered list, head.next is the eldest node */
+	final protected Node< V > head = new Node< V >( 0, null, 0 );
+	
+	final protected long maxBytes;
+	protected long bytes = 0;
+	protected volatile long evictions = 0;
+	protected volatile Consumer< ? super V > removalListener = null;
+	
+	public LRUCache( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+		head.previous = head;
+		head.next = head;
+	}
+	
+	protected void unlink( final Node< V > node )
+	{
+		node.previous.next = node.next;
+		node.next.previous = node.previous;
+	}
+	
+	protected void append( final Node< V > node )
+	{
+		node.previous = head.previous;
+		node.next = head;
+		head.previous.next = node;
+		head.previous = node;
+	}
+	
+	@Override
+	synchronized public V get( final long key )
+	{
+		final Node< V > node = map.get( key );
+		if ( node == null )
+			return null;
+		unlink( node );
+		append( node );
+		return node.value;
+	}
+	
+	@Override
+	synchronized public void put( final long key, final V value, final long bytes )
+	{
+		final Node< V > node = new Node< V >( key, value, bytes );
+		final Node< V > old = map.put( key, node );
+		if ( old != null )
+		{
+			unlink( old );
+			this.bytes -= old.bytes;
+			removed( old );
+		}
+		append( node );
+		this.bytes += bytes;
+		evict();
+	}
+	
+	@Override
+	synchronized public V putIfAbsent( final long key, final V value, final long bytes )
+	{
+		final V old = get( key );
+		if ( old != null )
+			return old;
+		put( key, value, bytes );
+		return null;
+	}
+	
+	@Override
+	synchronized public V remove( final long key )
+	{
+		final Node< V > old = map.remove( key );
+		if ( old == null )
+			return null;
+		unlink( old );
+		bytes -= old.bytes;
+		removed( old );
+		return old.value;
+	}
+	
+	@Override
+	synchronized public void clear()
+	{
+		final Consumer< ? super V > listener = removalListener;
+		if ( listener != null )
+			for ( Node< V > node = head.next; node != head; node = node.next )
+				listener.accept( node.value );
+		map.clear();
+		head.previous = head;
+		head.next = head;
+		bytes = 0;
+	}
+	
+	@Override
+	synchronized public int size()
+	{
+		return map.size();
+	}
+	
+	@Override
+	synchronized public long bytes()
+	{
+		return bytes;
+	}
+	
+	@Override
+	public long maxBytes()
+	{
+		return maxBytes;
+	}
+	
+	@Override
+	public long evictions()
+	{
+		return evictions;
+	}
+	
+	@Override
+	public void setRemovalListener( final Consumer< ? super V > listener )
+	{
+		removalListener = listener;
+	}
+	
+	protected void removed( final Node< V > node )
+	{
+		final Consumer< ? super V > listener = removalListener;
+		if ( listener != null )
+			listener.accept( node.value );
+	}
+	
+	/**
+	 * Remove eldest entries until the budget is met.
+	 */
+	protected void evict()
+	{
+		while ( bytes > maxBytes && head.next != head )
+		{
+			final Node< V > eldest = head.next;
+			unlink( eldest );
+			map.remove( eldest.key );
+			bytes -= eldest.bytes;
+			++evictions;
+			removed( eldest );
+		}
+	}
+}
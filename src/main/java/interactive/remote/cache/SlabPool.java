@@ -0,0 +1,228 @@
+/*
+ * #%L
+ * ImgLib2: a general-purpose, multidimensional image processing library.
+ * %%
+ * Copyright (C) 2009 - 2016 Tobias Pietzsch, Stephan Preibisch, Stephan Saalfeld,
+ * John Bogovic, Albert Cardona, Barry DeZonia, Christian Dietz, Jan Funke,
+ * Aivar Grislis, Jonathan Hale, Grant Harris, Stefan Helfrich, Mark Hiner,
+ * Martin Horn, Steffen Jaensch, Lee Kamentsky, Larry Lindsey, Melissa Linkert,
+ * Mark Longair, Brian Northan, Nick Perry, Curtis Rueden, Johannes Schindelin,
+ * Jean-Yves Tinevez and Michael Zinsmaier.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package interactive.remote.cache;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Fixed size blocks of direct memory, e.g. for cached cells that should
+ * neither occupy the heap nor be scanned by the garbage collector.  Blocks
+ * are cut from large direct {@link ByteBuffer} slabs that are allocated on
+ * demand up to a total budget and never freed.
+ * 
+ * A block is acquired for an owner object and has to be returned with
+ * {@link #release(int)} when the owner is done with it.  Blocks of owners
+ * that were garbage collected without releasing them are reclaimed by
+ * later calls to {@link #acquire(Object)}.
+ * 
+ * @author Stephan Saalfeld
+ */
+public class SlabPool
+{
+	final static public int defaultSlabBytes = 1 << 26;
+	
+	final static protected class Owner extends PhantomReference< Object >
+	{
+		final public int block;
+		
+		public Owner( final Object owner, final ReferenceQueue< Object > queue, final int block )
+		{
+			super( owner, queue );
+			this.block = block;
+		}
+	}
+	
+	final protected int blockBytes;
+	final protected int blocksPerSlab;
+	final protected int maxBlocks;
+	
+	final protected ArrayList< ByteBuffer > slabs = new ArrayList< ByteBuffer >();
+	
+	/* views of all blocks cut so far, indexed by block */
+	final protected ByteBuffer[] blocks;
+	
+	/* owners of blocks in use, null for free blocks */
+	final protected Owner[] owners;
+	final protected ReferenceQueue< Object > queue = new ReferenceQueue< Object >();
+	
+	/* stack of free blocks */
+	final protected int[] free;
+	protected int numFree = 0;
+	protected int numBlocks = 0;
+	
+	final protected byte[] zeros;
+	
+	/**
+	 * @param blockBytes size of a block
+	 * @param maxBytes maximum size of all slabs together
+	 * @param slabBytes size of a slab, rounded down to a multiple of blockBytes
+	 */
+	public SlabPool( final int blockBytes, final long maxBytes, final int slabBytes )
+	{
+		this.blockBytes = blockBytes;
+		blocksPerSlab = Math.max( 1, slabBytes / blockBytes );
+		maxBlocks = ( int )Math.min( Integer.MAX_VALUE - 8, maxBytes / blockBytes );
+		blocks = new ByteBuffer[ maxBlocks ];
+		owners = new Owner[ maxBlocks ];
+		free = new int[ maxBlocks ];
+		zeros = new byte[ Math.min( blockBytes, 65536 ) ];
+	}
+	
+	public SlabPool( final int blockBytes, final long maxBytes )
+	{
+		this( blockBytes, maxBytes, defaultSlabBytes );
+	}
+	
+	/**
+	 * Acquire a zeroed block for owner.
+	 * 
+	 * @return the index of the block or -1 if the budget is exhausted
+	 */
+	synchronized public int acquire( final Object owner )
+	{
+		reclaim();
+		final int block;
+		if ( numFree > 0 )
+			block = free[ --numFree ];
+		else if ( numBlocks < maxBlocks )
+			block = cut();
+		else
+			return -1;
+		owners[ block ] = new Owner( owner, queue, block );
+		
+		final ByteBuffer buffer = blocks[ block ].duplicate();
+		buffer.clear();
+		while ( buffer.hasRemaining() )
+			buffer.put( zeros, 0, Math.min( zeros.length, buffer.remaining() ) );
+		return block;
+	}
+	
+	/**
+	 * Return a block to the pool.  Releasing a free block has no effect.
+	 */
+	synchronized public void release( final int block )
+	{
+		final Owner owner = owners[ block ];
+		if ( owner == null )
+			return;
+		owner.clear();
+		owners[ block ] = null;
+		free[ numFree++ ] = block;
+	}
+	
+	/**
+	 * @return the block as a buffer of {@link #blockBytes()} bytes.  The
+	 * buffer is shared, use absolute reads or a
+	 * {@link ByteBuffer#duplicate() duplicate}.
+	 */
+	public ByteBuffer buffer( final int block )
+	{
+		return blocks[ block ];
+	}
+	
+	public int blockBytes()
+	{
+		return blockBytes;
+	}
+	
+	public long maxBytes()
+	{
+		return ( long )maxBlocks * blockBytes;
+	}
+	
+	/**
+	 * @return the size of all slabs allocated so far
+	 */
+	synchronized public long bytes()
+	{
+		return ( long )numBlocks * blockBytes;
+	}
+	
+	/**
+	 * @return the number of blocks in use
+	 */
+	synchronized public int size()
+	{
+		return numBlocks - numFree;
+	}
+	
+	/**
+	 * Cut a new block from the current slab, allocating a new slab if the
+	 * current one is used up.
+	 */
+	protected int cut()
+	{
+		final int block = numBlocks++;
+		final int offset = block % blocksPerSlab;
+		if ( offset == 0 )
+			slabs.add( ByteBuffer.allocateDirect( Math.min( blocksPerSlab, maxBlocks - block ) * blockBytes ) );
+		final ByteBuffer slab = slabs.get( slabs.size() - 1 ).duplicate();
+		slab.position( offset * blockBytes );
+		slab.limit( ( offset + 1 ) * blockBytes );
+		blocks[ block ] = slab.slice();
+		return block;
+	}
+	
+	/**
+	 * Release the blocks of owners that have been garbage collected.
+	 */
+	protected void reclaim()
+	{
+		for ( Owner owner = ( Owner )queue.poll(); owner != null; owner = ( Owner )queue.poll() )
+			if ( owners[ owner.block ] == owner )
+			{
+				owners[ owner.block ] = null;
+				free[ numFree++ ] = owner.block;
+			}
+	}
+}
@@ -0,0 +1,913 @@
+/*
+ * #%L
+ * ImgLib2: a general-purpose, multidimensional image processing library.
+ * %%
+ * Copyright (C) 2009 - 2016 Tobias Pietzsch, Stephan Preibisch, Stephan Saalfeld,
+ * John Bogovic, Albert Cardona, Barry DeZonia, Christian Dietz, Jan Funke,
+ * Aivar Grislis, Jonathan Hale, Grant Harris, Stefan Helfrich, Mark Hiner,
+ * Martin Horn, Steffen Jaensch, Lee Kamentsky, Larry Lindsey, Melissa Linkert,
+ * Mark Longair, Brian Northan, Nick Perry, Curtis Rueden, Johannes Schindelin,
+ * Jean-Yves Tinevez and Michael Zinsmaier.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package interactive.remote.catmaid;
+
+import interactive.remote.AbstractRemoteRandomAccessibleInterval;
+import interactive.remote.DecoderPool;
+import interactive.remote.FetcherPool;
+import interactive.remote.cache.Cache;
+import interactive.remote.cache.ClockCache;
+import interactive.remote.cache.DiskCache;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.util.function.BooleanSupplier;
+
+import net.imglib2.AbstractLocalizable;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.NumericType;
+
+/**
+ * Common base of {@link RandomAccessibleInterval RandomAccessibleIntervals}
+ * that generate their pixel values from a CATMAID remote data set.  Tiles
+ * are identified by their linear index and stored as ARGB int[] or, for
+ * gray data sets, as 8-bit byte[].
+ * 
+ * @author Stephan Saalfeld
+ */
+abstract public class AbstractCATMAIDRandomAccessibleInterval< T extends NumericType< T >, E extends AbstractRemoteRandomAccessibleInterval< T, E >.Entry > extends AbstractRemoteRandomAccessibleInterval< T, E >
+{
+	abstract public class AbstractCATMAIDRandomAccess extends AbstractLocalizable implements RandomAccess< T >
+	{
+		protected long r, c;
+		protected int xMod, yMod;
+		final T t;
+		
+		/* the previously fetched tile and the last direction in z for prefetching */
+		protected long lastR, lastC, lastZ;
+		protected long zDirection = 1;
+		
+		/* the current and the previously visited tile, going back and forth
+		 * across a tile border does not need a cache lookup */
+		protected E entry, previousEntry;
+		protected long key = -1, previousKey = -1;
+
+		public AbstractCATMAIDRandomAccess( final T t )
+		{
+			super( 3 );
+			this.t = t;
+			fetchPixels();
+		}
+		
+		public AbstractCATMAIDRandomAccess( final AbstractCATMAIDRandomAccess template )
+		{
+			super( 3 );
+			
+			t = template.t.copy();
+			
+			position[ 0 ] = template.position[ 0 ];
+			position[ 1 ] = template.position[ 1 ];
+			position[ 2 ] = template.position[ 2 ];
+			
+			r = template.r;
+			c = template.c;
+			
+			xMod = template.xMod;
+			yMod = template.yMod;
+			
+			lastR = template.lastR;
+			lastC = template.lastC;
+			lastZ = template.lastZ;
+			zDirection = template.zDirection;
+			
+			entry = template.entry;
+			previousEntry = template.previousEntry;
+			key = template.key;
+			previousKey = template.previousKey;
+		}
+		
+		abstract protected void fetchPixels();
+		
+		/**
+		 * Set {@link #entry} to the current tile, swapping with the previous
+		 * tile if the access moved back to it.  All tiles outside of the data
+		 * set share key -1 and the blank tile.  Tiles that could not be
+		 * loaded are shown blank and, because the blank tile's key is -1,
+		 * requested again when the access comes back to them.  Invalid
+		 * placeholders are looked up again because they may have been
+		 * cancelled and dropped from the cache in the meantime.
+		 */
+		protected void fetchEntry()
+		{
+			final long z = position[ 2 ];
+			final long index = index( r, c, z );
+			final E swap = entry;
+			if ( index == previousKey && previousEntry != null && previousEntry.isValid() )
+				entry = previousEntry;
+			else
+			{
+				try
+				{
+					entry = AbstractCATMAIDRandomAccessibleInterval.this.fetchPixels( r, c, z );
+				}
+				catch ( final UncheckedIOException e )
+				{
+					entry = blank();
+				}
+			}
+			previousEntry = swap;
+			previousKey = key;
+			key = entry.key;
+		}
+		
+		/**
+		 * Prefetch ahead of the movement from the previously fetched tile to
+		 * the current tile, to be called after fetching the current tile.
+		 */
+		protected void prefetch()
+		{
+			final long z = position[ 2 ];
+			final long dz = z - lastZ;
+			if ( dz != 0 )
+				zDirection = dz > 0 ? 1 : -1;
+			AbstractCATMAIDRandomAccessibleInterval.this.prefetch( r, c, z, r - lastR, c - lastC, dz, zDirection );
+			lastR = r;
+			lastC = c;
+			lastZ = z;
+		}
+		
+		@Override
+		public void fwd( final int d )
+		{
+			++position[ d ];
+			switch ( d )
+			{
+			case 0:
+				++xMod;
+				if ( xMod == tileWidth )
+				{
+					++c;
+					xMod = 0;
+					fetchPixels();
+				}
+				break;
+			case 1:
+				++yMod;
+				if ( yMod == tileHeight )
+				{
+					++r;
+					yMod = 0;
+					fetchPixels();
+				}
+				break;
+			default:
+				fetchPixels();
+			}
+		}
+
+		@Override
+		public void bck( final int d )
+		{
+			--position[ d ];
+			switch ( d )
+			{
+			case 0:
+				--xMod;
+				if ( xMod == -1 )
+				{
+					--c;
+					xMod = tileWidth - 1;
+					fetchPixels();
+				}
+				break;
+			case 1:
+				--yMod;
+				if ( yMod == -1 )
+				{
+					--r;
+					yMod = tileHeight - 1;
+					fetchPixels();
+				}
+				break;
+			default:
+				fetchPixels();
+			}
+		}
+
+		@Override
+		public void move( final int distance, final int d )
+		{
+			move( ( long )distance, d );
+		}
+
+		@Override
+		public void move( final long distance, final int d )
+		{
+			position[ d ] += distance;
+			switch ( d )
+			{
+			case 0:
+				final long c1 = position[ 0 ] / tileWidth;
+				if ( c1 == c )
+					xMod -= distance;
+				else
+				{
+					c = c1;
+					xMod = ( int )( position[ 0 ] - c1 * tileWidth );
+					fetchPixels();
+				}
+				break;
+			case 1:
+				final long r1 = position[ 1 ] / tileHeight;
+				if ( r1 == r )
+					yMod -= distance;
+				else
+				{
+					r = r1;
+					yMod = ( int )( position[ 1 ] - r1 * tileHeight );
+					fetchPixels();
+				}
+				break;
+			default:
+				fetchPixels();
+			}
+		}
+
+		@Override
+		public void move( final Localizable localizable )
+		{
+			boolean updatePixels = false;
+			
+			final long dx = localizable.getLongPosition( 0 );
+			final long dy = localizable.getLongPosition( 1 );
+			
+			position[ 0 ] += dx;
+			position[ 1 ] += dy;
+			
+			final long c1 = position[ 0 ] / tileWidth;
+			if ( c1 == c )
+				xMod += dx;
+			else
+			{
+				c = c1;
+				xMod = ( int )( position[ 0 ] - c1 * tileWidth );
+				updatePixels = true;
+			}
+			
+			final long r1 = position[ 1 ] / tileHeight;
+			if ( r1 == r )
+				yMod += dy;
+			else
+			{
+				r = r1;
+				yMod = ( int )( position[ 1 ] - r1 * tileHeight );
+				updatePixels = true;
+			}
+			
+			for ( int d = 2; d < numDimensions(); ++d )
+			{
+				final long distance = localizable.getLongPosition( d );
+				updatePixels |= distance != 0;
+				position[ d ] += distance;
+			}
+			
+			if ( updatePixels )
+				fetchPixels();
+		}
+
+		@Override
+		public void move( final int[] distance )
+		{
+			boolean updatePixels = false;
+			
+			position[ 0 ] += distance[ 0 ];
+			position[ 1 ] += distance[ 1 ];
+			
+			final long c1 = position[ 0 ] / tileWidth;
+			if ( c1 == c )
+				xMod += distance[ 0 ];
+			else
+			{
+				c = c1;
+				xMod = ( int )( position[ 0 ] - c1 * tileWidth );
+				updatePixels = true;
+			}
+			
+			final long r1 = position[ 1 ] / tileHeight;
+			if ( r1 == r )
+				yMod += distance[ 1 ];
+			else
+			{
+				r = r1;
+				yMod = ( int )( position[ 1 ] - r1 * tileHeight );
+				updatePixels = true;
+			}
+			
+			for ( int d = 2; d < numDimensions(); ++d )
+			{
+				updatePixels |= distance[ d ] != 0;
+				position[ d ] += distance[ d ];
+			}
+			
+			if ( updatePixels )
+				fetchPixels();
+		}
+
+		@Override
+		public void move( final long[] distance )
+		{
+			boolean updatePixels = false;
+			
+			position[ 0 ] += distance[ 0 ];
+			position[ 1 ] += distance[ 1 ];
+			
+			final long c1 = position[ 0 ] / tileWidth;
+			if ( c1 == c )
+				xMod += distance[ 0 ];
+			else
+			{
+				c = c1;
+				xMod = ( int )( position[ 0 ] - c1 * tileWidth );
+				updatePixels = true;
+			}
+			
+			final long r1 = position[ 1 ] / tileHeight;
+			if ( r1 == r )
+				yMod += distance[ 1 ];
+			else
+			{
+				r = r1;
+				yMod = ( int )( position[ 1 ] - r1 * tileHeight );
+				updatePixels = true;
+			}
+			
+			for ( int d = 2; d < numDimensions(); ++d )
+			{
+				updatePixels |= distance[ d ] != 0;
+				position[ d ] += distance[ d ];
+			}
+			
+			if ( updatePixels )
+				fetchPixels();
+		}
+
+		@Override
+		public void setPosition( final Localizable localizable )
+		{
+			boolean updatePixels = false;
+			
+			position[ 0 ] = localizable.getLongPosition( 0 );
+			position[ 1 ] = localizable.getLongPosition( 1 );
+			
+			final long c1 = position[ 0 ] / tileWidth;
+			xMod = ( int )( position[ 0 ] - c1 * tileWidth );
+			if ( c1 != c )
+			{
+				c = c1;
+				updatePixels = true;
+			}
+			
+			final long r1 = position[ 1 ] / tileHeight;
+			yMod = ( int )( position[ 1 ] - r1 * tileHeight );
+			if ( r1 != r )
+			{
+				r = r1;
+				updatePixels = true;
+			}
+			
+			for ( int d = 2; d < numDimensions(); ++d )
+			{
+				final long p = localizable.getLongPosition( d );
+				updatePixels |= position[ d ] != p;
+				position[ d ] = p;
+			}
+			
+			if ( updatePixels )
+				fetchPixels();
+		}
+
+		@Override
+		public void setPosition( final int[] pos )
+		{
+			boolean updatePixels = false;
+			
+			position[ 0 ] = pos[ 0 ];
+			position[ 1 ] = pos[ 1 ];
+			
+			final long c1 = position[ 0 ] / tileWidth;
+			xMod = ( int )( position[ 0 ] - c1 * tileWidth );
+			if ( c1 != c )
+			{
+				c = c1;
+				updatePixels = true;
+			}
+			
+			final long r1 = position[ 1 ] / tileHeight;
+			yMod = ( int )( position[ 1 ] - r1 * tileHeight );
+			if ( r1 != r )
+			{
+				r = r1;
+				updatePixels = true;
+			}
+			
+			for ( int d = 2; d < numDimensions(); ++d )
+			{
+				updatePixels |= position[ d ] != pos[ d ];
+				position[ d ] = pos[ d ];
+			}
+			
+			if ( updatePixels )
+				fetchPixels();
+		}
+
+		@Override
+		public void setPosition( final long[] pos )
+		{
+			boolean updatePixels = false;
+			
+			position[ 0 ] = pos[ 0 ];
+			position[ 1 ] = pos[ 1 ];
+			
+			final long c1 = position[ 0 ] / tileWidth;
+			xMod = ( int )( position[ 0 ] - c1 * tileWidth );
+			if ( c1 != c )
+			{
+				c = c1;
+				updatePixels = true;
+			}
+			
+			final long r1 = position[ 1 ] / tileHeight;
+			yMod = ( int )( position[ 1 ] - r1 * tileHeight );
+			if ( r1 != r )
+			{
+				r = r1;
+				updatePixels = true;
+			}
+			
+			for ( int d = 2; d < numDimensions(); ++d )
+			{
+				updatePixels |= position[ d ] != pos[ d ];
+				position[ d ] = pos[ d ];
+			}
+			
+			if ( updatePixels )
+				fetchPixels();
+		}
+
+		@Override
+		public void setPosition( final int pos, final int d )
+		{
+			switch ( d )
+			{
+			case 0:
+				final long c1 = position[ 0 ] / tileWidth;
+				xMod = ( int )( position[ 0 ] - c1 * tileWidth );
+				position[ d ] = pos;
+				if ( c1 != c )
+				{
+					c = c1;
+					fetchPixels();
+				}
+				break;
+			case 1:
+				final long r1 = position[ 1 ] / tileHeight;
+				yMod = ( int )( position[ 1 ] - r1 * tileHeight );
+				position[ d ] = pos;
+				if ( r1 != r )
+				{
+					r = r1;
+					fetchPixels();
+				}
+				break;
+			default:
+				if ( position[ d ] != pos )
+				{
+					position[ d ] = pos;
+					fetchPixels();
+				}
+				else
+					position[ d ] = pos;
+			}
+		}
+
+		@Override
+		public void setPosition( final long pos, final int d )
+		{
+			switch ( d )
+			{
+			case 0:
+				final long c1 = pos / tileWidth;
+				xMod = ( int )( pos - c1 * tileWidth );
+				position[ d ] = pos;
+				if ( c1 != c )
+				{
+					c = c1;
+					fetchPixels();
+				}
+				break;
+			case 1:
+				final long r1 = pos / tileHeight;
+				yMod = ( int )( pos - r1 * tileHeight );
+				position[ d ] = pos;
+				if ( r1 != r )
+				{
+					r = r1;
+					fetchPixels();
+				}
+				break;
+			default:
+				if ( position[ d ] != pos )
+				{
+					position[ d ] = pos;
+					fetchPixels();
+				}
+				else
+					position[ d ] = pos;
+			}
+		}
+
+	}
+	
+	/* JPEG decoders, borrowed for one load at a time */
+	final static protected DecoderPool< JPEGTileDecoder > decoders = new DecoderPool< JPEGTileDecoder >( JPEGTileDecoder::new, JPEGTileDecoder::dispose, FetcherPool.defaultNumFetchers );
+	
+	final protected String baseUrl;
+	final protected long rows, cols, s;
+	final protected int tileWidth, tileHeight;
+	
+	public AbstractCATMAIDRandomAccessibleInterval(
+			final String url,
+			final long width,
+			final long height,
+			final long depth,
+			final long s,
+			final int tileWidth,
+			final int tileHeight,
+			final Cache< E > cache )
+	{
+		super( 3, cache );
+		this.baseUrl = url;
+		this.tileWidth = tileWidth;
+		this.tileHeight = tileHeight;
+		this.s = s;
+		final double scale = 1.0 / Math.pow( 2, s );
+		cols = ( long )Math.ceil( scale * width / tileWidth );
+		rows = ( long )Math.ceil( scale * height / tileHeight );
+		max[ 0 ] = ( long )( width * scale ) - 1;
+		max[ 1 ] = ( long )( height * scale ) - 1;
+		max[ 2 ] = depth - 1;
+	}
+	
+	public AbstractCATMAIDRandomAccessibleInterval(
+			final String url,
+			final long width,
+			final long height,
+			final long depth,
+			final long s,
+			final int tileWidth,
+			final int tileHeight )
+	{
+		this( url, width, height, depth, s, tileWidth, tileHeight, new ClockCache< E >( defaultCacheBytes ) );
+	}
+	
+	/**
+	 * Load every tile in a thread of its own, at most maxPerHost at a time
+	 * for all sources on the same host.  Enough {@link JPEGTileDecoder}s for
+	 * these loads are kept for reuse.
+	 * 
+	 * @see FetcherPool#hostPermits(String, int)
+	 */
+	public void setThreadPerRequest( final int maxPerHost )
+	{
+		decoders.ensureMaxIdle( maxPerHost + FetcherPool.defaultNumFetchers );
+		setThreadPerRequest( FetcherPool.hostPermits( baseUrl, maxPerHost ) );
+	}
+	
+	/**
+	 * Keep decoded tiles in a {@link DiskCache} in directory that is shared by
+	 * all datasets and scale levels.
+	 * 
+	 * @param directory
+	 * @param maxBytes maximum size of the disk cache for this dataset and scale level
+	 * @throws IOException
+	 */
+	public void setDiskCache( final File directory, final long maxBytes ) throws IOException
+	{
+		setDiskCache( new DiskCache( directory, baseUrl + " " + s, 4 * tileWidth * tileHeight, maxBytes ) );
+	}
+	
+	/**
+	 * @return the size of a tile in pixels, 1 in z
+	 */
+	public int[] getCellDimensions()
+	{
+		return new int[]{ tileWidth, tileHeight, 1 };
+	}
+	
+	/**
+	 * @return the linear index of tile (r, c, z), -1 for all tiles outside
+	 * 		the data set, whose indices would otherwise alias tiles inside
+	 */
+	final public long index( final long r, final long c, final long z )
+	{
+		return contains( r, c, z ) ? ( z * rows + r ) * cols + c : -1;
+	}
+	
+	final public long column( final long index )
+	{
+		return index % cols;
+	}
+	
+	final public long row( final long index )
+	{
+		return ( index / cols ) % rows;
+	}
+	
+	final public long section( final long index )
+	{
+		return index / ( cols * rows );
+	}
+	
+	/**
+	 * @return true if tile (r, c, z) is inside the data set.  Tiles outside
+	 * are neither requested nor cached because their linear indices would
+	 * alias tiles inside.
+	 */
+	final public boolean contains( final long r, final long c, final long z )
+	{
+		return r >= 0 && r < rows && c >= 0 && c < cols && z >= 0 && z <= max[ 2 ];
+	}
+	
+	@Override
+	public int numDimensions()
+	{
+		return 3;
+	}
+
+	@Override
+	public RandomAccess< T > randomAccess( final Interval interval )
+	{
+		return randomAccess();
+	}
+	
+	/**
+	 * Prefetch the next {@link #prefetchDistance} tiles in the direction in
+	 * which an {@link AbstractCATMAIDRandomAccess} moved from its previous tile to
+	 * tile (r, c, z), and the tile in the next z-section.  Jumps over more
+	 * than one tile do not trigger prefetching along that axis.
+	 */
+	protected void prefetch(
+			final long r,
+			final long c,
+			final long z,
+			final long dr,
+			final long dc,
+			final long dz,
+			final long zDirection )
+	{
+		final int n = prefetchDistance;
+		if ( n <= 0 )
+			return;
+		
+		for ( int k = 1; k <= n; ++k )
+		{
+			if ( dc == 1 || dc == -1 )
+				prefetch( r, c + k * dc, z, k );
+			if ( dr == 1 || dr == -1 )
+				prefetch( r + k * dr, c, z, k );
+			if ( dz == 1 || dz == -1 )
+				prefetch( r, c, z + k * dz, k );
+		}
+		if ( dz == 0 && ( dr != 0 || dc != 0 ) )
+			prefetch( r, c, z + zDirection, 1 );
+	}
+	
+	protected void prefetch( final long r, final long c, final long z, final double priority )
+	{
+		if ( contains( r, c, z ) )
+			prefetch( index( r, c, z ), priority );
+	}
+	
+	protected E fetchPixels( final long r, final long c, final long z )
+	{
+		try
+		{
+			return fetchPixels2( r, c, z );
+		}
+		catch ( final OutOfMemoryError e )
+		{
+			System.gc();
+			return fetchPixels2( r, c, z );
+		}
+	}
+	
+	abstract protected E fetchPixels2( final long r, final long c, final long z );
+	
+	/**
+	 * @return the shared blank tile with key -1 for everything outside of
+	 * 		the data set
+	 */
+	abstract protected E blank();
+	
+	/**
+	 * @return the pixel array of entry, int[] or byte[]
+	 */
+	abstract protected Object data( final E entry );
+	
+	/**
+	 * Copy the box of size[0] &times; size[1] &times; size[2] pixels at min
+	 * into pixels, x fastest.  pixels is an array of the same type as the
+	 * tiles, int[] or byte[].  Tiles are requested from the prefetchers
+	 * ahead of the tile being copied such that they load concurrently.
+	 * 
+	 * @throws UncheckedIOException if a tile could not be loaded
+	 */
+	@Override
+	protected void read( final long[] min, final int[] size, final Object pixels )
+	{
+		final int bytesPerPixel = pixels instanceof int[] ? 4 : 1;
+		final long c0 = Math.floorDiv( min[ 0 ], tileWidth );
+		final long c1 = Math.floorDiv( min[ 0 ] + size[ 0 ] - 1, tileWidth );
+		final long r0 = Math.floorDiv( min[ 1 ], tileHeight );
+		final long r1 = Math.floorDiv( min[ 1 ] + size[ 1 ] - 1, tileHeight );
+		final long z0 = min[ 2 ];
+		final long nc = c1 - c0 + 1;
+		final long nr = r1 - r0 + 1;
+		final long numTiles = nc * nr * size[ 2 ];
+		final int readAhead = readAhead( ( long )bytesPerPixel * tileWidth * tileHeight );
+		
+		for ( long j = 1; j <= readAhead && j < numTiles; ++j )
+			prefetch( r0 + ( j / nc ) % nr, c0 + j % nc, z0 + j / ( nc * nr ), j );
+		for ( long i = 0; i < numTiles; ++i )
+		{
+			final long j = i + readAhead;
+			if ( i > 0 && j < numTiles )
+				prefetch( r0 + ( j / nc ) % nr, c0 + j % nc, z0 + j / ( nc * nr ), j );
+			
+			final long c = c0 + i % nc;
+			final long r = r0 + ( i / nc ) % nr;
+			final long z = z0 + i / ( nc * nr );
+			final Object data = data( fetchPixels( r, c, z ) );
+			
+			final long tileX = c * tileWidth;
+			final long tileY = r * tileHeight;
+			final long xa = Math.max( min[ 0 ], tileX );
+			final long xb = Math.min( min[ 0 ] + size[ 0 ], tileX + tileWidth );
+			final long ya = Math.max( min[ 1 ], tileY );
+			final long yb = Math.min( min[ 1 ] + size[ 1 ], tileY + tileHeight );
+			final int length = ( int )( xb - xa );
+			for ( long y = ya; y < yb; ++y )
+				System.arraycopy(
+						data,
+						( int )( ( y - tileY ) * tileWidth + xa - tileX ),
+						pixels,
+						( int )( ( ( z - z0 ) * size[ 1 ] + y - min[ 1 ] ) * size[ 0 ] + xa - min[ 0 ] ),
+						length );
+		}
+	}
+	
+	/**
+	 * Decodes a JPEG into the pixels of a tile.
+	 */
+	@FunctionalInterface
+	protected static interface TileDecode
+	{
+		public void decode( final JPEGTileDecoder decoder, final InputStream jpg ) throws IOException;
+	}
+	
+	/**
+	 * Decode a tile from the cold tier, read it from the {@link DiskCache},
+	 * or download and decode it and store the JPEG in the cold tier and the
+	 * pixels in the {@link DiskCache}.
+	 * 
+	 * @return true if the tile was loaded successfully
+	 */
+	protected boolean fetchPixels3( final int[] pixels, final long key )
+	{
+		final DiskCache diskCache = this.diskCache;
+		return fetchTile(
+				key,
+				( decoder, jpg ) -> decoder.decode( jpg, pixels, tileWidth, tileHeight ),
+				() -> diskCache != null && diskCache.read( key, pixels ),
+				() -> { if ( diskCache != null ) diskCache.write( key, pixels ); } );
+	}
+	
+	/**
+	 * Like {@link #fetchPixels3(int[], long)} for 8-bit gray tiles.
+	 */
+	protected boolean fetchPixels3( final byte[] pixels, final long key )
+	{
+		final DiskCache diskCache = this.diskCache;
+		return fetchTile(
+				key,
+				( decoder, jpg ) -> decoder.decode( jpg, pixels, tileWidth, tileHeight ),
+				() -> diskCache != null && diskCache.read( key, pixels ),
+				() -> { if ( diskCache != null ) diskCache.write( key, pixels ); } );
+	}
+	
+	/**
+	 * Load tile key through the cold tier, the disk cache and the server.
+	 * 
+	 * @param decode decodes a JPEG into the pixels
+	 * @param readDisk reads the pixels from the disk cache if they are there
+	 * @param writeDisk writes the pixels to the disk cache
+	 * @return true if the tile was loaded successfully
+	 */
+	protected boolean fetchTile( final long key, final TileDecode decode, final BooleanSupplier readDisk, final Runnable writeDisk )
+	{
+		final JPEGTileDecoder decoder = decoders.borrow();
+		try
+		{
+			return fetchTile( key, decode, readDisk, writeDisk, decoder );
+		}
+		finally
+		{
+			decoders.release( decoder );
+		}
+	}
+	
+	protected boolean fetchTile( final long key, final TileDecode decode, final BooleanSupplier readDisk, final Runnable writeDisk, final JPEGTileDecoder decoder )
+	{
+		final long c = column( key );
+		final long r = row( key );
+		final long z = section( key );
+		final Cache< byte[] > coldCache = this.coldCache;
+		if ( coldCache != null )
+		{
+			final byte[] jpg = coldCache.get( key );
+			if ( jpg != null )
+			{
+				final long t = System.nanoTime();
+				try
+				{
+					decode.decode( decoder, new ByteArrayInputStream( jpg ) );
+					metrics.decode( System.nanoTime() - t );
+					metrics.coldHit();
+					return true;
+				}
+				catch ( final IOException e )
+				{
+					coldCache.remove( key );
+				}
+			}
+		}
+		if ( readDisk.getAsBoolean() )
+		{
+			metrics.diskHit();
+			return true;
+		}
+		final String urlString =
+				new StringBuffer( baseUrl ).append( z ).append( "/" ).append( r ).append( "_" ).append( c ).append( "_" ).append( s ).append( ".jpg" ).toString();
+		final long t0 = System.nanoTime();
+		try ( final InputStream in = new URL( urlString ).openStream() )
+		{
+			decoder.read( in );
+			final long t1 = System.nanoTime();
+			metrics.download( t1 - t0 );
+			decode.decode( decoder, decoder.stream() );
+			metrics.decode( System.nanoTime() - t1 );
+			if ( coldCache != null )
+			{
+				final byte[] jpg = decoder.copyJPEG();
+				coldCache.put( key, jpg, jpg.length );
+			}
+			writeDisk.run();
+			return true;
+		}
+		catch (final IOException e)
+		{
+			metrics.failure();
+			System.out.println( "failed loading r=" + r + " c=" + c + " url(" + urlString + ")" );
+			return false;
+		}
+	}
+}
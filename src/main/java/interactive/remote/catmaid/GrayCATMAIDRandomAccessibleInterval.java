@@ -0,0 +1,239 @@
+/*
+ * #%L
+ * ImgLib2: a general-purpose, multidimensional image processing library.
+ * %%
+ * Copyright (C) 2009 - 2016 Tobias Pietzsch, Stephan Preibisch, Stephan Saalfeld,
+ * John Bogovic, Albert Cardona, Barry DeZonia, Christian Dietz, Jan Funke,
+ * Aivar Grislis, Jonathan Hale, Grant Harris, Stefan Helfrich, Mark Hiner,
+ * Martin Horn, Steffen Jaensch, Lee Kamentsky, Larry Lindsey, Melissa Linkert,
+ * Mark Longair, Brian Northan, Nick Perry, Curtis Rueden, Johannes Schindelin,
+ * Jean-Yves Tinevez and Michael Zinsmaier.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+package interactive.remote.catmaid;
+
+import interactive.remote.cache.Cache;
+import interactive.remote.cache.ClockCache;
+import interactive.remote.cache.DiskCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import ij.ImageJ;
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.Intervals;
+
+/**
+ * A read-only {@link RandomAccessibleInterval} of UnsignedByteTypes that
+ * generates its pixel values from a gray CATMAID remote data set.  Tiles are
+ * kept as 8-bit byte[] which takes a quarter of the memory of
+ * {@link CATMAIDRandomAccessibleInterval}.  Gray JPEGs are copied as they
+ * are, color JPEGs are converted to luma.
+ * 
+ * @author Stephan Saalfeld
+ */
+public class GrayCATMAIDRandomAccessibleInterval extends AbstractCATMAIDRandomAccessibleInterval< UnsignedByteType, GrayCATMAIDRandomAccessibleInterval.Entry >
+{
+	public class Entry extends AbstractCATMAIDRandomAccessibleInterval< UnsignedByteType, Entry >.Entry
+	{
+		final protected byte[] data;
+		
+		public Entry( final long key, final byte[] data )
+		{
+			super( key );
+			this.data = data;
+		}
+		
+		@Override
+		public long bytes()
+		{
+			return data.length;
+		}
+	}
+	
+	public class GrayCATMAIDRandomAccess extends AbstractCATMAIDRandomAccess
+	{
+		protected byte[] pixels;
+		
+		public GrayCATMAIDRandomAccess()
+		{
+			super( new UnsignedByteType() );
+		}
+		
+		public GrayCATMAIDRandomAccess( final GrayCATMAIDRandomAccess template )
+		{
+			super( template );
+			pixels = template.pixels;
+		}
+		
+		@Override
+		protected void fetchPixels()
+		{
+			fetchEntry();
+			pixels = entry.data;
+			prefetch();
+		}
+		
+		@Override
+		public UnsignedByteType get()
+		{
+			t.set( 0xff & pixels[ tileWidth * yMod + xMod ] );
+			return t;
+		}
+
+		@Override
+		public GrayCATMAIDRandomAccess copy()
+		{
+			return new GrayCATMAIDRandomAccess( this );
+		}
+
+		@Override
+		public GrayCATMAIDRandomAccess copyRandomAccess()
+		{
+			return copy();
+		}
+	}
+	
+	private Entry blank;
+	
+	public GrayCATMAIDRandomAccessibleInterval(
+			final String url,
+			final long width,
+			final long height,
+			final long depth,
+			final long s,
+			final int tileWidth,
+			final int tileHeight,
+			final Cache< Entry > cache )
+	{
+		super( url, width, height, depth, s, tileWidth, tileHeight, cache );
+	}
+	
+	public GrayCATMAIDRandomAccessibleInterval(
+			final String url,
+			final long width,
+			final long height,
+			final long depth,
+			final long s,
+			final int tileWidth,
+			final int tileHeight )
+	{
+		this( url, width, height, depth, s, tileWidth, tileHeight, new ClockCache< Entry >( defaultCacheBytes ) );
+	}
+	
+	@Override
+	public GrayCATMAIDRandomAccess randomAccess()
+	{
+		return new GrayCATMAIDRandomAccess();
+	}
+	
+	/**
+	 * Keep gray tiles in a {@link DiskCache} in directory.  They are stored
+	 * separately from the ARGB tiles of the same data set.
+	 */
+	@Override
+	public void setDiskCache( final File directory, final long maxBytes ) throws IOException
+	{
+		setDiskCache( new DiskCache( directory, baseUrl + " " + s + " gray", tileWidth * tileHeight, maxBytes ) );
+	}
+	
+	@Override
+	protected Entry fetchPixels2( final long r, final long c, final long z )
+	{
+		if ( !contains( r, c, z ) )
+			return blank();
+		try
+		{
+			return getOrLoad( index( r, c, z ) );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			return new Entry( -1, new byte[ tileWidth * tileHeight ] );
+		}
+	}
+	
+	@Override
+	protected byte[] data( final Entry entry )
+	{
+		return entry.data;
+	}
+	
+	@Override
+	protected Entry blank()
+	{
+		Entry blank = this.blank;
+		if ( blank == null )
+			this.blank = blank = new Entry( -1, new byte[ tileWidth * tileHeight ] );
+		return blank;
+	}
+	
+	/**
+	 * Download and decode a tile.
+	 * 
+	 * @throws UncheckedIOException if the tile could not be loaded, it is
+	 * 		not cached then
+	 */
+	@Override
+	protected Entry loadEntry( final long key ) throws InterruptedException
+	{
+		final byte[] pixels = new byte[ tileWidth * tileHeight ];
+		if ( !fetchPixels3( pixels, key ) )
+			throw loadFailed( key );
+		return new Entry( key, pixels );
+	}
+	
+	@Override
+	protected Class< ? > storageClass()
+	{
+		return byte[].class;
+	}
+	
+	final static public void main( final String[] args )
+	{
+		new ImageJ();
+		
+		final GrayCATMAIDRandomAccessibleInterval map = new GrayCATMAIDRandomAccessibleInterval(
+				"http://catmaid.mpi-cbg.de/map/c-elegans/",
+				6016,
+				4464,
+				803,
+				0,
+				256,
+				256 );
+		final ArrayImg< UnsignedByteType, ByteArray > img = ArrayImgs.unsignedBytes( 1024, 1024, 1 );
+		map.read( Intervals.createMinSize( 2048, 2048, 400, 1024, 1024, 1 ), img );
+		new ImagePlus( "map", new ByteProcessor( 1024, 1024, img.update( null ).getCurrentStorageArray() ) ).show();
+	}
+}
@@ -0,0 +1,290 @@
+/*
+ * #%L
+ * ImgLib2: a general-purpose, multidimensional image processing library.
+ * %%
+ * Copyright (C) 2009 - 2016 Tobias Pietzsch, Stephan Preibisch, Stephan Saalfeld,
+ * John Bogovic, Albert Cardona, Barry DeZonia, Christian Dietz, Jan Funke,
+ * Aivar Grislis, Jonathan Hale, Grant Harris, Stefan Helfrich, Mark Hiner,
+ * Martin Horn, Steffen Jaensch, Lee Kamentsky, Larry Lindsey, Melissa Linkert,
+ * Mark Longair, Brian Northan, Nick Perry, Curtis Rueden, Johannes Schindelin,
+ * Jean-Yves Tinevez and Michael Zinsmaier.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package interactive.remote.catmaid;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.PixelGrabber;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * <p>Decodes JPEG tiles into an ARGB int[] with a single pass over the
+ * decoded samples.  Gray and RGB tiles are decoded into reused byte rasters
+ * that are packed into the int[], gray values through a lookup table.  The
+ * lookup table reproduces the gamma transfer that Java2D applies when drawing a
+ * linear gray image into an sRGB image, so the result is identical to
+ * {@link #decodeAWT(BufferedImage, int[], int, int)}.  Other JPEGs, and
+ * tiles whose size does not match, take that slower path.</p>
+ * 
+ * <p>Tiles can also be decoded into 8-bit gray byte[]s.  Gray JPEGs are
+ * copied as they are, RGB JPEGs are converted to their luma.</p>
+ * 
+ * <p>A decoder holds an {@link ImageReader} and buffers and is not thread
+ * safe, use one per load at a time.</p>
+ * 
+ * @author Stephan Saalfeld
+ */
+public class JPEGTileDecoder
+{
+	final static protected int[] grayToARGB = createGrayToARGB();
+	
+	final protected ImageReader reader;
+	final protected ImageReadParam param;
+	protected BufferedImage gray = null, bgr = null;
+	
+	/* the last payload read with read( InputStream ) */
+	protected byte[] buffer = new byte[ 1 << 16 ];
+	protected int length = 0;
+	
+	public JPEGTileDecoder()
+	{
+		final Iterator< ImageReader > readers = ImageIO.getImageReadersByFormatName( "jpeg" );
+		reader = readers.next();
+		param = reader.getDefaultReadParam();
+	}
+	
+	/**
+	 * Draw all 256 gray values into an sRGB image and remember what comes out.
+	 */
+	static protected int[] createGrayToARGB()
+	{
+		final BufferedImage gray = new BufferedImage( 256, 1, BufferedImage.TYPE_BYTE_GRAY );
+		final byte[] values = ( ( DataBufferByte )gray.getRaster().getDataBuffer() ).getData();
+		for ( int i = 0; i < 256; ++i )
+			values[ i ] = ( byte )i;
+		final int[] lut = new int[ 256 ];
+		decodeAWT( gray, lut, 256, 1 );
+		return lut;
+	}
+	
+	/**
+	 * The reference path: draw into an sRGB image of tile size and grab its
+	 * pixels.
+	 */
+	static public void decodeAWT( final BufferedImage jpg, final int[] pixels, final int tileWidth, final int tileHeight )
+	{
+		final BufferedImage image = new BufferedImage( tileWidth, tileHeight, BufferedImage.TYPE_INT_RGB );
+		image.createGraphics().drawImage( jpg, 0, 0, null );
+		final PixelGrabber pg = new PixelGrabber( image, 0, 0, tileWidth, tileHeight, pixels, 0, tileWidth );
+		try
+		{
+			pg.grabPixels();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Read in completely into a reused buffer, such that download and decode
+	 * can be timed separately.
+	 */
+	public void read( final InputStream in ) throws IOException
+	{
+		length = 0;
+		for ( int l = in.read( buffer, 0, buffer.length ); l >= 0; l = in.read( buffer, length, buffer.length - length ) )
+		{
+			length += l;
+			if ( length == buffer.length )
+				buffer = Arrays.copyOf( buffer, buffer.length << 1 );
+		}
+	}
+	
+	/**
+	 * The reference path for gray tiles: draw into a gray image of tile
+	 * size and copy its samples.
+	 */
+	static public void decodeAWT( final BufferedImage jpg, final byte[] pixels, final int tileWidth, final int tileHeight )
+	{
+		final BufferedImage image = new BufferedImage( tileWidth, tileHeight, BufferedImage.TYPE_BYTE_GRAY );
+		image.createGraphics().drawImage( jpg, 0, 0, null );
+		System.arraycopy( ( ( DataBufferByte )image.getRaster().getDataBuffer() ).getData(), 0, pixels, 0, pixels.length );
+	}
+	
+	/**
+	 * @return a stream over the JPEG that was last read with
+	 * 		{@link #read(InputStream)}
+	 */
+	public InputStream stream()
+	{
+		return new ByteArrayInputStream( buffer, 0, length );
+	}
+	
+	/**
+	 * @return a copy of the JPEG that was last read with
+	 * 		{@link #read(InputStream)}
+	 */
+	public byte[] copyJPEG()
+	{
+		return Arrays.copyOf( buffer, length );
+	}
+	
+	/**
+	 * Decode the JPEG that was last read with {@link #read(InputStream)}.
+	 */
+	public void decode( final int[] pixels, final int tileWidth, final int tileHeight ) throws IOException
+	{
+		decode( stream(), pixels, tileWidth, tileHeight );
+	}
+	
+	/**
+	 * Decode a JPEG from in into pixels, opaque ARGB of size
+	 * tileWidth &times; tileHeight.
+	 */
+	public void decode( final InputStream in, final int[] pixels, final int tileWidth, final int tileHeight ) throws IOException
+	{
+		final BufferedImage image = decodeImage( in, tileWidth, tileHeight );
+		if ( image == gray )
+		{
+			final byte[] values = ( ( DataBufferByte )gray.getRaster().getDataBuffer() ).getData();
+			for ( int i = 0; i < pixels.length; ++i )
+				pixels[ i ] = grayToARGB[ values[ i ] & 0xff ];
+		}
+		else if ( image == bgr )
+		{
+			final byte[] values = ( ( DataBufferByte )bgr.getRaster().getDataBuffer() ).getData();
+			for ( int i = 0, j = 0; i < pixels.length; ++i, j += 3 )
+				pixels[ i ] = 0xff000000 | ( ( values[ j + 2 ] & 0xff ) << 16 ) | ( ( values[ j + 1 ] & 0xff ) << 8 ) | ( values[ j ] & 0xff );
+		}
+		else
+			decodeAWT( image, pixels, tileWidth, tileHeight );
+	}
+	
+	/**
+	 * Decode the JPEG that was last read with {@link #read(InputStream)}
+	 * into 8-bit gray values.
+	 */
+	public void decode( final byte[] pixels, final int tileWidth, final int tileHeight ) throws IOException
+	{
+		decode( stream(), pixels, tileWidth, tileHeight );
+	}
+	
+	/**
+	 * Decode a JPEG from in into pixels, 8-bit gray values of size
+	 * tileWidth &times; tileHeight.  RGB JPEGs are converted to their
+	 * Rec. 601 luma in fixed point.
+	 */
+	public void decode( final InputStream in, final byte[] pixels, final int tileWidth, final int tileHeight ) throws IOException
+	{
+		final BufferedImage image = decodeImage( in, tileWidth, tileHeight );
+		if ( image == gray )
+			System.arraycopy( ( ( DataBufferByte )gray.getRaster().getDataBuffer() ).getData(), 0, pixels, 0, pixels.length );
+		else if ( image == bgr )
+		{
+			final byte[] values = ( ( DataBufferByte )bgr.getRaster().getDataBuffer() ).getData();
+			for ( int i = 0, j = 0; i < pixels.length; ++i, j += 3 )
+				pixels[ i ] = ( byte )( ( 29 * ( values[ j ] & 0xff ) + 150 * ( values[ j + 1 ] & 0xff ) + 77 * ( values[ j + 2 ] & 0xff ) + 128 ) >> 8 );
+		}
+		else
+			decodeAWT( image, pixels, tileWidth, tileHeight );
+	}
+	
+	/**
+	 * Decode a JPEG from in.  Gray and RGB JPEGs of tile size are decoded
+	 * into the reused {@link #gray} or {@link #bgr} raster, everything else
+	 * into a new image by the {@link ImageReader}.
+	 * 
+	 * @return {@link #gray}, {@link #bgr}, or the new image
+	 */
+	protected BufferedImage decodeImage( final InputStream in, final int tileWidth, final int tileHeight ) throws IOException
+	{
+		final ImageInputStream iis = new MemoryCacheImageInputStream( in );
+		try
+		{
+			reader.setInput( iis, true, true );
+			BufferedImage image = null;
+			if ( reader.getWidth( 0 ) == tileWidth && reader.getHeight( 0 ) == tileHeight )
+			{
+				final ImageTypeSpecifier type = reader.getRawImageType( 0 );
+				final int bufferedImageType = type == null ? BufferedImage.TYPE_CUSTOM : type.getBufferedImageType();
+				if ( bufferedImageType == BufferedImage.TYPE_BYTE_GRAY )
+				{
+					if ( gray == null || gray.getWidth() != tileWidth || gray.getHeight() != tileHeight )
+						gray = new BufferedImage( tileWidth, tileHeight, BufferedImage.TYPE_BYTE_GRAY );
+					image = gray;
+				}
+				else if ( bufferedImageType == BufferedImage.TYPE_3BYTE_BGR )
+				{
+					if ( bgr == null || bgr.getWidth() != tileWidth || bgr.getHeight() != tileHeight )
+						bgr = new BufferedImage( tileWidth, tileHeight, BufferedImage.TYPE_3BYTE_BGR );
+					image = bgr;
+				}
+			}
+			param.setDestination( image );
+			return reader.read( 0, param );
+		}
+		finally
+		{
+			param.setDestination( null );
+			reader.setInput( null );
+			iis.close();
+		}
+	}
+	
+	/**
+	 * Release the native state of the {@link ImageReader}.
+	 */
+	public void dispose()
+	{
+		reader.dispose();
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * #%L
+ * ImgLib2: a general-purpose, multidimensional image processing library.
+ * %%
+ * Copyright (C) 2009 - 2016 Tobias Pietzsch, Stephan Preibisch, Stephan Saalfeld,
+ * John Bogovic, Albert Cardona, Barry DeZonia, Christian Dietz, Jan Funke,
+ * Aivar Grislis, Jonathan Hale, Grant Harris, Stefan Helfrich, Mark Hiner,
+ * Martin Horn, Steffen Jaensch, Lee Kamentsky, Larry Lindsey, Melissa Linkert,
+ * Mark Longair, Brian Northan, Nick Perry, Curtis Rueden, Johannes Schindelin,
+ * Jean-Yves Tinevez and Michael Zinsmaier.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package interactive.remote.catmaid;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Compares the per tile decode latency of {@link JPEGTileDecoder} with the
+ * previous path through {@link ImageIO#read(InputStream)}, drawing into an
+ * sRGB image and grabbing its pixels.  Without arguments, synthetic gray
+ * and RGB tiles of 256&times;256 pixels are used, otherwise the JPEG tiles
+ * at the given URLs.  Tiles are decoded from memory, so download time is
+ * not measured.
+ * 
+ * @author Stephan Saalfeld
+ */
+public class JPEGTileDecoderBenchmark
+{
+	final static int warmup = 200;
+	final static int iterations = 1000;
+	
+	static protected byte[] createTile( final int type, final int w, final int h ) throws IOException
+	{
+		final BufferedImage image = new BufferedImage( w, h, type );
+		final Random rnd = new Random( 0 );
+		for ( int y = 0; y < h; ++y )
+			for ( int x = 0; x < w; ++x )
+				image.setRGB( x, y, ( ( x * y ) / 64 + rnd.nextInt( 32 ) ) * 0x010203 );
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write( image, "jpg", out );
+		return out.toByteArray();
+	}
+	
+	static protected byte[] readTile( final String url ) throws IOException
+	{
+		try ( final InputStream in = new URL( url ).openStream() )
+		{
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final byte[] chunk = new byte[ 4096 ];
+			for ( int l = in.read( chunk ); l > 0; l = in.read( chunk ) )
+				out.write( chunk, 0, l );
+			return out.toByteArray();
+		}
+	}
+	
+	static protected double benchmarkAWT( final byte[] jpg, final int[] pixels, final int w, final int h, final int n ) throws IOException
+	{
+		final long t = System.nanoTime();
+		for ( int i = 0; i < n; ++i )
+			JPEGTileDecoder.decodeAWT( ImageIO.read( new ByteArrayInputStream( jpg ) ), pixels, w, h );
+		return ( System.nanoTime() - t ) / 1000.0 / n;
+	}
+	
+	static protected double benchmarkDirect( final JPEGTileDecoder decoder, final byte[] jpg, final int[] pixels, final int w, final int h, final int n ) throws IOException
+	{
+		final long t = System.nanoTime();
+		for ( int i = 0; i < n; ++i )
+			decoder.decode( new ByteArrayInputStream( jpg ), pixels, w, h );
+		return ( System.nanoTime() - t ) / 1000.0 / n;
+	}
+	
+	static protected void benchmark( final String name, final byte[] jpg ) throws IOException
+	{
+		final BufferedImage image = ImageIO.read( new ByteArrayInputStream( jpg ) );
+		final int w = image.getWidth();
+		final int h = image.getHeight();
+		final int[] reference = new int[ w * h ];
+		final int[] pixels = new int[ w * h ];
+		final JPEGTileDecoder decoder = new JPEGTileDecoder();
+		
+		benchmarkAWT( jpg, reference, w, h, warmup );
+		benchmarkDirect( decoder, jpg, pixels, w, h, warmup );
+		
+		final double awt = benchmarkAWT( jpg, reference, w, h, iterations );
+		final double direct = benchmarkDirect( decoder, jpg, pixels, w, h, iterations );
+		
+		int mismatches = 0;
+		for ( int i = 0; i < pixels.length; ++i )
+			if ( pixels[ i ] != reference[ i ] )
+				++mismatches;
+		
+		System.out.println(
+				String.format(
+						"%s %dx%d: ImageIO+drawImage+PixelGrabber %.1f us/tile, direct %.1f us/tile (%.2fx), %d mismatching pixels",
+						name, w, h, awt, direct, awt / direct, mismatches ) );
+	}
+	
+	final static public void main( final String[] args ) throws IOException
+	{
+		ImageIO.setUseCache( false );
+		if ( args.length == 0 )
+		{
+			benchmark( "gray", createTile( BufferedImage.TYPE_BYTE_GRAY, 256, 256 ) );
+			benchmark( "rgb", createTile( BufferedImage.TYPE_3BYTE_BGR, 256, 256 ) );
+		}
+		else
+			for ( final String url : args )
+				benchmark( url, readTile( url ) );
+	}
+}
@@ -0,0 +1,354 @@
+/*
+ * #%L
+ * ImgLib2: a general-purpose, multidimensional image processing library.
+ * %%
+ * Copyright (C) 2009 - 2016 Tobias Pietzsch, Stephan Preibisch, Stephan Saalfeld,
+ * John Bogovic, Albert Cardona, Barry DeZonia, Christian Dietz, Jan Funke,
+ * Aivar Grislis, Jonathan Hale, Grant Harris, Stefan Helfrich, Mark Hiner,
+ * Martin Horn, Steffen Jaensch, Lee Kamentsky, Larry Lindsey, Melissa Linkert,
+ * Mark Longair, Brian Northan, Nick Perry, Curtis Rueden, Johannes Schindelin,
+ * Jean-Yves Tinevez and Michael Zinsmaier.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package interactive.remote.catmaid;
+
+import interactive.remote.AbstractRemoteRandomAccessibleInterval;
+import interactive.remote.FetcherPool;
+import interactive.remote.cache.ClockCache;
+import interactive.remote.cache.DiskCache;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.imglib2.AbstractInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.volatiles.VolatileARGBType;
+
+/**
+ * <p>A read-only {@link RandomAccessibleInterval} of VolatileARGBTypes over
+ * all scale levels <em>s</em> = 0, ..., <em>n</em>-1 of a CATMAID remote data
+ * set, in the pixel coordinates of level 0.</p>
+ * 
+ * <p>Pixels are read from the current level, either set explicitly with
+ * {@link #setLevel(int)} or derived from the source to screen transform with
+ * {@link #setTransform(AffineTransform3D, int, int)} such that one pixel of the level
+ * is no larger than a screen pixel.  While a tile of the current level is
+ * loading, pixels are taken from the finest coarser level that is cached
+ * and returned invalid until the tile arrives.  Only the current level and
+ * the next coarser level are requested.</p>
+ * 
+ * <p>All levels share one {@link FetcherPool} and split the cache budget
+ * evenly.  Call {@link #shutdown()} to stop the worker threads.</p>
+ * 
+ * @author Stephan Saalfeld
+ */
+public class MultiscaleCATMAIDRandomAccessibleInterval extends AbstractInterval implements RandomAccessibleInterval< VolatileARGBType >
+{
+	public class MultiscaleCATMAIDRandomAccess extends Point implements RandomAccess< VolatileARGBType >
+	{
+		final protected int level;
+		final protected VolatileCATMAIDRandomAccessibleInterval.VolatileCATMAIDRandomAccess[] accesses;
+		final protected VolatileARGBType t = new VolatileARGBType();
+		final protected long[] levelPosition = new long[ 3 ];
+		
+		public MultiscaleCATMAIDRandomAccess( final int level )
+		{
+			super( 3 );
+			this.level = level;
+			accesses = new VolatileCATMAIDRandomAccessibleInterval.VolatileCATMAIDRandomAccess[ levels.length ];
+		}
+		
+		public MultiscaleCATMAIDRandomAccess( final MultiscaleCATMAIDRandomAccess template )
+		{
+			super( template );
+			level = template.level;
+			accesses = new VolatileCATMAIDRandomAccessibleInterval.VolatileCATMAIDRandomAccess[ levels.length ];
+			for ( int i = level; i < accesses.length; ++i )
+				if ( template.accesses[ i ] != null )
+					accesses[ i ] = template.accesses[ i ].copy();
+		}
+		
+		/**
+		 * Read the pixel at the current position from level i, requesting its
+		 * tile if necessary.
+		 */
+		protected VolatileARGBType get( final int i )
+		{
+			VolatileCATMAIDRandomAccessibleInterval.VolatileCATMAIDRandomAccess access = accesses[ i ];
+			if ( access == null )
+				accesses[ i ] = access = levels[ i ].randomAccess();
+			levelPosition[ 0 ] = position[ 0 ] >> i;
+			levelPosition[ 1 ] = position[ 1 ] >> i;
+			levelPosition[ 2 ] = position[ 2 ];
+			access.setPosition( levelPosition );
+			return access.get();
+		}
+		
+		/**
+		 * @return the tile of level i at the current position if it is cached
+		 * 		and valid, null otherwise.  Does not request the tile.
+		 */
+		protected VolatileCATMAIDRandomAccessibleInterval.Entry peek( final int i )
+		{
+			final VolatileCATMAIDRandomAccessibleInterval l = levels[ i ];
+			final VolatileCATMAIDRandomAccessibleInterval.Entry entry = l.peek(
+					Math.floorDiv( position[ 1 ] >> i, l.tileHeight ),
+					Math.floorDiv( position[ 0 ] >> i, l.tileWidth ),
+					position[ 2 ] );
+			return entry != null && entry.valid ? entry : null;
+		}
+		
+		@Override
+		public VolatileARGBType get()
+		{
+			final VolatileARGBType v = get( level );
+			if ( v.isValid() )
+				return v;
+			
+			/* fall back to the finest coarser level that is cached */
+			for ( int i = level + 1; i < levels.length; ++i )
+			{
+				final VolatileCATMAIDRandomAccessibleInterval.Entry entry = peek( i );
+				if ( entry != null )
+				{
+					final VolatileCATMAIDRandomAccessibleInterval l = levels[ i ];
+					t.set( entry.data[
+							( int )Math.floorMod( position[ 1 ] >> i, l.tileHeight ) * l.tileWidth +
+							( int )Math.floorMod( position[ 0 ] >> i, l.tileWidth ) ] );
+					t.setValid( false );
+					return t;
+				}
+			}
+			
+			/* nothing cached, request the next coarser level which arrives faster */
+			if ( level + 1 < levels.length )
+				get( level + 1 );
+			return v;
+		}
+
+		@Override
+		public MultiscaleCATMAIDRandomAccess copy()
+		{
+			return new MultiscaleCATMAIDRandomAccess( this );
+		}
+
+		@Override
+		public MultiscaleCATMAIDRandomAccess copyRandomAccess()
+		{
+			return copy();
+		}
+	}
+	
+	final protected VolatileCATMAIDRandomAccessibleInterval[] levels;
+	final protected FetcherPool< Long, VolatileCATMAIDRandomAccessibleInterval.Entry > fetchers;
+	protected volatile int level = 0;
+	
+	/**
+	 * @param url
+	 * @param width width at level 0
+	 * @param height height at level 0
+	 * @param depth
+	 * @param numLevels number of scale levels, level s is downsampled by 2<sup>s</sup> in x and y
+	 * @param tileWidth
+	 * @param tileHeight
+	 * @param cacheBytes memory budget shared by all levels
+	 * @param numFetchers number of worker threads shared by all levels
+	 */
+	public MultiscaleCATMAIDRandomAccessibleInterval(
+			final String url,
+			final long width,
+			final long height,
+			final long depth,
+			final int numLevels,
+			final int tileWidth,
+			final int tileHeight,
+			final long cacheBytes,
+			final int numFetchers )
+	{
+		super( new long[]{ width, height, depth } );
+		fetchers = new FetcherPool< Long, VolatileCATMAIDRandomAccessibleInterval.Entry >(
+				VolatileCATMAIDRandomAccessibleInterval.Entry::load,
+				VolatileCATMAIDRandomAccessibleInterval.Entry::cancel,
+				numFetchers,
+				"CATMAID Fetcher" );
+		levels = new VolatileCATMAIDRandomAccessibleInterval[ numLevels ];
+		for ( int s = 0; s < numLevels; ++s )
+			levels[ s ] = new VolatileCATMAIDRandomAccessibleInterval(
+					url,
+					width,
+					height,
+					depth,
+					s,
+					tileWidth,
+					tileHeight,
+					new ClockCache< VolatileCATMAIDRandomAccessibleInterval.Entry >( cacheBytes / numLevels ),
+					fetchers );
+	}
+	
+	public MultiscaleCATMAIDRandomAccessibleInterval(
+			final String url,
+			final long width,
+			final long height,
+			final long depth,
+			final int numLevels,
+			final int tileWidth,
+			final int tileHeight )
+	{
+		this( url, width, height, depth, numLevels, tileWidth, tileHeight, AbstractRemoteRandomAccessibleInterval.defaultCacheBytes, FetcherPool.defaultNumFetchers );
+	}
+	
+	public int numLevels()
+	{
+		return levels.length;
+	}
+	
+	public VolatileCATMAIDRandomAccessibleInterval getLevel( final int s )
+	{
+		return levels[ s ];
+	}
+	
+	public int getLevel()
+	{
+		return level;
+	}
+	
+	/**
+	 * Set the level that {@link RandomAccess RandomAccesses} created from
+	 * now on read from.
+	 */
+	public void setLevel( final int level )
+	{
+		this.level = Math.max( 0, Math.min( levels.length - 1, level ) );
+	}
+	
+	/**
+	 * Select the coarsest level whose pixels are not larger than a screen
+	 * pixel under sourceToScreen, and set the focus of attention of all
+	 * levels to the source coordinates of the screen centre.
+	 * 
+	 * @param sourceToScreen
+	 * @param screenWidth
+	 * @param screenHeight
+	 */
+	public void setTransform( final AffineTransform3D sourceToScreen, final int screenWidth, final int screenHeight )
+	{
+		final double sx = sourceToScreen.get( 0, 0 );
+		final double sy = sourceToScreen.get( 1, 0 );
+		final double sz = sourceToScreen.get( 2, 0 );
+		final double scale = Math.sqrt( sx * sx + sy * sy + sz * sz );
+		setLevel( scale > 0 ? ( int )Math.floor( Math.log( 1.0 / scale ) / Math.log( 2 ) ) : levels.length - 1 );
+		
+		final double[] centre = new double[]{ 0.5 * screenWidth, 0.5 * screenHeight, 0 };
+		sourceToScreen.applyInverse( centre, centre );
+		for ( int s = 0; s < levels.length; ++s )
+		{
+			final double f = 1.0 / ( 1L << s );
+			levels[ s ].setFocus( centre[ 0 ] * f, centre[ 1 ] * f, centre[ 2 ] );
+		}
+	}
+	
+	/**
+	 * Keep decoded tiles of all levels in {@link DiskCache DiskCaches} in
+	 * directory.
+	 * 
+	 * @param directory
+	 * @param maxBytes maximum size of the disk caches of all levels
+	 * @throws IOException
+	 */
+	public void setDiskCache( final File directory, final long maxBytes ) throws IOException
+	{
+		for ( final VolatileCATMAIDRandomAccessibleInterval l : levels )
+			l.setDiskCache( directory, maxBytes / levels.length );
+	}
+	
+	/**
+	 * Keep the JPEGs of all levels in cold tiers of maxBytes in total.
+	 */
+	public void setColdCache( final long maxBytes )
+	{
+		for ( final VolatileCATMAIDRandomAccessibleInterval l : levels )
+			l.setColdCache( maxBytes / levels.length );
+	}
+	
+	/**
+	 * Start a new generation of requests for all levels, typically when
+	 * the view has moved.
+	 * 
+	 * @see VolatileCATMAIDRandomAccessibleInterval#nextGeneration()
+	 */
+	public void nextGeneration()
+	{
+		fetchers.nextGeneration();
+	}
+	
+	/**
+	 * Set a listener that is notified whenever a tile of any level has been
+	 * loaded, null to remove it.
+	 */
+	public void setLoadListener( final Runnable loadListener )
+	{
+		for ( final VolatileCATMAIDRandomAccessibleInterval l : levels )
+			l.setLoadListener( loadListener );
+	}
+	
+	/**
+	 * Load every tile in a thread of its own, at most maxPerHost at a time.
+	 */
+	public void setThreadPerRequest( final int maxPerHost )
+	{
+		for ( final VolatileCATMAIDRandomAccessibleInterval l : levels )
+			l.setThreadPerRequest( maxPerHost );
+	}
+	
+	public FetcherPool< Long, VolatileCATMAIDRandomAccessibleInterval.Entry > getFetchers()
+	{
+		return fetchers;
+	}
+	
+	/**
+	 * Stop loading, pending tiles stay invalid.
+	 */
+	public void shutdown()
+	{
+		for ( final VolatileCATMAIDRandomAccessibleInterval l : levels )
+			l.shutdown();
+	}
+
+	@Override
+	public MultiscaleCATMAIDRandomAccess randomAccess()
+	{
+		return new MultiscaleCATMAIDRandomAccess( level );
+	}
+
+	@Override
+	public MultiscaleCATMAIDRandomAccess randomAccess( final Interval interval )
+	{
+		return randomAccess();
+	}
+}
@@ -0,0 +1,432 @@
+/*
+ * #%L
+ * ImgLib2: a general-purpose, multidimensional image processing library.
+ * %%
+ * Copyright (C) 2009 - 2016 Tobias Pietzsch, Stephan Preibisch, Stephan Saalfeld,
+ * John Bogovic, Albert Cardona, Barry DeZonia, Christian Dietz, Jan Funke,
+ * Aivar Grislis, Jonathan Hale, Grant Harris, Stefan Helfrich, Mark Hiner,
+ * Martin Horn, Steffen Jaensch, Lee Kamentsky, Larry Lindsey, Melissa Linkert,
+ * Mark Longair, Brian Northan, Nick Perry, Curtis Rueden, Johannes Schindelin,
+ * Jean-Yves Tinevez and Michael Zinsmaier.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package interactive.remote.catmaid;
+
+import interactive.remote.FetcherPool;
+import interactive.remote.cache.Cache;
+import interactive.remote.cache.ClockCache;
+
+import java.io.UncheckedIOException;
+import java.util.concurrent.Semaphore;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.volatiles.VolatileARGBType;
+
+/**
+ * <p>A read-only {@link RandomAccessibleInterval} of VolatileARGBTypes that
+ * generates its pixel values from a CATMAID remote data set without blocking
+ * the caller.</p>
+ * 
+ * <p>Missing tiles are returned invalid and loaded by a {@link FetcherPool},
+ * tiles close to the focus of attention ({@link #setFocus(double, double, double)})
+ * and recently requested tiles first.  A listener set with
+ * {@link #setLoadListener(Runnable)} is notified whenever a tile becomes
+ * valid, e.g. to request a repaint.  Call {@link #shutdown()} to stop the
+ * worker threads.</p>
+ * 
+ * @author Stephan Saalfeld
+ */
+public class VolatileCATMAIDRandomAccessibleInterval extends AbstractCATMAIDRandomAccessibleInterval< VolatileARGBType, VolatileCATMAIDRandomAccessibleInterval.Entry >
+{
+	public class Entry extends AbstractCATMAIDRandomAccessibleInterval< VolatileARGBType, Entry >.Entry
+	{
+		public volatile boolean valid;
+		final public int[] data;
+		
+		public Entry( final long key, final int[] data, final boolean valid )
+		{
+			super( key );
+			this.data = data;
+			this.valid = valid;
+		}
+		
+		@Override
+		public boolean isValid() { return valid; }
+		public void setValid( final boolean valid ) { this.valid = valid; }
+		
+		/**
+		 * Load this entry through the source that created it, for
+		 * {@link FetcherPool FetcherPools} shared by several sources.
+		 */
+		public void load()
+		{
+			VolatileCATMAIDRandomAccessibleInterval.this.load( this );
+		}
+		
+		/**
+		 * Cancel this entry through the source that created it.
+		 */
+		public void cancel()
+		{
+			VolatileCATMAIDRandomAccessibleInterval.this.cancel( this );
+		}
+		
+		@Override
+		public long bytes()
+		{
+			return 4L * data.length;
+		}
+	}
+	
+	public class VolatileCATMAIDRandomAccess extends AbstractCATMAIDRandomAccess
+	{
+		public VolatileCATMAIDRandomAccess()
+		{
+			super( new VolatileARGBType() );
+		}
+		
+		public VolatileCATMAIDRandomAccess( final VolatileCATMAIDRandomAccess template )
+		{
+			super( template );
+		}
+		
+		@Override
+		public VolatileARGBType get()
+		{
+			t.get().set( entry.data[ tileWidth * yMod + xMod ] );
+			t.setValid( entry.valid );
+			return t;
+		}
+
+		@Override
+		public VolatileCATMAIDRandomAccess copy()
+		{
+			return new VolatileCATMAIDRandomAccess( this );
+		}
+
+		@Override
+		public VolatileCATMAIDRandomAccess copyRandomAccess()
+		{
+			return copy();
+		}
+		
+		@Override
+		protected void fetchPixels()
+		{
+			fetchEntry();
+			prefetch();
+		}
+	}
+	
+	final protected FetcherPool< Long, Entry > fetchers;
+	
+	private Entry blank;
+	
+	/* source coordinates of the focus of attention, null if there is none */
+	protected volatile double[] focus = null;
+	
+	/* notified after a tile has been loaded */
+	protected volatile Runnable loadListener = null;
+	
+	/**
+	 * Create a source that loads through a {@link FetcherPool} that may be
+	 * shared with sources at other scale levels.  The pool must load entries
+	 * with {@link Entry#load()} and cancel them with {@link Entry#cancel()}.
+	 */
+	public VolatileCATMAIDRandomAccessibleInterval(
+			final String url,
+			final long width,
+			final long height,
+			final long depth,
+			final long s,
+			final int tileWidth,
+			final int tileHeight,
+			final Cache< Entry > cache,
+			final FetcherPool< Long, Entry > fetchers )
+	{
+		super( url, width, height, depth, s, tileWidth, tileHeight, cache );
+		
+		this.fetchers = fetchers;
+	}
+	
+	public VolatileCATMAIDRandomAccessibleInterval(
+			final String url,
+			final long width,
+			final long height,
+			final long depth,
+			final long s,
+			final int tileWidth,
+			final int tileHeight,
+			final Cache< Entry > cache,
+			final int numFetchers )
+	{
+		this( url, width, height, depth, s, tileWidth, tileHeight, cache, new FetcherPool< Long, Entry >( Entry::load, Entry::cancel, numFetchers, "CATMAID Fetcher" ) );
+	}
+	
+	public VolatileCATMAIDRandomAccessibleInterval(
+			final String url,
+			final long width,
+			final long height,
+			final long depth,
+			final long s,
+			final int tileWidth,
+			final int tileHeight,
+			final Cache< Entry > cache )
+	{
+		this( url, width, height, depth, s, tileWidth, tileHeight, cache, FetcherPool.defaultNumFetchers );
+	}
+	
+	public VolatileCATMAIDRandomAccessibleInterval(
+			final String url,
+			final long width,
+			final long height,
+			final long depth,
+			final long s,
+			final int tileWidth,
+			final int tileHeight )
+	{
+		this( url, width, height, depth, s, tileWidth, tileHeight, new ClockCache< Entry >( defaultCacheBytes ) );
+	}
+	
+	@Override
+	public VolatileCATMAIDRandomAccess randomAccess()
+	{
+		return new VolatileCATMAIDRandomAccess();
+	}
+	
+	@Override
+	protected Entry fetchPixels2( final long r, final long c, final long z )
+	{
+		if ( !contains( r, c, z ) )
+			return blank();
+		final long key = index( r, c, z );
+		final Entry cachedEntry = cache.get( key );
+		if ( cachedEntry != null )
+		{
+			metrics.hit();
+			/* renew the request if it is from an older generation */
+			if ( !cachedEntry.valid )
+				fetchers.renew( fetcherKey( key ), cachedEntry, distanceToFocus( r, c, z ) );
+			return cachedEntry;
+		}
+		metrics.miss();
+		return request( key, distanceToFocus( r, c, z ) );
+	}
+	
+	@Override
+	protected int[] data( final Entry entry )
+	{
+		return entry.data;
+	}
+	
+	/**
+	 * @return the cached tile (r, c, z), valid or not, the blank tile
+	 * 		outside of the data set, or null if the tile is not cached.  The
+	 * 		tile is not requested.
+	 */
+	public Entry peek( final long r, final long c, final long z )
+	{
+		if ( !contains( r, c, z ) )
+			return blank();
+		return cache.get( index( r, c, z ) );
+	}
+	
+	/**
+	 * A valid blank tile for everything outside of the data set.
+	 */
+	@Override
+	protected Entry blank()
+	{
+		Entry blank = this.blank;
+		if ( blank == null )
+			this.blank = blank = new Entry( -1, new int[ tileWidth * tileHeight ], true );
+		return blank;
+	}
+	
+	/**
+	 * Return the cached entry for key or cache an invalid entry and queue it
+	 * for loading.
+	 */
+	protected Entry request( final long key, final double priority )
+	{
+		final Entry cachedEntry = cache.get( key );
+		if ( cachedEntry != null )
+			return cachedEntry;
+		
+		final Entry entry = new Entry( key, new int[ tileWidth * tileHeight ], false );
+		final Entry concurrentEntry = cache.putIfAbsent( key, entry, entry.bytes() );
+		if ( concurrentEntry != null )
+			return concurrentEntry;
+		
+		fetchers.request( fetcherKey( key ), entry, priority );
+		return entry;
+	}
+	
+	/**
+	 * @return the tile index tagged with the scale level, unique across the
+	 * levels that share a {@link FetcherPool}
+	 */
+	protected long fetcherKey( final long key )
+	{
+		return ( key << 5 ) | s;
+	}
+	
+	/**
+	 * Prefetched tiles go through the same queue as visible tiles, behind
+	 * them by the prefetch distance.
+	 */
+	@Override
+	protected void prefetch( final long key, final double priority )
+	{
+		request( key, distanceToFocus( row( key ), column( key ), section( key ) ) + priority );
+	}
+	
+	/**
+	 * Load a tile synchronously.
+	 * 
+	 * @throws UncheckedIOException if the tile could not be loaded, it is
+	 * 		not cached then
+	 */
+	@Override
+	protected Entry loadEntry( final long key ) throws InterruptedException
+	{
+		final Entry entry = new Entry( key, new int[ tileWidth * tileHeight ], false );
+		if ( !fetchPixels3( entry.data, key ) )
+			throw loadFailed( key );
+		entry.setValid( true );
+		return entry;
+	}
+	
+	/**
+	 * Called by the {@link FetcherPool}, reads from the disk cache or
+	 * downloads and decodes the tile.  If that fails, the invalid entry is
+	 * dropped like a cancelled one such that the tile is requested again
+	 * when it is visited again.
+	 */
+	protected void load( final Entry entry )
+	{
+		metrics.load();
+		if ( fetchPixels3( entry.data, entry.key ) )
+		{
+			entry.setValid( true );
+			final Runnable listener = loadListener;
+			if ( listener != null )
+				listener.run();
+		}
+		else
+			cancel( entry );
+	}
+	
+	/**
+	 * Called by the {@link FetcherPool} for stale requests.  The invalid
+	 * entry is dropped from the cache such that the tile is requested again
+	 * when it is visited again.
+	 */
+	protected void cancel( final Entry entry )
+	{
+		if ( cache.get( entry.key ) == entry )
+			cache.remove( entry.key );
+	}
+	
+	/**
+	 * Start a new generation of requests, typically when the view has
+	 * moved.  Tiles that were requested in older generations and have not
+	 * been visited since are not loaded.
+	 */
+	@Override
+	public void nextGeneration()
+	{
+		fetchers.nextGeneration();
+	}
+	
+	/**
+	 * Set the focus of attention, typically the source coordinates of the
+	 * screen centre.  Tiles closer to the focus are loaded first.
+	 */
+	public void setFocus( final double x, final double y, final double z )
+	{
+		focus = new double[]{ x, y, z };
+	}
+	
+	/**
+	 * @return the distance of a tile's centre to the focus of attention in
+	 * tiles and sections
+	 */
+	protected double distanceToFocus( final long r, final long c, final long z )
+	{
+		final double[] f = focus;
+		if ( f == null )
+			return 0;
+		final double dx = c + 0.5 - f[ 0 ] / tileWidth;
+		final double dy = r + 0.5 - f[ 1 ] / tileHeight;
+		final double dz = z - f[ 2 ];
+		return Math.sqrt( dx * dx + dy * dy + dz * dz );
+	}
+	
+	/**
+	 * Set a listener that is notified from the fetcher threads whenever a
+	 * tile has been loaded, null to remove it.
+	 */
+	public void setLoadListener( final Runnable loadListener )
+	{
+		this.loadListener = loadListener;
+	}
+	
+	/**
+	 * @return the number of tiles waiting for a fetcher, shared with other
+	 * 		levels if the {@link FetcherPool} is shared
+	 */
+	@Override
+	public int queueSize()
+	{
+		return fetchers.queueSize();
+	}
+	
+	public FetcherPool< Long, Entry > getFetchers()
+	{
+		return fetchers;
+	}
+	
+	/**
+	 * Load every tile in a thread of its own, limited by permits, null runs
+	 * the loads in the worker threads.
+	 */
+	@Override
+	public void setThreadPerRequest( final Semaphore permits )
+	{
+		super.setThreadPerRequest( permits );
+		fetchers.setThreadPerRequest( permits );
+	}
+	
+	/**
+	 * Stop loading, pending tiles stay invalid.
+	 */
+	@Override
+	public void shutdown()
+	{
+		super.shutdown();
+		fetchers.shutdown();
+	}
+}
@@ -0,0 +1,497 @@
+/*
+ * #%L
+ * ImgLib2: a general-purpose, multidimensional image processing library.
+ * %%
+ * Copyright (C) 2009 - 2016 Tobias Pietzsch, Stephan Preibisch, Stephan Saalfeld,
+ * John Bogovic, Albert Cardona, Barry DeZonia, Christian Dietz, Jan Funke,
+ * Aivar Grislis, Jonathan Hale, Grant Harris, Stefan Helfrich, Mark Hiner,
+ * Martin Horn, Steffen Jaensch, Lee Kamentsky, Larry Lindsey, Melissa Linkert,
+ * Mark Longair, Brian Northan, Nick Perry, Curtis Rueden, Johannes Schindelin,
+ * Jean-Yves Tinevez and Michael Zinsmaier.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package interactive.remote.export;
+
+import interactive.remote.cache.Cache;
+import interactive.remote.cache.ClockCache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.cell.LazyCellImg;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+
+/**
+ * <p>A 3D volume on disk, split into blocks of equal size with one file per
+ * block.  Block (x, y, z) of the block grid lives in
+ * <code>directory/x/y/z</code>, blocks at the upper border are cropped to
+ * the volume.  Dimensions, block size, data type, compression and the
+ * position of the volume in the source are kept in
+ * <code>directory/attributes.properties</code>.</p>
+ * 
+ * <p>Blocks are stored as raw big-endian pixels, optionally deflated.
+ * Blocks that were never written read as 0.  {@link #openUnsignedByte()}
+ * and {@link #openARGB()} open the store as a {@link LazyCellImg} that
+ * loads blocks on first access.</p>
+ * 
+ * @author Stephan Saalfeld
+ */
+public class ChunkedStore
+{
+	public static enum DataType
+	{
+		UINT8( 1 ), ARGB( 4 );
+		
+		final public int bytesPerPixel;
+		
+		private DataType( final int bytesPerPixel )
+		{
+			this.bytesPerPixel = bytesPerPixel;
+		}
+	}
+	
+	final static protected String ATTRIBUTES = "attributes.properties";
+	
+	final static public long defaultCacheBytes = 1L << 28;
+	
+	final static protected ThreadLocal< Deflater > deflaters = ThreadLocal.withInitial( () -> new Deflater( Deflater.BEST_SPEED ) );
+	final static protected ThreadLocal< Inflater > inflaters = ThreadLocal.withInitial( Inflater::new );
+	
+	final protected File directory;
+	final protected long[] min;
+	final protected long[] dimensions;
+	final protected int[] blockSize;
+	final protected long[] gridDimensions;
+	final protected DataType dataType;
+	final protected boolean compressed;
+	
+	protected ChunkedStore(
+			final File directory,
+			final long[] min,
+			final long[] dimensions,
+			final int[] blockSize,
+			final DataType dataType,
+			final boolean compressed )
+	{
+		this.directory = directory;
+		this.min = min.clone();
+		this.dimensions = dimensions.clone();
+		this.blockSize = blockSize.clone();
+		this.dataType = dataType;
+		this.compressed = compressed;
+		gridDimensions = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			gridDimensions[ d ] = ( dimensions[ d ] + blockSize[ d ] - 1 ) / blockSize[ d ];
+	}
+	
+	/**
+	 * Create a new store in directory or overwrite the attributes of an
+	 * existing one.  Blocks that exist already are kept.
+	 * 
+	 * @param min position of the volume in the source it was exported from
+	 */
+	public static ChunkedStore create(
+			final File directory,
+			final long[] min,
+			final long[] dimensions,
+			final int[] blockSize,
+			final DataType dataType,
+			final boolean compressed ) throws IOException
+	{
+		if ( min.length != 3 || dimensions.length != 3 || blockSize.length != 3 )
+			throw new IllegalArgumentException( "only 3D stores are supported" );
+		if ( !directory.isDirectory() && !directory.mkdirs() )
+			throw new IOException( "Could not create store directory " + directory );
+		
+		final Properties attributes = new Properties();
+		attributes.setProperty( "min", join( min ) );
+		attributes.setProperty( "dimensions", join( dimensions ) );
+		attributes.setProperty( "blockSize", join( blockSize ) );
+		attributes.setProperty( "dataType", dataType.name() );
+		attributes.setProperty( "compression", compressed ? "deflate" : "raw" );
+		try ( final OutputStream out = new FileOutputStream( new File( directory, ATTRIBUTES ) ) )
+		{
+			attributes.store( out, "chunked store" );
+		}
+		return new ChunkedStore( directory, min, dimensions, blockSize, dataType, compressed );
+	}
+	
+	/**
+	 * Open an existing store.
+	 */
+	public static ChunkedStore open( final File directory ) throws IOException
+	{
+		final Properties attributes = new Properties();
+		try ( final InputStream in = new FileInputStream( new File( directory, ATTRIBUTES ) ) )
+		{
+			attributes.load( in );
+		}
+		try
+		{
+			final long[] min = parseLongs( attributes.getProperty( "min" ) );
+			final long[] dimensions = parseLongs( attributes.getProperty( "dimensions" ) );
+			final long[] size = parseLongs( attributes.getProperty( "blockSize" ) );
+			final int[] blockSize = new int[]{ ( int )size[ 0 ], ( int )size[ 1 ], ( int )size[ 2 ] };
+			final DataType dataType = DataType.valueOf( attributes.getProperty( "dataType" ) );
+			final boolean compressed = "deflate".equals( attributes.getProperty( "compression" ) );
+			return new ChunkedStore( directory, min, dimensions, blockSize, dataType, compressed );
+		}
+		catch ( final RuntimeException e )
+		{
+			throw new IOException( "Invalid attributes in " + directory, e );
+		}
+	}
+	
+	public File getDirectory()
+	{
+		return directory;
+	}
+	
+	public long[] getMin()
+	{
+		return min.clone();
+	}
+	
+	public long[] getDimensions()
+	{
+		return dimensions.clone();
+	}
+	
+	public int[] getBlockSize()
+	{
+		return blockSize.clone();
+	}
+	
+	public long[] getGridDimensions()
+	{
+		return gridDimensions.clone();
+	}
+	
+	public DataType getDataType()
+	{
+		return dataType;
+	}
+	
+	public boolean isCompressed()
+	{
+		return compressed;
+	}
+	
+	public long numBlocks()
+	{
+		return gridDimensions[ 0 ] * gridDimensions[ 1 ] * gridDimensions[ 2 ];
+	}
+	
+	/**
+	 * @return the position of block index in the block grid, x fastest
+	 */
+	public long[] gridPosition( final long index )
+	{
+		return new long[]{
+				index % gridDimensions[ 0 ],
+				( index / gridDimensions[ 0 ] ) % gridDimensions[ 1 ],
+				index / ( gridDimensions[ 0 ] * gridDimensions[ 1 ] ) };
+	}
+	
+	/**
+	 * @return the size of the block at gridPosition, cropped to the volume
+	 */
+	public int[] blockSize( final long[] gridPosition )
+	{
+		final int[] size = new int[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			size[ d ] = ( int )Math.min( blockSize[ d ], dimensions[ d ] - gridPosition[ d ] * blockSize[ d ] );
+		return size;
+	}
+	
+	public File blockFile( final long[] gridPosition )
+	{
+		return new File( directory, gridPosition[ 0 ] + File.separator + gridPosition[ 1 ] + File.separator + gridPosition[ 2 ] );
+	}
+	
+	public boolean exists( final long[] gridPosition )
+	{
+		return blockFile( gridPosition ).isFile();
+	}
+	
+	/**
+	 * Write the block at gridPosition.  pixels is a byte[] for
+	 * {@link DataType#UINT8} or an int[] for {@link DataType#ARGB} of the
+	 * size of the block, x fastest.  The block is written to a temporary
+	 * file first such that concurrent readers never see a partial block.
+	 */
+	public void writeBlock( final long[] gridPosition, final Object pixels ) throws IOException
+	{
+		final int n = numPixels( blockSize( gridPosition ) );
+		final byte[] bytes;
+		if ( dataType == DataType.UINT8 )
+			bytes = ( byte[] )pixels;
+		else
+		{
+			bytes = new byte[ 4 * n ];
+			ByteBuffer.wrap( bytes ).asIntBuffer().put( ( int[] )pixels, 0, n );
+		}
+		
+		final byte[] payload;
+		final int length;
+		if ( compressed )
+		{
+			final Deflater deflater = deflaters.get();
+			deflater.reset();
+			deflater.setInput( bytes, 0, dataType.bytesPerPixel * n );
+			deflater.finish();
+			byte[] buffer = new byte[ Math.max( 64, dataType.bytesPerPixel * n / 2 ) ];
+			int offset = 0;
+			while ( !deflater.finished() )
+			{
+				if ( offset == buffer.length )
+					buffer = Arrays.copyOf( buffer, 2 * buffer.length );
+				offset += deflater.deflate( buffer, offset, buffer.length - offset );
+			}
+			payload = buffer;
+			length = offset;
+		}
+		else
+		{
+			payload = bytes;
+			length = dataType.bytesPerPixel * n;
+		}
+		
+		final File file = blockFile( gridPosition );
+		final File parent = file.getParentFile();
+		if ( !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory() )
+			throw new IOException( "Could not create block directory " + parent );
+		final File tmp = new File( parent, file.getName() + "." + Thread.currentThread().getId() + ".tmp" );
+		try ( final OutputStream out = new FileOutputStream( tmp ) )
+		{
+			out.write( payload, 0, length );
+		}
+		Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+	}
+	
+	/**
+	 * Read the block at gridPosition into pixels, see
+	 * {@link #writeBlock(long[], Object)}.
+	 * 
+	 * @return false if the block does not exist, pixels are left untouched
+	 */
+	public boolean readBlock( final long[] gridPosition, final Object pixels ) throws IOException
+	{
+		final File file = blockFile( gridPosition );
+		if ( !file.isFile() )
+			return false;
+		
+		final int n = numPixels( blockSize( gridPosition ) );
+		final byte[] payload = Files.readAllBytes( file.toPath() );
+		final byte[] bytes;
+		if ( compressed )
+		{
+			bytes = dataType == DataType.UINT8 ? ( byte[] )pixels : new byte[ 4 * n ];
+			final Inflater inflater = inflaters.get();
+			inflater.reset();
+			inflater.setInput( payload );
+			try
+			{
+				int offset = 0;
+				final int length = dataType.bytesPerPixel * n;
+				while ( offset < length && !inflater.finished() )
+				{
+					final int inflated = inflater.inflate( bytes, offset, length - offset );
+					if ( inflated == 0 && ( inflater.needsInput() || inflater.needsDictionary() ) )
+						break;
+					offset += inflated;
+				}
+				if ( offset < length )
+					throw new IOException( "Truncated block " + file );
+			}
+			catch ( final DataFormatException e )
+			{
+				throw new IOException( "Corrupt block " + file, e );
+			}
+		}
+		else
+		{
+			if ( payload.length < dataType.bytesPerPixel * n )
+				throw new IOException( "Truncated block " + file );
+			bytes = payload;
+		}
+		
+		if ( dataType == DataType.UINT8 )
+		{
+			if ( bytes != pixels )
+				System.arraycopy( bytes, 0, pixels, 0, n );
+		}
+		else
+			ByteBuffer.wrap( bytes ).asIntBuffer().get( ( int[] )pixels, 0, n );
+		return true;
+	}
+	
+	/**
+	 * Open an {@link DataType#UINT8} store as a {@link LazyCellImg} with a
+	 * cell per block.  Loaded blocks are kept in a {@link ClockCache} of
+	 * {@link #defaultCacheBytes}.  The image starts at 0, translate it by
+	 * {@link #getMin()} to place it in the source.
+	 */
+	public LazyCellImg< UnsignedByteType, ByteArray > openUnsignedByte()
+	{
+		if ( dataType != DataType.UINT8 )
+			throw new IllegalStateException( "store holds " + dataType + ", not " + DataType.UINT8 );
+		final Cache< Cell< ByteArray > > cache = new ClockCache< Cell< ByteArray > >( defaultCacheBytes );
+		final CellGrid grid = new CellGrid( dimensions, blockSize );
+		return new LazyCellImg< UnsignedByteType, ByteArray >(
+				grid,
+				new UnsignedByteType(),
+				index -> {
+					Cell< ByteArray > cell = cache.get( index );
+					if ( cell == null )
+					{
+						final long[] gridPosition = gridPosition( index );
+						final int[] size = blockSize( gridPosition );
+						final byte[] pixels = new byte[ numPixels( size ) ];
+						read( gridPosition, pixels );
+						cell = new Cell< ByteArray >( size, cellMin( gridPosition ), new ByteArray( pixels ) );
+						final Cell< ByteArray > other = cache.putIfAbsent( index, cell, pixels.length );
+						if ( other != null )
+							cell = other;
+					}
+					return cell;
+				} );
+	}
+	
+	/**
+	 * Open an {@link DataType#ARGB} store as a {@link LazyCellImg}, see
+	 * {@link #openUnsignedByte()}.
+	 */
+	public LazyCellImg< ARGBType, IntArray > openARGB()
+	{
+		if ( dataType != DataType.ARGB )
+			throw new IllegalStateException( "store holds " + dataType + ", not " + DataType.ARGB );
+		final Cache< Cell< IntArray > > cache = new ClockCache< Cell< IntArray > >( defaultCacheBytes );
+		final CellGrid grid = new CellGrid( dimensions, blockSize );
+		return new LazyCellImg< ARGBType, IntArray >(
+				grid,
+				new ARGBType(),
+				index -> {
+					Cell< IntArray > cell = cache.get( index );
+					if ( cell == null )
+					{
+						final long[] gridPosition = gridPosition( index );
+						final int[] size = blockSize( gridPosition );
+						final int[] pixels = new int[ numPixels( size ) ];
+						read( gridPosition, pixels );
+						cell = new Cell< IntArray >( size, cellMin( gridPosition ), new IntArray( pixels ) );
+						final Cell< IntArray > other = cache.putIfAbsent( index, cell, 4L * pixels.length );
+						if ( other != null )
+							cell = other;
+					}
+					return cell;
+				} );
+	}
+	
+	protected void read( final long[] gridPosition, final Object pixels )
+	{
+		try
+		{
+			readBlock( gridPosition, pixels );
+		}
+		catch ( final IOException e )
+		{
+			throw new UncheckedIOException( e );
+		}
+	}
+	
+	protected long[] cellMin( final long[] gridPosition )
+	{
+		return new long[]{
+				gridPosition[ 0 ] * blockSize[ 0 ],
+				gridPosition[ 1 ] * blockSize[ 1 ],
+				gridPosition[ 2 ] * blockSize[ 2 ] };
+	}
+	
+	final static protected int numPixels( final int[] size )
+	{
+		return size[ 0 ] * size[ 1 ] * size[ 2 ];
+	}
+	
+	final static protected String join( final long[] values )
+	{
+		final StringBuilder s = new StringBuilder();
+		for ( int d = 0; d < values.length; ++d )
+			s.append( d == 0 ? "" : "," ).append( values[ d ] );
+		return s.toString();
+	}
+	
+	final static protected String join( final int[] values )
+	{
+		final StringBuilder s = new StringBuilder();
+		for ( int d = 0; d < values.length; ++d )
+			s.append( d == 0 ? "" : "," ).append( values[ d ] );
+		return s.toString();
+	}
+	
+	final static protected long[] parseLongs( final String values )
+	{
+		final String[] fields = values.split( "," );
+		final long[] longs = new long[ fields.length ];
+		for ( int i = 0; i < fields.length; ++i )
+			longs[ i ] = Long.parseLong( fields[ i ].trim() );
+		if ( longs.length != 3 )
+			throw new IllegalArgumentException( "expected 3 values, got " + values );
+		return longs;
+	}
+}
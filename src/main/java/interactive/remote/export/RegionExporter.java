@@ -0,0 +1,395 @@
+/*
+ * #%L
+ * ImgLib2: a general-purpose, multidimensional image processing library.
+ * %%
+ * Copyright (C) 2009 - 2016 Tobias Pietzsch, Stephan Preibisch, Stephan Saalfeld,
+ * John Bogovic, Albert Cardona, Barry DeZonia, Christian Dietz, Jan Funke,
+ * Aivar Grislis, Jonathan Hale, Grant Harris, Stefan Helfrich, Mark Hiner,
+ * Martin Horn, Steffen Jaensch, Lee Kamentsky, Larry Lindsey, Melissa Linkert,
+ * Mark Longair, Brian Northan, Nick Perry, Curtis Rueden, Johannes Schindelin,
+ * Jean-Yves Tinevez and Michael Zinsmaier.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package interactive.remote.export;
+
+import interactive.remote.TileServer;
+import interactive.remote.catmaid.CATMAIDRandomAccessibleInterval;
+import interactive.remote.catmaid.GrayCATMAIDRandomAccessibleInterval;
+import interactive.remote.export.ChunkedStore.DataType;
+import interactive.remote.openconnectome.OpenConnectomeRandomAccessibleInterval;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import ij.ImageJ;
+
+import net.imglib2.Interval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * <p>Exports a region of a remote source into a {@link ChunkedStore}.
+ * The region is grown to the cell grid of the source such that every block
+ * of the store is exactly one tile or cell of the source and no cell is
+ * fetched twice.</p>
+ * 
+ * <p>Blocks go through a bounded pipeline: reader threads fetch and decode
+ * blocks from the source and put them into a queue, writer threads take them
+ * from the queue, compress and write them.  When the writers fall behind,
+ * the readers block on the full queue, so at most
+ * readers + queue size + writers blocks are in memory at any time.</p>
+ * 
+ * @author Stephan Saalfeld
+ */
+public class RegionExporter
+{
+	/**
+	 * Reads a box of the source.
+	 */
+	@FunctionalInterface
+	public static interface BlockReader
+	{
+		/**
+		 * Copy the box of size[0] &times; size[1] &times; size[2] pixels at
+		 * min into pixels, x fastest.
+		 * 
+		 * @throws Exception if a tile or cell of the box could not be
+		 * 		loaded, the remote sources throw an
+		 * 		{@link UncheckedIOException}
+		 */
+		public void read( final long[] min, final int[] size, final Object pixels ) throws Exception;
+	}
+	
+	final static protected class Block
+	{
+		final public long[] gridPosition;
+		final public Object pixels;
+		
+		public Block( final long[] gridPosition, final Object pixels )
+		{
+			this.gridPosition = gridPosition;
+			this.pixels = pixels;
+		}
+	}
+	
+	final static protected Block END = new Block( null, null );
+	
+	final protected BlockReader reader;
+	final protected Interval bounds;
+	final protected int[] cellDimensions;
+	final protected DataType dataType;
+	
+	protected int numReaders = 16;
+	protected int numWriters = Math.max( 1, Runtime.getRuntime().availableProcessors() / 2 );
+	protected int queueSize = 32;
+	protected boolean compressed = true;
+	protected boolean skipExisting = false;
+	
+	final protected LongAdder blocksWritten = new LongAdder();
+	
+	/**
+	 * @param reader reads boxes from the source
+	 * @param bounds the interval of the source
+	 * @param cellDimensions the size of a tile or cell of the source
+	 * @param dataType pixel type, byte[] pixels for {@link DataType#UINT8},
+	 * 		int[] for {@link DataType#ARGB}
+	 */
+	public RegionExporter( final BlockReader reader, final Interval bounds, final int[] cellDimensions, final DataType dataType )
+	{
+		this.reader = reader;
+		this.bounds = bounds;
+		this.cellDimensions = cellDimensions.clone();
+		this.dataType = dataType;
+	}
+	
+	public RegionExporter( final CATMAIDRandomAccessibleInterval source )
+	{
+		this(
+				( min, size, pixels ) -> source.read(
+						Intervals.createMinSize( min[ 0 ], min[ 1 ], min[ 2 ], size[ 0 ], size[ 1 ], size[ 2 ] ),
+						ArrayImgs.argbs( ( int[] )pixels, size[ 0 ], size[ 1 ], size[ 2 ] ) ),
+				source,
+				source.getCellDimensions(),
+				DataType.ARGB );
+	}
+	
+	public RegionExporter( final GrayCATMAIDRandomAccessibleInterval source )
+	{
+		this(
+				( min, size, pixels ) -> source.read(
+						Intervals.createMinSize( min[ 0 ], min[ 1 ], min[ 2 ], size[ 0 ], size[ 1 ], size[ 2 ] ),
+						ArrayImgs.unsignedBytes( ( byte[] )pixels, size[ 0 ], size[ 1 ], size[ 2 ] ) ),
+				source,
+				source.getCellDimensions(),
+				DataType.UINT8 );
+	}
+	
+	public RegionExporter( final OpenConnectomeRandomAccessibleInterval source )
+	{
+		this(
+				( min, size, pixels ) -> source.read(
+						Intervals.createMinSize( min[ 0 ], min[ 1 ], min[ 2 ], size[ 0 ], size[ 1 ], size[ 2 ] ),
+						ArrayImgs.unsignedBytes( ( byte[] )pixels, size[ 0 ], size[ 1 ], size[ 2 ] ) ),
+				source,
+				source.getCellDimensions(),
+				DataType.UINT8 );
+	}
+	
+	/**
+	 * Set the number of threads that fetch blocks from the source.  Remote
+	 * sources are bound by latency, not CPU, so this should be about the
+	 * number of concurrent requests the server tolerates.
+	 */
+	public void setNumReaders( final int numReaders )
+	{
+		this.numReaders = Math.max( 1, numReaders );
+	}
+	
+	/**
+	 * Set the number of threads that compress and write blocks.
+	 */
+	public void setNumWriters( final int numWriters )
+	{
+		this.numWriters = Math.max( 1, numWriters );
+	}
+	
+	/**
+	 * Set the number of fetched blocks that may wait for a writer.
+	 */
+	public void setQueueSize( final int queueSize )
+	{
+		this.queueSize = Math.max( 1, queueSize );
+	}
+	
+	public void setCompressed( final boolean compressed )
+	{
+		this.compressed = compressed;
+	}
+	
+	/**
+	 * Do not fetch blocks that exist in the store already, e.g. to resume
+	 * an interrupted export.
+	 */
+	public void setSkipExisting( final boolean skipExisting )
+	{
+		this.skipExisting = skipExisting;
+	}
+	
+	/**
+	 * @return the number of blocks written by the current or last export
+	 */
+	public long getBlocksWritten()
+	{
+		return blocksWritten.sum();
+	}
+	
+	/**
+	 * @return interval grown to the cell grid of the source and clipped to
+	 * its bounds
+	 */
+	public Interval align( final Interval interval )
+	{
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			final long c = cellDimensions[ d ];
+			min[ d ] = Math.max( bounds.min( d ), Math.floorDiv( interval.min( d ), c ) * c );
+			max[ d ] = Math.min( bounds.max( d ), ( Math.floorDiv( interval.max( d ), c ) + 1 ) * c - 1 );
+		}
+		return Intervals.createMinMax( min[ 0 ], min[ 1 ], min[ 2 ], max[ 0 ], max[ 1 ], max[ 2 ] );
+	}
+	
+	/**
+	 * Export interval, grown to the cell grid of the source, into a new
+	 * {@link ChunkedStore} in directory.
+	 * 
+	 * @return the store
+	 * 
+	 * @throws IOException if a block could not be fetched or written, the
+	 * 		export is stopped on the first error.  A block that could not be
+	 * 		fetched is not written, such that a later export with
+	 * 		{@link #setSkipExisting(boolean)} fetches it again.
+	 * @throws InterruptedException
+	 */
+	public ChunkedStore export( final Interval interval, final File directory ) throws IOException, InterruptedException
+	{
+		final Interval aligned = align( interval );
+		if ( Intervals.isEmpty( aligned ) )
+			throw new IllegalArgumentException( "interval does not intersect the source" );
+		final ChunkedStore store = ChunkedStore.create(
+				directory,
+				Intervals.minAsLongArray( aligned ),
+				Intervals.dimensionsAsLongArray( aligned ),
+				cellDimensions,
+				dataType,
+				compressed );
+		
+		final long[] min = store.getMin();
+		final long numBlocks = store.numBlocks();
+		final AtomicLong next = new AtomicLong();
+		final AtomicReference< Throwable > error = new AtomicReference< Throwable >();
+		final BlockingQueue< Block > queue = new ArrayBlockingQueue< Block >( queueSize );
+		blocksWritten.reset();
+		
+		final ArrayList< Thread > readers = new ArrayList< Thread >();
+		for ( int i = 0; i < numReaders; ++i )
+			readers.add( new Thread( () -> {
+				try
+				{
+					for ( long index = next.getAndIncrement(); index < numBlocks && error.get() == null; index = next.getAndIncrement() )
+					{
+						final long[] gridPosition = store.gridPosition( index );
+						if ( skipExisting && store.exists( gridPosition ) )
+							continue;
+						final int[] size = store.blockSize( gridPosition );
+						final long[] blockMin = new long[ 3 ];
+						for ( int d = 0; d < 3; ++d )
+							blockMin[ d ] = min[ d ] + gridPosition[ d ] * cellDimensions[ d ];
+						final int n = size[ 0 ] * size[ 1 ] * size[ 2 ];
+						final Object pixels = dataType == DataType.UINT8 ? new byte[ n ] : new int[ n ];
+						/* a failed read throws, the block is not queued */
+						reader.read( blockMin, size, pixels );
+						queue.put( new Block( gridPosition, pixels ) );
+					}
+				}
+				catch ( final Throwable e )
+				{
+					error.compareAndSet( null, e );
+				}
+			}, "export-reader-" + i ) );
+		
+		final ArrayList< Thread > writers = new ArrayList< Thread >();
+		for ( int i = 0; i < numWriters; ++i )
+			writers.add( new Thread( () -> {
+				try
+				{
+					for ( Block block = queue.take(); block != END; block = queue.take() )
+					{
+						/* keep draining after an error such that no reader blocks on a full queue */
+						if ( error.get() != null )
+							continue;
+						try
+						{
+							store.writeBlock( block.gridPosition, block.pixels );
+							blocksWritten.increment();
+						}
+						catch ( final Throwable e )
+						{
+							error.compareAndSet( null, e );
+						}
+					}
+				}
+				catch ( final InterruptedException e )
+				{
+					error.compareAndSet( null, e );
+				}
+			}, "export-writer-" + i ) );
+		
+		for ( final Thread thread : readers )
+			thread.start();
+		for ( final Thread thread : writers )
+			thread.start();
+		try
+		{
+			for ( final Thread thread : readers )
+				thread.join();
+			for ( int i = 0; i < numWriters; ++i )
+				queue.put( END );
+			for ( final Thread thread : writers )
+				thread.join();
+		}
+		catch ( final InterruptedException e )
+		{
+			for ( final Thread thread : readers )
+				thread.interrupt();
+			for ( final Thread thread : writers )
+				thread.interrupt();
+			throw e;
+		}
+		
+		Throwable e = error.get();
+		if ( e instanceof UncheckedIOException )
+			e = e.getCause();
+		if ( e instanceof IOException )
+			throw ( IOException )e;
+		else if ( e instanceof InterruptedException )
+			throw ( InterruptedException )e;
+		else if ( e != null )
+			throw new IOException( "Export failed", e );
+		return store;
+	}
+	
+	final static public void main( final String[] args ) throws IOException, InterruptedException
+	{
+		final File directory = new File( args.length > 0 ? args[ 0 ] : System.getProperty( "java.io.tmpdir" ) + File.separator + "export" );
+		final TileServer server = new TileServer( 256, 256 );
+		server.setLatency( 50, 25 );
+		server.start();
+		try
+		{
+			final GrayCATMAIDRandomAccessibleInterval source = new GrayCATMAIDRandomAccessibleInterval(
+					server.catmaidUrl(), 16384, 16384, 512, 0, 256, 256 );
+			final RegionExporter exporter = new RegionExporter( source );
+			final long t = System.currentTimeMillis();
+			final ChunkedStore store = exporter.export( Intervals.createMinSize( 1000, 1000, 100, 3000, 2000, 16 ), directory );
+			System.out.println( String.format(
+					"exported %d blocks in %dms to %s, %d requests",
+					exporter.getBlocksWritten(), System.currentTimeMillis() - t, store.getDirectory(), server.getRequests() ) );
+			source.shutdown();
+			
+			new ImageJ();
+			ImageJFunctions.show( Views.translate( store.openUnsignedByte(), store.getMin() ), "export" );
+		}
+		finally
+		{
+			server.stop();
+		}
+	}
+}
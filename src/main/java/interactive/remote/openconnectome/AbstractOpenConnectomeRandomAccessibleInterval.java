@@ -50,12 +50,23 @@
 package interactive.remote.openconnectome;
 
 import interactive.remote.AbstractRemoteRandomAccessibleInterval;
+import interactive.remote.DecoderPool;
+import interactive.remote.FetcherPool;
+import interactive.remote.cache.Cache;
+import interactive.remote.cache.ClockCache;
+import interactive.remote.cache.DiskCache;
+import interactive.remote.cache.SlabPool;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Arrays;
 import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
 import java.util.zip.Inflater;
 
 import net.imglib2.AbstractLocalizable;
@@ -76,49 +87,144 @@ import net.imglib2.type.numeric.RealType;
  * 0-coordinate in <em>z</em> and should point to the first slice of the
  * dataset.</p> 
  * 
+ * <p>Cells are stored on the heap unless {@link #setOffHeap(long)} has been
+ * called, then they are kept in blocks of a {@link SlabPool} that are
+ * returned to the pool when the cell leaves the cache and is not used by
+ * any {@link AbstractOpenConnectomeRandomAccess} anymore.</p>
+ * 
  * @author Stephan Saalfeld
  */
-abstract public class AbstractOpenConnectomeRandomAccessibleInterval< T extends RealType< T >, E extends AbstractRemoteRandomAccessibleInterval< T, AbstractOpenConnectomeRandomAccessibleInterval< T, E >.Key, E >.Entry > extends AbstractRemoteRandomAccessibleInterval< T, AbstractOpenConnectomeRandomAccessibleInterval< T, E >.Key, E >
+abstract public class AbstractOpenConnectomeRandomAccessibleInterval< T extends RealType< T >, E extends AbstractOpenConnectomeRandomAccessibleInterval< T, E >.Cell > extends AbstractRemoteRandomAccessibleInterval< T, E >
 {
-	public class Key
+	/**
+	 * A cell of cellWidth &times; cellHeight &times; cellDepth bytes, x
+	 * fastest, either in a byte[] on the heap or in a direct block of the
+	 * {@link SlabPool}.
+	 * 
+	 * Off-heap cells count their references, one for the cache and one for
+	 * every {@link AbstractOpenConnectomeRandomAccess} that uses them.  The
+	 * block goes back to the pool when the last reference is released.
+	 * References of heap cells are not counted.
+	 */
+	abstract public class Cell extends AbstractRemoteRandomAccessibleInterval< T, E >.Entry
 	{
-		final public long x, y, z;
+		/* null for off-heap cells */
+		final public byte[] data;
+		
+		/* null for heap cells */
+		final protected ByteBuffer buffer;
+		final protected SlabPool pool;
+		final protected int block;
 		
-		public Key( final long x, final long y, final long z )
+		final protected AtomicInteger references = new AtomicInteger( 1 );
+		
+		/**
+		 * Create a cell on the heap.
+		 */
+		public Cell( final long key, final byte[] data )
 		{
-			this.x = x;
-			this.y = y;
-			this.z = z;
+			super( key );
+			this.data = data;
+			buffer = null;
+			pool = null;
+			block = -1;
 		}
 		
-		@Override
-		public boolean equals( final Object other )
+		/**
+		 * Create an empty cell, off-heap if there is space left in the
+		 * {@link SlabPool}, on the heap otherwise.
+		 */
+		public Cell( final long key )
+		{
+			super( key );
+			final SlabPool pool = slabs;
+			final int block = pool == null ? -1 : pool.acquire( this );
+			if ( block < 0 )
+			{
+				data = new byte[ cellWidth * cellHeight * cellDepth ];
+				buffer = null;
+				this.pool = null;
+				this.block = -1;
+			}
+			else
+			{
+				data = null;
+				buffer = pool.buffer( block );
+				this.pool = pool;
+				this.block = block;
+			}
+		}
+		
+		final public byte get( final int i )
+		{
+			return data == null ? buffer.get( i ) : data[ i ];
+		}
+		
+		final public boolean isOffHeap()
+		{
+			return data == null;
+		}
+		
+		/**
+		 * Copy a whole cell into this cell.
+		 */
+		public void write( final byte[] bytes )
+		{
+			if ( data == null )
+			{
+				final ByteBuffer dst = buffer.duplicate();
+				dst.clear();
+				dst.put( bytes, 0, dst.capacity() );
+			}
+			else if ( bytes != data )
+				System.arraycopy( bytes, 0, data, 0, data.length );
+		}
+		
+		/**
+		 * Copy length bytes starting at offset into dst.
+		 */
+		public void read( final int offset, final byte[] dst, final int dstOffset, final int length )
+		{
+			if ( data == null )
+			{
+				final ByteBuffer src = buffer.duplicate();
+				src.position( offset );
+				src.get( dst, dstOffset, length );
+			}
+			else
+				System.arraycopy( data, offset, dst, dstOffset, length );
+		}
+		
+		/**
+		 * Add a reference to this cell.
+		 * 
+		 * @return false if the cell has been released already and must not
+		 * 		be used
+		 */
+		public boolean retain()
 		{
-			if ( this == other )
+			if ( pool == null )
 				return true;
-			if ( !( other instanceof AbstractOpenConnectomeRandomAccessibleInterval.Key ) )
-				return false;
-			
-			@SuppressWarnings( "unchecked" )
-			final Key that = ( Key )other;
-			
-			return
-					( this.x == that.x ) &&
-					( this.y == that.y ) &&
-					( this.z == that.z );
+			for ( int n = references.get(); n > 0; n = references.get() )
+				if ( references.compareAndSet( n, n + 1 ) )
+					return true;
+			return false;
 		}
 		
 		/**
-		 * Return a hash code for the long tile index according to
-		 * {@link Long#hashCode()}.  The hash has no collisions if the tile
-		 * index is smaller than 2<sup>32</sup>.
-		 *   
-		 * @return
+		 * Drop a reference to this cell, the last one returns its block to
+		 * the {@link SlabPool}.
 		 */
+		public void release()
+		{
+			if ( pool != null && references.decrementAndGet() == 0 )
+				pool.release( block );
+		}
+		
 		@Override
-		public int hashCode() {
-			final long value = ( z * height + y ) * width + x;
-			return ( int )( value ^ ( value >>> 32 ) );
+		public long bytes()
+		{
+			return cellWidth * cellHeight * cellDepth;
 		}
 	}
 	
@@ -127,6 +233,15 @@ abstract public class AbstractOpenConnectomeRandomAccessibleInterval< T extends
 		protected long xDiv, yDiv, zDiv;
 		protected int xMod, yMod, zMod;
 		final T t;
+		
+		/* the previously fetched cell and the last direction in z for prefetching */
+		protected long lastXDiv, lastYDiv, lastZDiv;
+		protected long zDirection = 1;
+		
+		/* the current and the previously visited cell, going back and forth
+		 * across a cell border does not need a cache lookup */
+		protected E entry, previousEntry;
+		protected long key = -1, previousKey = -1;
 
 		public AbstractOpenConnectomeRandomAccess( final T t )
 		{
@@ -152,10 +267,81 @@ abstract public class AbstractOpenConnectomeRandomAccessibleInterval< T extends
 			xMod = template.xMod;
 			yMod = template.yMod;
 			zMod = template.zMod;
+			
+			lastXDiv = template.lastXDiv;
+			lastYDiv = template.lastYDiv;
+			lastZDiv = template.lastZDiv;
+			zDirection = template.zDirection;
+			
+			entry = template.entry;
+			previousEntry = template.previousEntry;
+			if ( entry != null )
+				entry.retain();
+			if ( previousEntry != null )
+				previousEntry.retain();
+			key = template.key;
+			previousKey = template.previousKey;
 		}
 		
 		abstract protected void fetchPixels();
 		
+		/**
+		 * Set {@link #entry} to the current cell, swapping with the previous
+		 * cell if the access moved back to it.  All cells outside of the data
+		 * set share key -1 and the blank cell.  Cells that could not be
+		 * loaded are shown blank and, because the blank cell's key is -1,
+		 * requested again when the access comes back to them.  Invalid
+		 * placeholders are
+		 * looked up again because they may have been cancelled and dropped
+		 * from the cache in the meantime.  The access holds a reference
+		 * to both cells, a cell that has been released between the lookup
+		 * and retaining it is looked up again.
+		 */
+		protected void fetchEntry()
+		{
+			final long index = index( xDiv, yDiv, zDiv );
+			final E swap = entry;
+			if ( index == previousKey && previousEntry != null && previousEntry.isValid() )
+				entry = previousEntry;
+			else
+			{
+				E e;
+				do
+				{
+					try
+					{
+						e = AbstractOpenConnectomeRandomAccessibleInterval.this.fetchPixels( xDiv, yDiv, zDiv );
+					}
+					catch ( final UncheckedIOException ex )
+					{
+						e = blank();
+					}
+				}
+				while ( !e.retain() );
+				entry = e;
+				if ( previousEntry != null )
+					previousEntry.release();
+			}
+			previousEntry = swap;
+			previousKey = key;
+			key = entry.key;
+		}
+		
+		/**
+		 * Prefetch ahead of the movement from the previously fetched cell to
+		 * the current cell, to be called after fetching the current cell.
+		 */
+		protected void prefetch()
+		{
+			final long dz = zDiv - lastZDiv;
+			if ( dz != 0 )
+				zDirection = dz > 0 ? 1 : -1;
+			AbstractOpenConnectomeRandomAccessibleInterval.this.prefetch( xDiv, yDiv, zDiv, xDiv - lastXDiv, yDiv - lastYDiv, dz, zDirection );
+			lastXDiv = xDiv;
+			lastYDiv = yDiv;
+			lastZDiv = zDiv;
+		}
+		
 		@Override
 		public void fwd( final int d )
 		{
@@ -595,14 +781,183 @@ abstract public class AbstractOpenConnectomeRandomAccessibleInterval< T extends
 		}
 	}
 	
+	/**
+	 * zlib state and buffers such that fetching a cell allocates nothing but
+	 * the cell itself.  The compressed stream is inflated while it is being
+	 * read, straight into the cell.  Decoders are borrowed from
+	 * {@link AbstractOpenConnectomeRandomAccessibleInterval#decoders} for
+	 * one load at a time.
+	 */
+	final static protected class Decoder
+	{
+		final protected Inflater inflater = new Inflater();
+		/* only needed with a cold tier, created on first use */
+		protected Deflater deflater = null;
+		final protected byte[] chunk = new byte[ 16384 ];
+		protected byte[] deflated = new byte[ 0 ];
+		final protected StringBuilder url = new StringBuilder();
+		protected byte[] box = new byte[ 0 ];
+		protected byte[] cell = new byte[ 0 ];
+		protected long inflateNanos;
+		
+		/**
+		 * @return a reused buffer of at least size bytes for boxes of cells
+		 */
+		protected byte[] box( final int size )
+		{
+			if ( box.length < size )
+				box = new byte[ size ];
+			return box;
+		}
+		
+		/**
+		 * @return a reused buffer of exactly size bytes to stage off-heap
+		 * 		cells
+		 */
+		protected byte[] cell( final int size )
+		{
+			if ( cell.length != size )
+				cell = new byte[ size ];
+			return cell;
+		}
+		
+		/**
+		 * @return a compressed copy of bytes for the cold tier
+		 */
+		protected byte[] deflate( final byte[] bytes )
+		{
+			if ( deflated.length < bytes.length / 2 )
+				deflated = new byte[ bytes.length / 2 ];
+			if ( deflater == null )
+				deflater = new Deflater( Deflater.BEST_SPEED );
+			else
+				deflater.reset();
+			deflater.setInput( bytes );
+			deflater.finish();
+			int length = 0;
+			while ( !deflater.finished() )
+			{
+				if ( length == deflated.length )
+					deflated = Arrays.copyOf( deflated, deflated.length << 1 );
+				length += deflater.deflate( deflated, length, deflated.length - length );
+			}
+			return Arrays.copyOf( deflated, length );
+		}
+		
+		/**
+		 * Inflate a whole cell from the cold tier into bytes.
+		 */
+		protected void inflate( final byte[] compressed, final byte[] bytes ) throws DataFormatException
+		{
+			inflater.reset();
+			inflater.setInput( compressed );
+			int offset = 0;
+			while ( offset < bytes.length && !inflater.finished() )
+			{
+				final int l = inflater.inflate( bytes, offset, bytes.length - offset );
+				if ( l == 0 && ( inflater.needsInput() || inflater.needsDictionary() ) )
+					break;
+				offset += l;
+			}
+			if ( offset < bytes.length )
+				throw new DataFormatException( "truncated cell" );
+		}
+		
+		/**
+		 * Inflate from in into bytes until length bytes are inflated or the
+		 * stream ends.  The time spent inflating is stored in
+		 * {@link #inflateNanos}, the rest was spent waiting for the stream.
+		 * 
+		 * @return the number of bytes inflated, bytes is reused across cells
+		 * 		and holds the previous cell beyond that
+		 */
+		protected int inflate( final InputStream in, final byte[] bytes, final int length ) throws IOException, DataFormatException
+		{
+			long nanos = 0;
+			inflater.reset();
+			int offset = 0;
+			while ( offset < length && !inflater.finished() )
+			{
+				if ( inflater.needsInput() )
+				{
+					final int l = in.read( chunk );
+					if ( l < 0 )
+						break;
+					inflater.setInput( chunk, 0, l );
+				}
+				else if ( inflater.needsDictionary() )
+					throw new DataFormatException( "preset dictionary not supported" );
+				final long t = System.nanoTime();
+				offset += inflater.inflate( bytes, offset, length - offset );
+				nanos += System.nanoTime() - t;
+			}
+			inflateNanos = nanos;
+			return offset;
+		}
+		
+		/**
+		 * Release the native zlib state of a decoder that is not kept.
+		 */
+		protected void end()
+		{
+			inflater.end();
+			if ( deflater != null )
+				deflater.end();
+		}
+	}
+	
+	/**
+	 * Spread a box of w &times; h &times; d pixels that the server cropped at
+	 * the border of the data set to boxWidth &times; boxHeight &times;
+	 * boxDepth pixels in place and pad it with 0.
+	 */
+	static protected void uncrop( final byte[] bytes, final int w, final int h, final int d, final int boxWidth, final int boxHeight, final int boxDepth )
+	{
+		final int sliceSize = boxHeight * boxWidth;
+		Arrays.fill( bytes, d * sliceSize, boxDepth * sliceSize, ( byte )0 );
+		for ( int z = d - 1; z >= 0; --z )
+		{
+			final int slice = z * sliceSize;
+			Arrays.fill( bytes, slice + h * boxWidth, slice + sliceSize, ( byte )0 );
+			for ( int y = h - 1; y >= 0; --y )
+			{
+				final int row = slice + y * boxWidth;
+				System.arraycopy( bytes, ( z * h + y ) * w, bytes, row, w );
+				Arrays.fill( bytes, row + w, row + boxWidth, ( byte )0 );
+			}
+		}
+	}
+	
+	/**
+	 * Copy cell (i, j, k) of a box of nx &times; ny cells that was fetched
+	 * with {@link #fetchBox(byte[], long, long, long, int, int, int, Decoder)} into
+	 * bytes.
+	 */
+	protected void copyCell( final byte[] box, final int nx, final int ny, final int i, final int j, final int k, final byte[] bytes )
+	{
+		final int boxWidth = nx * cellWidth;
+		final int boxHeight = ny * cellHeight;
+		for ( int zz = 0, o = 0; zz < cellDepth; ++zz )
+		{
+			final int boxZ = k * cellDepth + zz;
+			for ( int yy = 0; yy < cellHeight; ++yy, o += cellWidth )
+				System.arraycopy( box, ( boxZ * boxHeight + j * cellHeight + yy ) * boxWidth + i * cellWidth, bytes, o, cellWidth );
+		}
+	}
+	
+	final static protected DecoderPool< Decoder > decoders = new DecoderPool< Decoder >( Decoder::new, Decoder::end, FetcherPool.defaultNumFetchers );
+	
 	final protected String baseUrl;
 	final protected long height, width, depth, minZ;
 	final protected int cellWidth, cellHeight, cellDepth, level;
 	protected long i;
 	
-	public AbstractOpenConnectomeRandomAccessibleInterval( final String url, final long width, final long height, final long depth, final int cellWidth, final int cellHeight, final int cellDepth, final long minZ, final int level )
+	/* blocks for off-heap cells, null keeps cells on the heap */
+	protected volatile SlabPool slabs = null;
+	
+	public AbstractOpenConnectomeRandomAccessibleInterval( final String url, final long width, final long height, final long depth, final int cellWidth, final int cellHeight, final int cellDepth, final long minZ, final int level, final Cache< E > cache )
 	{
-		super( new long[]{ width, height, depth } );
+		super( new long[]{ width, height, depth }, cache );
 		this.baseUrl = url + "/zip/";
 		this.cellWidth = cellWidth;
 		this.cellHeight = cellHeight;
@@ -614,6 +969,11 @@ abstract public class AbstractOpenConnectomeRandomAccessibleInterval< T extends
 		this.level = level;
 	}
 	
+	public AbstractOpenConnectomeRandomAccessibleInterval( final String url, final long width, final long height, final long depth, final int cellWidth, final int cellHeight, final int cellDepth, final long minZ, final int level )
+	{
+		this( url, width, height, depth, cellWidth, cellHeight, cellDepth, minZ, level, new ClockCache< E >( defaultCacheBytes ) );
+	}
+	
 	public AbstractOpenConnectomeRandomAccessibleInterval( final String url, final long width, final long height, final long depth, final long minZ, final int level )
 	{
 		this( url, width, height, depth, 64, 64, 64, minZ, level );
@@ -630,57 +990,332 @@ abstract public class AbstractOpenConnectomeRandomAccessibleInterval< T extends
 		return 3;
 	}
 	
-	protected void fetchPixels3( final byte[] bytes, final long x, final long y, final long z )
+	/**
+	 * Prefetch the next {@link #prefetchDistance} cells in the direction in
+	 * which an {@link AbstractOpenConnectomeRandomAccess} moved from its
+	 * previous cell to cell (x, y, z), and the cell in the next z-section.
+	 * Jumps over more than one cell do not trigger prefetching along that
+	 * axis.
+	 */
+	protected void prefetch(
+			final long x,
+			final long y,
+			final long z,
+			final long dx,
+			final long dy,
+			final long dz,
+			final long zDirection )
+	{
+		final int n = prefetchDistance;
+		if ( n <= 0 )
+			return;
+		
+		for ( int k = 1; k <= n; ++k )
+		{
+			if ( dx == 1 || dx == -1 )
+				prefetch( x + k * dx, y, z, k );
+			if ( dy == 1 || dy == -1 )
+				prefetch( x, y + k * dy, z, k );
+			if ( dz == 1 || dz == -1 )
+				prefetch( x, y, z + k * dz, k );
+		}
+		if ( dz == 0 && ( dx != 0 || dy != 0 ) )
+			prefetch( x, y, z + zDirection, 1 );
+	}
+	
+	protected void prefetch( final long x, final long y, final long z, final double priority )
+	{
+		if ( contains( x, y, z ) )
+			prefetch( index( x, y, z ), priority );
+	}
+	
+	/**
+	 * @return the size of a cell in pixels
+	 */
+	public int[] getCellDimensions()
+	{
+		return new int[]{ cellWidth, cellHeight, cellDepth };
+	}
+	
+	/**
+	 * @return the linear index of cell (x, y, z), -1 for all cells outside
+	 * 		the data set, whose indices would otherwise alias cells inside
+	 */
+	final public long index( final long x, final long y, final long z )
+	{
+		return contains( x, y, z ) ? ( z * height + y ) * width + x : -1;
+	}
+	
+	final public long cellX( final long index )
+	{
+		return index % width;
+	}
+	
+	final public long cellY( final long index )
+	{
+		return ( index / width ) % height;
+	}
+	
+	final public long cellZ( final long index )
+	{
+		return index / ( width * height );
+	}
+	
+	/**
+	 * @return true if cell (x, y, z) is inside the data set.  Cells outside
+	 * are neither requested nor cached because their linear indices would
+	 * alias cells inside.
+	 */
+	final public boolean contains( final long x, final long y, final long z )
+	{
+		return x >= 0 && x < width && y >= 0 && y < height && z >= 0 && z < depth;
+	}
+	
+	/**
+	 * Load every cell in a thread of its own, at most maxPerHost at a time
+	 * for all sources on the same host.  Enough {@link Decoder}s for these
+	 * loads are kept for reuse.
+	 * 
+	 * @see FetcherPool#hostPermits(String, int)
+	 */
+	public void setThreadPerRequest( final int maxPerHost )
+	{
+		decoders.ensureMaxIdle( maxPerHost + FetcherPool.defaultNumFetchers );
+		setThreadPerRequest( FetcherPool.hostPermits( baseUrl, maxPerHost ) );
+	}
+	
+	/**
+	 * Keep fetched cells in a {@link DiskCache} in directory that is shared by
+	 * all datasets and scale levels.
+	 * 
+	 * @param directory
+	 * @param maxBytes maximum size of the disk cache for this dataset and scale level
+	 * @throws IOException
+	 */
+	public void setDiskCache( final File directory, final long maxBytes ) throws IOException
+	{
+		setDiskCache(
+				new DiskCache(
+						directory,
+						baseUrl + level + " " + cellWidth + "x" + cellHeight + "x" + cellDepth + " " + minZ,
+						cellWidth * cellHeight * cellDepth,
+						maxBytes ) );
+	}
+	
+	/**
+	 * Keep cells that are created from now on in direct memory, up to
+	 * maxBytes, cells beyond that stay on the heap.  The blocks are
+	 * allocated in large slabs on demand and reused for new cells when
+	 * cells leave the cache.  The cache budget should therefore be at least
+	 * maxBytes.  maxBytes &le; 0 stores new cells on the heap again.
+	 */
+	public void setOffHeap( final long maxBytes )
+	{
+		if ( maxBytes > 0 )
+		{
+			cache.setRemovalListener( e -> e.release() );
+			slabs = new SlabPool( cellWidth * cellHeight * cellDepth, maxBytes );
+		}
+		else
+			slabs = null;
+	}
+	
+	public SlabPool getSlabPool()
+	{
+		return slabs;
+	}
+	
+	/**
+	 * Load cell with a {@link Decoder} borrowed from {@link #decoders}.
+	 * 
+	 * @return true if the cell was loaded successfully
+	 */
+	protected boolean fetchCell( final Cell cell )
+	{
+		final Decoder decoder = decoders.borrow();
+		try
+		{
+			return fetchCell( cell, decoder );
+		}
+		finally
+		{
+			decoders.release( decoder );
+		}
+	}
+	
+	/**
+	 * Load cell through {@link #fetchPixels3(byte[], long, Decoder)},
+	 * off-heap cells are staged in the buffer of decoder.  An off-heap cell
+	 * is written only if it can be retained, its block may have been
+	 * returned to the {@link SlabPool} and handed to another cell while
+	 * it was fetched.
+	 * 
+	 * @return true if the cell was loaded successfully
+	 */
+	protected boolean fetchCell( final Cell cell, final Decoder decoder )
+	{
+		if ( !cell.isOffHeap() )
+			return fetchPixels3( cell.data, cell.key, decoder );
+		final byte[] bytes = decoder.cell( cellWidth * cellHeight * cellDepth );
+		if ( !fetchPixels3( bytes, cell.key, decoder ) || !cell.retain() )
+			return false;
+		try
+		{
+			cell.write( bytes );
+		}
+		finally
+		{
+			cell.release();
+		}
+		return true;
+	}
+	
+	/**
+	 * Store a compressed copy of cell key in the cold tier, if there is one.
+	 */
+	protected void storeCold( final long key, final byte[] bytes, final Decoder decoder )
+	{
+		final Cache< byte[] > coldCache = this.coldCache;
+		if ( coldCache != null )
+		{
+			final byte[] compressed = decoder.deflate( bytes );
+			coldCache.put( key, compressed, compressed.length );
+		}
+	}
+	
+	/**
+	 * Inflate a cell from the cold tier, read it from the {@link DiskCache},
+	 * or fetch it from the server and store it in the cold tier and the
+	 * {@link DiskCache}.
+	 * 
+	 * @return true if the cell was loaded successfully
+	 */
+	protected boolean fetchPixels3( final byte[] bytes, final long key, final Decoder decoder )
+	{
+		final Cache< byte[] > coldCache = this.coldCache;
+		if ( coldCache != null )
+		{
+			final byte[] compressed = coldCache.get( key );
+			if ( compressed != null )
+			{
+				final long t = System.nanoTime();
+				try
+				{
+					decoder.inflate( compressed, bytes );
+					metrics.decode( System.nanoTime() - t );
+					metrics.coldHit();
+					return true;
+				}
+				catch ( final DataFormatException e )
+				{
+					coldCache.remove( key );
+				}
+			}
+		}
+		final DiskCache diskCache = this.diskCache;
+		if ( diskCache != null && diskCache.read( key, bytes ) )
+		{
+			metrics.diskHit();
+			return true;
+		}
+		final boolean success = fetchPixels3( bytes, cellX( key ), cellY( key ), cellZ( key ), decoder );
+		if ( success )
+		{
+			storeCold( key, bytes, decoder );
+			if ( diskCache != null )
+				diskCache.write( key, bytes );
+		}
+		return success;
+	}
+	
+	/**
+	 * Fetch a cell from the server.
+	 * 
+	 * @return true if the cell was loaded successfully
+	 */
+	protected boolean fetchPixels3( final byte[] bytes, final long x, final long y, final long z, final Decoder decoder )
+	{
+		return fetchBox( bytes, x, y, z, 1, 1, 1, decoder );
+	}
+	
+	/**
+	 * Fetch a box of nx &times; ny &times; nz cells starting at cell
+	 * (x, y, z) with a single request.  The box is stored in bytes as one
+	 * array of (nx &middot; cellWidth) &times; (ny &middot; cellHeight)
+	 * &times; (nz &middot; cellDepth) pixels, x fastest.  Boxes that the
+	 * server crops at the border of the data set are padded with 0, any
+	 * other size of the response is an error.
+	 * 
+	 * @return true if the box was loaded successfully
+	 */
+	protected boolean fetchBox( final byte[] bytes, final long x, final long y, final long z, final int nx, final int ny, final int nz, final Decoder decoder )
 	{
 		final long x0 = cellWidth * x;
 		final long y0 = cellHeight * y;
 		final long z0 = cellDepth * z + minZ;
-			
-		final StringBuffer url = new StringBuffer( baseUrl );
+		
+		final int boxWidth = nx * cellWidth;
+		final int boxHeight = ny * cellHeight;
+		final int boxDepth = nz * cellDepth;
+		final int w = ( int )Math.min( boxWidth, dimension( 0 ) - x0 );
+		final int h = ( int )Math.min( boxHeight, dimension( 1 ) - y0 );
+		final int d = ( int )Math.min( boxDepth, dimension( 2 ) - cellDepth * z );
+		
+		final StringBuilder url = decoder.url;
+		url.setLength( 0 );
+		url.append( baseUrl );
 		url.append( level );
 		url.append( "/" );
 		url.append( x0 );
 		url.append( "," );
-		url.append( x0 + cellWidth );
+		url.append( x0 + nx * cellWidth );
 		url.append( "/" );
 		url.append( y0 );
 		url.append( "," );
-		url.append( y0 + cellHeight );
+		url.append( y0 + ny * cellHeight );
 		url.append( "/" );
 		url.append( z0 );
 		url.append( "," );
-		url.append( z0 + cellDepth );
+		url.append( z0 + nz * cellDepth );
 		url.append( "/" );
 		
-		try
+		final long t = System.nanoTime();
+		try ( final InputStream in = new URL( url.toString() ).openStream() )
 		{
-			final URL file = new URL( url.toString() );
-			final InputStream in = file.openStream();
-			final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-			final byte[] chunk = new byte[ 4096 ];
-			int l;
-			for ( l = in.read( chunk ); l > 0; l = in.read( chunk ) )
-			    byteStream.write( chunk, 0, l );
-
-			final byte[] zippedBytes = byteStream.toByteArray();
-			final Inflater inflater = new Inflater();
-			inflater.setInput( zippedBytes );
-			inflater.inflate( bytes );
-			inflater.end();
-			byteStream.close();
+			final int boxSize = boxWidth * boxHeight * boxDepth;
+			final int length = decoder.inflate( in, bytes, boxSize );
+			if ( length != boxSize )
+			{
+				if ( length == w * h * d )
+					uncrop( bytes, w, h, d, boxWidth, boxHeight, boxDepth );
+				else
+					throw new DataFormatException( "truncated box, " + length + " of " + boxSize + " bytes" );
+			}
+			metrics.download( System.nanoTime() - t - decoder.inflateNanos );
+			metrics.decode( decoder.inflateNanos );
+			return true;
 		}
 		catch (final IOException e)
 		{
+			metrics.failure();
 			System.out.println( "failed loading x=" + x + " y=" + y + " z=" + z + " url(" + url.toString() + ")" );
 		}
 		catch( final DataFormatException e )
 		{
+			metrics.failure();
 			System.out.println( "failed unpacking x=" + x + " y=" + y + " z=" + z + " url(" + url.toString() + ")" );
 		}
+		return false;
 	}
 		
 	abstract protected E fetchPixels2( final long x, final long y, final long z );
 	
+	/**
+	 * @return the shared blank cell with key -1 for everything outside of
+	 * 		the data set
+	 */
+	abstract protected E blank();
+	
 	protected E fetchPixels( final long x, final long y, final long z )
 	{
 		try
@@ -49,8 +49,9 @@
  */
 package interactive.remote.openconnectome;
 
-import java.lang.ref.Reference;
-import java.lang.ref.SoftReference;
+import interactive.remote.cache.Cache;
+
+import java.io.UncheckedIOException;
 
 import net.imglib2.Interval;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
@@ -73,21 +74,21 @@ import net.imglib2.type.numeric.integer.UnsignedByteType;
 public class OpenConnectomeRandomAccessibleInterval extends
 	AbstractOpenConnectomeRandomAccessibleInterval< UnsignedByteType, OpenConnectomeRandomAccessibleInterval.Entry >
 {
-	public class Entry extends AbstractOpenConnectomeRandomAccessibleInterval< UnsignedByteType, Entry >.Entry
+	public class Entry extends AbstractOpenConnectomeRandomAccessibleInterval< UnsignedByteType, Entry >.Cell
 	{
-		final public byte[] data;
+		public Entry( final long key, final byte[] data )
+		{
+			super( key, data );
+		}
 		
-		public Entry( final Key key, final byte[] data )
+		public Entry( final long key )
 		{
 			super( key );
-			this.data = data;
 		}
 	}
 	
 	public class OpenConnectomeRandomAccess extends AbstractOpenConnectomeRandomAccess
 	{
-		protected byte[] pixels;
-		
 		public OpenConnectomeRandomAccess()
 		{
 			super( new UnsignedByteType() );
@@ -96,13 +97,12 @@ public class OpenConnectomeRandomAccessibleInterval extends
 		public OpenConnectomeRandomAccess( final OpenConnectomeRandomAccess template )
 		{
 			super( template );
-			pixels = template.pixels;
 		}
 		
 		@Override
 		public UnsignedByteType get()
 		{
-			t.set( 0xff & pixels[ ( zMod * cellHeight + yMod ) * cellWidth + xMod ] );
+			t.set( 0xff & entry.get( ( zMod * cellHeight + yMod ) * cellWidth + xMod ) );
 			return t;
 		}
 
@@ -121,11 +121,18 @@ public class OpenConnectomeRandomAccessibleInterval extends
 		@Override
 		protected void fetchPixels()
 		{
-			final Entry entry = OpenConnectomeRandomAccessibleInterval.this.fetchPixels( xDiv, yDiv, zDiv );
-			pixels = entry.data;
+			fetchEntry();
+			prefetch();
 		}
 	}
 	
+	private Entry blank;
+	
+	public OpenConnectomeRandomAccessibleInterval( final String url, final long width, final long height, final long depth, final int cellWidth, final int cellHeight, final int cellDepth, final long minZ, final int level, final Cache< Entry > cache )
+	{
+		super( url, width, height, depth, cellWidth, cellHeight, cellDepth, minZ, level, cache );
+	}
+	
 	public OpenConnectomeRandomAccessibleInterval( final String url, final long width, final long height, final long depth, final int cellWidth, final int cellHeight, final int cellDepth, final long minZ, final int level )
 	{
 		super( url, width, height, depth, cellWidth, cellHeight, cellDepth, minZ, level );
@@ -156,26 +163,114 @@ public class OpenConnectomeRandomAccessibleInterval extends
 	@Override
 	protected Entry fetchPixels2( final long x, final long y, final long z )
 	{
-		final SoftReference< Entry > ref;
-		final Entry entry;
-		final byte[] bytes;
-		synchronized ( cache )
+		if ( !contains( x, y, z ) )
+			return blank();
+		try
+		{
+			return getOrLoad( index( x, y, z ) );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			return new Entry( -1, new byte[ cellWidth * cellHeight * cellDepth ] );
+		}
+	}
+	
+	@Override
+	protected Entry blank()
+	{
+		Entry blank = this.blank;
+		if ( blank == null )
+			this.blank = blank = new Entry( -1, new byte[ cellWidth * cellHeight * cellDepth ] );
+		return blank;
+	}
+	
+	/**
+	 * Load a cell.
+	 * 
+	 * @throws UncheckedIOException if the cell could not be loaded, it is
+	 * 		not cached then
+	 */
+	@Override
+	protected Entry loadEntry( final long key )
+	{
+		final Entry entry = new Entry( key );
+		if ( !fetchCell( entry ) )
 		{
-			final Key key = new Key( x, y, z );
-			final Reference< Entry > cachedReference = cache.get( key );
-			if ( cachedReference != null )
+			entry.release();
+			throw loadFailed( key );
+		}
+		return entry;
+	}
+	
+	@Override
+	protected Class< ? > storageClass()
+	{
+		return byte[].class;
+	}
+	
+	/**
+	 * Copy the box of size[0] &times; size[1] &times; size[2] pixels at min
+	 * into bytes, x fastest.  Cells are requested from the prefetchers
+	 * ahead of the cell being copied such that they load concurrently.
+	 * 
+	 * @throws UncheckedIOException if a cell could not be loaded
+	 */
+	@Override
+	protected void read( final long[] min, final int[] size, final Object pixels )
+	{
+		final byte[] bytes = ( byte[] )pixels;
+		final long x0 = Math.floorDiv( min[ 0 ], cellWidth );
+		final long y0 = Math.floorDiv( min[ 1 ], cellHeight );
+		final long z0 = Math.floorDiv( min[ 2 ], cellDepth );
+		final long nx = Math.floorDiv( min[ 0 ] + size[ 0 ] - 1, cellWidth ) - x0 + 1;
+		final long ny = Math.floorDiv( min[ 1 ] + size[ 1 ] - 1, cellHeight ) - y0 + 1;
+		final long nz = Math.floorDiv( min[ 2 ] + size[ 2 ] - 1, cellDepth ) - z0 + 1;
+		final long numCells = nx * ny * nz;
+		final int readAhead = readAhead( ( long )cellWidth * cellHeight * cellDepth );
+		
+		for ( long j = 1; j <= readAhead && j < numCells; ++j )
+			prefetch( x0 + j % nx, y0 + ( j / nx ) % ny, z0 + j / ( nx * ny ), j );
+		for ( long i = 0; i < numCells; ++i )
+		{
+			final long j = i + readAhead;
+			if ( i > 0 && j < numCells )
+				prefetch( x0 + j % nx, y0 + ( j / nx ) % ny, z0 + j / ( nx * ny ), j );
+			
+			final long x = x0 + i % nx;
+			final long y = y0 + ( i / nx ) % ny;
+			final long z = z0 + i / ( nx * ny );
+			
+			/* hold on to off-heap cells while copying */
+			Entry entry;
+			do
+				entry = fetchPixels( x, y, z );
+			while ( !entry.retain() );
+			
+			final long cellX = x * cellWidth;
+			final long cellY = y * cellHeight;
+			final long cellZ = z * cellDepth;
+			final long xa = Math.max( min[ 0 ], cellX );
+			final long xb = Math.min( min[ 0 ] + size[ 0 ], cellX + cellWidth );
+			final long ya = Math.max( min[ 1 ], cellY );
+			final long yb = Math.min( min[ 1 ] + size[ 1 ], cellY + cellHeight );
+			final long za = Math.max( min[ 2 ], cellZ );
+			final long zb = Math.min( min[ 2 ] + size[ 2 ], cellZ + cellDepth );
+			final int length = ( int )( xb - xa );
+			try
 			{
-				final Entry cachedEntry = cachedReference.get();
-				if ( cachedEntry != null )
-					return cachedEntry;
+				for ( long zz = za; zz < zb; ++zz )
+					for ( long yy = ya; yy < yb; ++yy )
+						entry.read(
+								( int )( ( ( zz - cellZ ) * cellHeight + yy - cellY ) * cellWidth + xa - cellX ),
+								bytes,
+								( int )( ( ( zz - min[ 2 ] ) * size[ 1 ] + yy - min[ 1 ] ) * size[ 0 ] + xa - min[ 0 ] ),
+								length );
+			}
+			finally
+			{
+				entry.release();
 			}
-			
-			bytes = new byte[ cellWidth * cellHeight * cellDepth ];
-			entry = new Entry( key, bytes );
-			ref = new SoftReference< Entry >( entry );
-			cache.put( key, ref );
 		}
-		fetchPixels3( bytes, x, y, z );
-		return entry;
 	}
 }
@@ -49,18 +49,13 @@
  */
 package interactive.remote.openconnectome;
 
+import interactive.remote.FetcherPool;
+import interactive.remote.cache.Cache;
+import interactive.remote.cache.ClockCache;
+import interactive.remote.cache.DiskCache;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.lang.ref.Reference;
-import java.lang.ref.SoftReference;
-import java.lang.ref.WeakReference;
-import java.net.URL;
-import java.util.LinkedList;
-import java.util.NoSuchElementException;
-import java.util.zip.DataFormatException;
-import java.util.zip.Inflater;
+import java.io.UncheckedIOException;
+import java.util.concurrent.Semaphore;
 
 import net.imglib2.Interval;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
@@ -79,126 +74,39 @@ import net.imglib2.type.volatiles.VolatileRealType;
  * 0-coordinate in <em>z</em> and should point to the first slice of the
  * dataset.</p> 
  * 
+ * <p>Missing cells are returned invalid and loaded by a {@link FetcherPool},
+ * cells close to the focus of attention ({@link #setFocus(double, double, double)})
+ * and recently requested cells first.  Call {@link #shutdown()} to stop
+ * the worker threads.</p>
+ * 
  * @author Stephan Saalfeld
  */
 public class VolatileOpenConnectomeRandomAccessibleInterval extends
 		AbstractOpenConnectomeRandomAccessibleInterval< VolatileRealType< UnsignedByteType >, VolatileOpenConnectomeRandomAccessibleInterval.Entry >
 {
-	public class Entry extends AbstractOpenConnectomeRandomAccessibleInterval< VolatileRealType< UnsignedByteType >, Entry >.Entry
+	public class Entry extends AbstractOpenConnectomeRandomAccessibleInterval< VolatileRealType< UnsignedByteType >, Entry >.Cell
 	{
-		public boolean valid;
-		final public byte[] data;
+		public volatile boolean valid;
+		
+		public Entry( final long key, final byte[] data, final boolean valid )
+		{
+			super( key, data );
+			this.valid = valid;
+		}
 		
-		public Entry( final Key key, final byte[] data, final boolean valid )
+		public Entry( final long key, final boolean valid )
 		{
 			super( key );
-			this.data = data;
 			this.valid = valid;
 		}
 		
+		@Override
 		public boolean isValid() { return valid; }
 		public void setValid( final boolean valid ) { this.valid = valid; }
 	}
 	
-	protected class Fetcher extends Thread
-	{
-		@Override
-		final public void run()
-		{
-			while ( !isInterrupted() )
-			{
-				Reference< Entry > ref;
-				synchronized ( queue )
-				{
-					try { ref = queue.pop(); }
-					catch ( final NoSuchElementException e ) { ref = null; }
-				}
-				if ( ref == null )
-				{
-					synchronized ( this )
-					{
-						try { wait(); }
-						catch ( final InterruptedException e ) {}
-					}
-				}
-				else
-				{
-					final Entry entry;
-					synchronized ( cache )
-					{
-						entry = ref.get();
-						if ( entry != null )
-						{
-							/* replace WeakReferences by SoftReferences which promotes cache entries from third to second class citizens */
-							synchronized ( cache )
-							{
-								cache.remove( entry.key );
-								cache.put( entry.key, new SoftReference< Entry >( entry ) );
-							}
-						}
-					}
-					
-					if ( entry != null )
-					{	
-						final long x0 = cellWidth * entry.key.x;
-						final long y0 = cellHeight * entry.key.y;
-						final long z0 = cellDepth * entry.key.z + minZ;
-						
-						final StringBuffer url = new StringBuffer( baseUrl );
-						url.append( level );
-						url.append( "/" );
-						url.append( x0 );
-						url.append( "," );
-						url.append( x0 + cellWidth );
-						url.append( "/" );
-						url.append( y0 );
-						url.append( "," );
-						url.append( y0 + cellHeight );
-						url.append( "/" );
-						url.append( z0 );
-						url.append( "," );
-						url.append( z0 + cellDepth );
-						url.append( "/" );
-						
-						try
-						{
-							final URL file = new URL( url.toString() );
-							final InputStream in = file.openStream();
-							final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-							final byte[] chunk = new byte[ 4096 ];
-							int l;
-							for ( l = in.read( chunk ); l > 0; l = in.read( chunk ) )
-							    byteStream.write( chunk, 0, l );
-			
-							final byte[] zippedBytes = byteStream.toByteArray();
-							final Inflater inflater = new Inflater();
-							inflater.setInput( zippedBytes );
-							inflater.inflate( entry.data );
-							entry.setValid( true );
-								
-							inflater.end();
-							byteStream.close();
-							
-							//System.out.println( "cached x=" + x + " y=" + y + " z=" + z + " url(" + url.toString() + ")" );
-						}
-						catch (final IOException e)
-						{
-							System.out.println( "failed loading x=" + entry.key.x + " y=" + entry.key.y + " z=" + entry.key.z + " url(" + url.toString() + ")" );
-						}
-						catch( final DataFormatException e )
-						{
-							System.out.println( "failed unpacking x=" + entry.key.x + " y=" + entry.key.y + " z=" + entry.key.z + " url(" + url.toString() + ")" );
-						}
-					}
-				}
-			}
-		}
-	}
-	
 	public class VolatileOpenConnectomeRandomAccess extends AbstractOpenConnectomeRandomAccess
 	{
-		protected Entry entry;
-		
 		public VolatileOpenConnectomeRandomAccess()
 		{
 			super( new VolatileRealType< UnsignedByteType >( new UnsignedByteType() ) );
@@ -212,7 +120,7 @@ public class VolatileOpenConnectomeRandomAccessibleInterval extends
 		@Override
 		public VolatileRealType< UnsignedByteType > get()
 		{
-			t.get().set( 0xff & entry.data[ ( zMod * cellHeight + yMod ) * cellWidth + xMod ] );
+			t.get().set( 0xff & entry.get( ( zMod * cellHeight + yMod ) * cellWidth + xMod ) );
 			t.setValid( entry.valid );
 			return t;
 		}
@@ -232,19 +140,36 @@ public class VolatileOpenConnectomeRandomAccessibleInterval extends
 		@Override
 		protected void fetchPixels()
 		{
-			entry = VolatileOpenConnectomeRandomAccessibleInterval.this.fetchPixels( xDiv, yDiv, zDiv );
+			fetchEntry();
+			prefetch();
 		}
 	}
 	
-	final protected Fetcher fetcher;
-	final protected LinkedList< Reference< Entry > > queue = new LinkedList< Reference< Entry > >();
+	final protected FetcherPool< Long, Entry > fetchers;
 	
-	public VolatileOpenConnectomeRandomAccessibleInterval( final String url, final long width, final long height, final long depth, final int cellWidth, final int cellHeight, final int cellDepth, final long minZ, final int level )
+	private Entry blank;
+	
+	/* maximum number of cells per request in x, y, and z */
+	protected volatile int maxBoxWidth = 4, maxBoxHeight = 4, maxBoxDepth = 1;
+	
+	/* source coordinates of the focus of attention, null if there is none */
+	protected volatile double[] focus = null;
+	
+	public VolatileOpenConnectomeRandomAccessibleInterval( final String url, final long width, final long height, final long depth, final int cellWidth, final int cellHeight, final int cellDepth, final long minZ, final int level, final Cache< Entry > cache, final int numFetchers )
 	{
-		super( url, width, height, depth, cellWidth, cellHeight, cellDepth, minZ, level );
+		super( url, width, height, depth, cellWidth, cellHeight, cellDepth, minZ, level, cache );
 		
-		fetcher = new Fetcher();
-		fetcher.start();
+		fetchers = new FetcherPool< Long, Entry >( this::load, this::cancel, numFetchers, "OpenConnectome Fetcher" );
+	}
+	
+	public VolatileOpenConnectomeRandomAccessibleInterval( final String url, final long width, final long height, final long depth, final int cellWidth, final int cellHeight, final int cellDepth, final long minZ, final int level, final Cache< Entry > cache )
+	{
+		this( url, width, height, depth, cellWidth, cellHeight, cellDepth, minZ, level, cache, FetcherPool.defaultNumFetchers );
+	}
+	
+	public VolatileOpenConnectomeRandomAccessibleInterval( final String url, final long width, final long height, final long depth, final int cellWidth, final int cellHeight, final int cellDepth, final long minZ, final int level )
+	{
+		this( url, width, height, depth, cellWidth, cellHeight, cellDepth, minZ, level, new ClockCache< Entry >( defaultCacheBytes ) );
 	}
 	
 	public VolatileOpenConnectomeRandomAccessibleInterval( final String url, final long width, final long height, final long depth, final long minZ, final int level )
@@ -279,40 +204,322 @@ public class VolatileOpenConnectomeRandomAccessibleInterval extends
 	@Override
 	protected Entry fetchPixels2( final long x, final long y, final long z )
 	{
-		final Reference< Entry > ref;
-		final Key key;
-		synchronized ( cache )
+		if ( !contains( x, y, z ) )
+			return blank();
+		final long key = index( x, y, z );
+		final Entry cachedEntry = cache.get( key );
+		if ( cachedEntry != null )
+		{
+			metrics.hit();
+			/* renew the request if it is from an older generation */
+			if ( !cachedEntry.valid )
+				fetchers.renew( key, cachedEntry, distanceToFocus( x, y, z ) );
+			return cachedEntry;
+		}
+		metrics.miss();
+		return request( key, distanceToFocus( x, y, z ) );
+	}
+	
+	/**
+	 * A valid blank cell for everything outside of the data set.
+	 */
+	@Override
+	protected Entry blank()
+	{
+		Entry blank = this.blank;
+		if ( blank == null )
+			this.blank = blank = new Entry( -1, new byte[ cellWidth * cellHeight * cellDepth ], true );
+		return blank;
+	}
+	
+	/**
+	 * Return the cached entry for key or cache an invalid entry and queue it
+	 * for loading.
+	 */
+	protected Entry request( final long key, final double priority )
+	{
+		final Entry cachedEntry = cache.get( key );
+		if ( cachedEntry != null )
+			return cachedEntry;
+		
+		final Entry entry = new Entry( key, false );
+		final Entry concurrentEntry = cache.putIfAbsent( key, entry, entry.bytes() );
+		if ( concurrentEntry != null )
+		{
+			entry.release();
+			return concurrentEntry;
+		}
+		
+		fetchers.request( key, entry, priority );
+		return entry;
+	}
+	
+	/**
+	 * Prefetched cells go through the same queue as visible cells, behind
+	 * them by the prefetch distance.
+	 */
+	@Override
+	protected void prefetch( final long key, final double priority )
+	{
+		request( key, distanceToFocus( cellX( key ), cellY( key ), cellZ( key ) ) + priority );
+	}
+	
+	/**
+	 * Load a cell synchronously.
+	 * 
+	 * @throws UncheckedIOException if the cell could not be loaded, it is
+	 * 		not cached then
+	 */
+	@Override
+	protected Entry loadEntry( final long key )
+	{
+		final Entry entry = new Entry( key, false );
+		load( entry );
+		if ( !entry.valid )
+		{
+			entry.release();
+			throw loadFailed( key );
+		}
+		return entry;
+	}
+	
+	/**
+	 * Called by the {@link FetcherPool}, reads from the disk cache or fetches
+	 * from the server.  Queued cells adjacent to entry are fetched with it
+	 * in one box request.  The cache releases an off-heap cell when its
+	 * placeholder is evicted, so entry is retained while it is loaded and
+	 * skipped if it has been released already.  If loading fails, the
+	 * invalid entry is dropped like a cancelled one such that the cell is
+	 * requested again when it is visited again.
+	 */
+	protected void load( final Entry entry )
+	{
+		if ( !entry.retain() )
+			return;
+		try
 		{
-			key = new Key( x, y, z );
-			final Reference< Entry > cachedReference = cache.get( key );
-			if ( cachedReference != null )
+			final long key = entry.key;
+			final long x = cellX( key );
+			final long y = cellY( key );
+			final long z = cellZ( key );
+			if ( maxBoxWidth * maxBoxHeight * maxBoxDepth > 1 && isCoalescable( x, y, z ) )
+				loadBox( entry, x, y, z );
+			else
 			{
-				final Entry cachedEntry = cachedReference.get();
-				if ( cachedEntry != null )
-					return cachedEntry;
+				metrics.load();
+				if ( fetchCell( entry ) )
+					entry.setValid( true );
+				else
+					cancel( entry );
 			}
-			
-			final byte[] bytes = new byte[ cellWidth * cellHeight * cellDepth ];
-			ref = new WeakReference< Entry >( new Entry( key, bytes, false ) );
-			//ref = new SoftReference< Entry >( new Entry( key, bytes, false ) );
-			cache.put( key, ref );
-			queue.add( ref );
 		}
-		synchronized ( fetcher )
+		finally
 		{
-			fetcher.notify();
+			entry.release();
 		}
+	}
+	
+	/**
+	 * Cells can be fetched as part of a box if they are entirely inside the
+	 * dataset, because the server crops boxes at the border, and if they are
+	 * neither in the cold tier nor in the disk cache.
+	 */
+	protected boolean isCoalescable( final long x, final long y, final long z )
+	{
+		if (
+				( x + 1 ) * cellWidth > dimension( 0 ) ||
+				( y + 1 ) * cellHeight > dimension( 1 ) ||
+				( z + 1 ) * cellDepth > dimension( 2 ) )
+			return false;
+		final long key = index( x, y, z );
+		final Cache< byte[] > coldCache = this.coldCache;
+		if ( coldCache != null && coldCache.get( key ) != null )
+			return false;
+		final DiskCache diskCache = this.diskCache;
+		return diskCache == null || !diskCache.contains( key );
+	}
+	
+	protected boolean isQueued( final long x, final long y, final long z )
+	{
+		return contains( x, y, z ) && fetchers.isPending( index( x, y, z ) ) && isCoalescable( x, y, z );
+	}
+	
+	protected boolean isQueued( final long x0, final long x1, final long y0, final long y1, final long z0, final long z1 )
+	{
+		for ( long z = z0; z <= z1; ++z )
+			for ( long y = y0; y <= y1; ++y )
+				for ( long x = x0; x <= x1; ++x )
+					if ( !isQueued( x, y, z ) )
+						return false;
+		return true;
+	}
+	
+	/**
+	 * Grow a box around (x, y, z) over queued cells, first along x, then
+	 * along y and z as long as whole rows or slices are queued, claim those
+	 * cells from the {@link FetcherPool} and fetch the box with a single
+	 * request.  If that fails, the cells are fetched one by one.  entry is
+	 * retained by the caller, claimed cells are retained here and skipped
+	 * if they have been released already.
+	 */
+	protected void loadBox( final Entry entry, final long x, final long y, final long z )
+	{
+		long x0 = x, x1 = x, y0 = y, y1 = y, z0 = z, z1 = z;
+		while ( x1 - x0 + 1 < maxBoxWidth && isQueued( x1 + 1, y, z ) ) ++x1;
+		while ( x1 - x0 + 1 < maxBoxWidth && isQueued( x0 - 1, y, z ) ) --x0;
+		while ( y1 - y0 + 1 < maxBoxHeight && isQueued( x0, x1, y1 + 1, y1 + 1, z, z ) ) ++y1;
+		while ( y1 - y0 + 1 < maxBoxHeight && isQueued( x0, x1, y0 - 1, y0 - 1, z, z ) ) --y0;
+		while ( z1 - z0 + 1 < maxBoxDepth && isQueued( x0, x1, y0, y1, z1 + 1, z1 + 1 ) ) ++z1;
+		while ( z1 - z0 + 1 < maxBoxDepth && isQueued( x0, x1, y0, y1, z0 - 1, z0 - 1 ) ) --z0;
+		
+		final int nx = ( int )( x1 - x0 + 1 );
+		final int ny = ( int )( y1 - y0 + 1 );
+		final int nz = ( int )( z1 - z0 + 1 );
+		
+		/* cells that another worker has taken or the cache has released in the meantime stay null */
+		final Entry[] entries = new Entry[ nx * ny * nz ];
+		for ( int k = 0, n = 0; k < nz; ++k )
+			for ( int j = 0; j < ny; ++j )
+				for ( int i = 0; i < nx; ++i, ++n )
+				{
+					final long cx = x0 + i, cy = y0 + j, cz = z0 + k;
+					if ( cx == x && cy == y && cz == z )
+						entries[ n ] = entry;
+					else
+					{
+						final Entry e = fetchers.claim( index( cx, cy, cz ) );
+						if ( e != null && e.retain() )
+							entries[ n ] = e;
+					}
+				}
 		
-		final Entry entry = ref.get();
-		if ( entry != null )
-			return entry;
-		else
-			return new Entry( key, new byte[ cellWidth * cellHeight * cellDepth ], false );
+		final int cellSize = cellWidth * cellHeight * cellDepth;
+		final Decoder decoder = decoders.borrow();
+		try
+		{
+			final byte[] box = entries.length == 1 && !entry.isOffHeap() ? entry.data : decoder.box( entries.length * cellSize );
+			final boolean success = fetchBox( box, x0, y0, z0, nx, ny, nz, decoder );
+			final DiskCache diskCache = this.diskCache;
+			for ( int k = 0, n = 0; k < nz; ++k )
+				for ( int j = 0; j < ny; ++j )
+					for ( int i = 0; i < nx; ++i, ++n )
+					{
+						final Entry e = entries[ n ];
+						if ( e == null )
+							continue;
+						metrics.load();
+						if ( success )
+						{
+							/* off-heap cells are staged on the heap */
+							final byte[] bytes = e.isOffHeap() ? decoder.cell( cellSize ) : e.data;
+							if ( bytes != box )
+								copyCell( box, nx, ny, i, j, k, bytes );
+							e.write( bytes );
+							storeCold( e.key, bytes, decoder );
+							if ( diskCache != null )
+								diskCache.write( e.key, bytes );
+							e.setValid( true );
+						}
+						else if ( fetchCell( e, decoder ) )
+							e.setValid( true );
+						else
+							cancel( e );
+					}
+		}
+		finally
+		{
+			decoders.release( decoder );
+			for ( final Entry e : entries )
+				if ( e != null && e != entry )
+					e.release();
+		}
+	}
+	
+	/**
+	 * Called by the {@link FetcherPool} for stale requests.  The invalid
+	 * entry is dropped from the cache such that the cell is requested again
+	 * when it is visited again.
+	 */
+	protected void cancel( final Entry entry )
+	{
+		if ( cache.get( entry.key ) == entry )
+			cache.remove( entry.key );
+	}
+	
+	/**
+	 * Start a new generation of requests, typically when the view has
+	 * moved.  Cells that were requested in older generations and have not
+	 * been visited since are not loaded.
+	 */
+	@Override
+	public void nextGeneration()
+	{
+		fetchers.nextGeneration();
+	}
+	
+	/**
+	 * Set the maximum number of cells that are fetched with a single request
+	 * in x, y, and z.  1, 1, 1 fetches every cell separately.
+	 */
+	public void setMaxBox( final int width, final int height, final int depth )
+	{
+		maxBoxWidth = Math.max( 1, width );
+		maxBoxHeight = Math.max( 1, height );
+		maxBoxDepth = Math.max( 1, depth );
+	}
+	
+	/**
+	 * Set the focus of attention, typically the source coordinates of the
+	 * screen centre.  Cells closer to the focus are loaded first.
+	 */
+	public void setFocus( final double x, final double y, final double z )
+	{
+		focus = new double[]{ x, y, z };
+	}
+	
+	/**
+	 * @return the distance of a cell's centre to the focus of attention in cells
+	 */
+	protected double distanceToFocus( final long x, final long y, final long z )
+	{
+		final double[] f = focus;
+		if ( f == null )
+			return 0;
+		final double dx = x + 0.5 - f[ 0 ] / cellWidth;
+		final double dy = y + 0.5 - f[ 1 ] / cellHeight;
+		final double dz = z + 0.5 - f[ 2 ] / cellDepth;
+		return Math.sqrt( dx * dx + dy * dy + dz * dz );
+	}
+	
+	@Override
+	public int queueSize()
+	{
+		return fetchers.queueSize();
+	}
+	
+	public FetcherPool< Long, Entry > getFetchers()
+	{
+		return fetchers;
+	}
+	
+	/**
+	 * Load every cell in a thread of its own, limited by permits, null runs
+	 * the loads in the worker threads.
+	 */
+	@Override
+	public void setThreadPerRequest( final Semaphore permits )
+	{
+		super.setThreadPerRequest( permits );
+		fetchers.setThreadPerRequest( permits );
 	}
 	
+	/**
+	 * Stop loading, pending cells stay invalid.
+	 */
 	@Override
-	public void finalize()
+	public void shutdown()
 	{
-		fetcher.interrupt();
+		super.shutdown();
+		fetchers.shutdown();
 	}
 }
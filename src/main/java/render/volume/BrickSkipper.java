@@ -0,0 +1,141 @@
+/*
+ * #%L
+ * ImgLib2: a general-purpose, multidimensional image processing library.
+ * %%
+ * Copyright (C) 2009 - 2016 Tobias Pietzsch, Stephan Preibisch, Stephan Saalfeld,
+ * John Bogovic, Albert Cardona, Barry DeZonia, Christian Dietz, Jan Funke,
+ * Aivar Grislis, Jonathan Hale, Grant Harris, Stefan Helfrich, Mark Hiner,
+ * Martin Horn, Steffen Jaensch, Lee Kamentsky, Larry Lindsey, Melissa Linkert,
+ * Mark Longair, Brian Northan, Nick Perry, Curtis Rueden, Johannes Schindelin,
+ * Jean-Yves Tinevez and Michael Zinsmaier.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package render.volume;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.realtransform.RealTransform;
+
+/**
+ * Maps rays of a {@link RowAccumulator} into the volume and asks a
+ * {@link MinMaxBrickPyramid} how many samples can be skipped.  The
+ * transform from camera to volume coordinates must be linear along rays,
+ * which holds for affine transforms and for the perspective cameras of
+ * {@link VolumeRenderer}, whose inverse is linear in depth.  Each thread
+ * uses its own copy of the transform and its own {@link Ray}, which is
+ * reused for all rays of the thread.
+ *
+ * @author Stephan Saalfeld
+ */
+public class BrickSkipper
+{
+	/**
+	 * A ray (p0, dp) in volume coordinates and the scratch space to map and
+	 * sample it.
+	 */
+	final static public class Ray
+	{
+		final protected RealTransform transform;
+		final protected double[] camera;
+		final public double[] p0;
+		final public double[] dp;
+		final public double[] p;
+		
+		protected Ray( final RealTransform transform )
+		{
+			this.transform = transform;
+			camera = new double[ transform.numSourceDimensions() ];
+			p0 = new double[ transform.numTargetDimensions() ];
+			dp = new double[ transform.numTargetDimensions() ];
+			p = new double[ transform.numTargetDimensions() ];
+		}
+	}
+	
+	final protected MinMaxBrickPyramid pyramid;
+	final protected ThreadLocal< Ray > rays;
+	
+	public BrickSkipper( final MinMaxBrickPyramid pyramid, final RealTransform cameraToVolume )
+	{
+		this.pyramid = pyramid;
+		rays = ThreadLocal.withInitial( () -> new Ray( cameraToVolume.copy() ) );
+	}
+	
+	public MinMaxBrickPyramid getPyramid()
+	{
+		return pyramid;
+	}
+	
+	/**
+	 * Map the ray of access along d into the volume, p0 is the position at
+	 * first and dp the offset per step.
+	 * 
+	 * @return the {@link Ray} of the calling thread, valid until its next
+	 * 		call
+	 */
+	public Ray ray( final RandomAccess< ? > access, final long first, final long step, final int d )
+	{
+		final Ray ray = rays.get();
+		final double[] camera = ray.camera;
+		final double[] p0 = ray.p0;
+		final double[] dp = ray.dp;
+		access.localize( camera );
+		camera[ d ] = first;
+		ray.transform.apply( camera, p0 );
+		camera[ d ] = first + step;
+		ray.transform.apply( camera, dp );
+		for ( int i = 0; i < dp.length; ++i )
+			dp[ i ] -= p0[ i ];
+		return ray;
+	}
+	
+	/**
+	 * @return the number of samples starting at sample k of ray that are
+	 * 		known to be empty, see
+	 * 		{@link MinMaxBrickPyramid#emptySteps(double[], double[])}
+	 */
+	public long emptySteps( final Ray ray, final long k )
+	{
+		final double[] p0 = ray.p0;
+		final double[] dp = ray.dp;
+		final double[] p = ray.p;
+		for ( int i = 0; i < p.length; ++i )
+			p[ i ] = p0[ i ] + k * dp[ i ];
+		return pyramid.emptySteps( p, dp );
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * #%L
+ * ImgLib2: a general-purpose, multidimensional image processing library.
+ * %%
+ * Copyright (C) 2009 - 2016 Tobias Pietzsch, Stephan Preibisch, Stephan Saalfeld,
+ * John Bogovic, Albert Cardona, Barry DeZonia, Christian Dietz, Jan Funke,
+ * Aivar Grislis, Jonathan Hale, Grant Harris, Stefan Helfrich, Mark Hiner,
+ * Martin Horn, Steffen Jaensch, Lee Kamentsky, Larry Lindsey, Melissa Linkert,
+ * Mark Longair, Brian Northan, Nick Perry, Curtis Rueden, Johannes Schindelin,
+ * Jean-Yves Tinevez and Michael Zinsmaier.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package render.volume;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.AbstractARGBDoubleType;
+
+/**
+ * Front to back {@link ARGBDoubleLayers} with early ray termination.
+ *
+ * @author Stephan Saalfeld
+ */
+public class FrontToBackARGBDoubleLayers< T extends AbstractARGBDoubleType< T > > extends ARGBDoubleLayers< T > implements FrontToBackRowAccumulator< T >
+{
+	final protected double epsilon;
+	
+	public FrontToBackARGBDoubleLayers( final double epsilon )
+	{
+		this.epsilon = epsilon;
+	}
+	
+	public FrontToBackARGBDoubleLayers()
+	{
+		this( 1.0 / 512.0 );
+	}
+	
+	@Override
+	public double getEpsilon()
+	{
+		return epsilon;
+	}
+	
+	@Override
+	public void accumulateRow(
+			final T accumulator,
+			final RandomAccess< T > access,
+			final long min,
+			final long max,
+			final long step,
+			final int d )
+	{
+		access.setPosition( FrontToBackRowAccumulator.first( min, max, step ), d );
+		double a = 0;
+		double r = 0;
+		double g = 0;
+		double b = 0;
+		double transmittance = 1;
+		while ( access.getLongPosition( d ) <= max )
+		{
+			final T argb = access.get();
+			final double alpha = argb.getA();
+			final double weight = transmittance * alpha;
+			
+			a += weight * alpha;
+			r += weight * argb.getR();
+			g += weight * argb.getG();
+			b += weight * argb.getB();
+			
+			transmittance *= 1.0 - alpha;
+			if ( transmittance < epsilon )
+				break;
+			access.move( step, d );
+		}
+		accumulator.set(
+				a + transmittance * accumulator.getA(),
+				r + transmittance * accumulator.getR(),
+				g + transmittance * accumulator.getG(),
+				b + transmittance * accumulator.getB() );
+	}
+}
@@ -0,0 +1,435 @@
+/*
+ * #%L
+ * ImgLib2: a general-purpose, multidimensional image processing library.
+ * %%
+ * Copyright (C) 2009 - 2016 Tobias Pietzsch, Stephan Preibisch, Stephan Saalfeld,
+ * John Bogovic, Albert Cardona, Barry DeZonia, Christian Dietz, Jan Funke,
+ * Aivar Grislis, Jonathan Hale, Grant Harris, Stefan Helfrich, Mark Hiner,
+ * Martin Horn, Steffen Jaensch, Lee Kamentsky, Larry Lindsey, Melissa Linkert,
+ * Mark Longair, Brian Northan, Nick Perry, Curtis Rueden, Johannes Schindelin,
+ * Jean-Yves Tinevez and Michael Zinsmaier.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package render.volume;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * <p>A pyramid of the per brick minimum and maximum of one or more channels
+ * of a 3D volume for empty-space skipping.  Bricks at level 0 are
+ * {@link #getBrickSize()} voxels wide, each higher level merges 2 &times; 2
+ * &times; 2 bricks until a single brick covers the volume.  A brick's
+ * statistics include the first voxel of its upper neighbors, so that every
+ * position inside the brick interpolates (n-linear or nearest neighbor) only
+ * from voxels that were counted.</p>
+ * 
+ * <p>Which bricks are empty depends on the transfer function and is kept
+ * separate from the statistics.  A brick is empty where the weighted sum of
+ * its channel maxima is not above a threshold, see
+ * {@link #setWeights(double[], double)}.  Changing the transfer function
+ * only reclassifies bricks, the volume is not read again.  For a single
+ * channel, {@link #setThreshold(double)} flips only the bricks whose
+ * maximum lies between the old and the new threshold.</p>
+ * 
+ * <p>Classification must not change while rays are traversed.</p>
+ *
+ * @author Stephan Saalfeld
+ */
+public class MinMaxBrickPyramid
+{
+	final protected long[] min;
+	final protected long[] dimensions;
+	final protected int brickSize;
+	final protected int numChannels;
+	
+	/* per level, grid dimensions and per brick and channel min and max, channel fastest */
+	final protected long[][] gridDimensions;
+	final protected float[][] mins;
+	final protected float[][] maxs;
+	
+	/* per level, whether a brick is empty under the current classification */
+	final protected boolean[][] empty;
+	
+	/* per level, brick indices sorted by the maximum of channel 0 */
+	protected int[][] order = null;
+	
+	protected double[] weights;
+	protected double threshold = Double.NEGATIVE_INFINITY;
+	protected boolean emptyOutside = false;
+	
+	/**
+	 * @param channels the channels of the volume, all with the same interval
+	 * @param brickSize edge length of bricks at level 0
+	 */
+	public MinMaxBrickPyramid( final List< ? extends RandomAccessibleInterval< ? extends RealType< ? > > > channels, final int brickSize )
+	{
+		final RandomAccessibleInterval< ? > first = channels.get( 0 );
+		if ( first.numDimensions() != 3 )
+			throw new IllegalArgumentException( "only 3D volumes are supported" );
+		min = Intervals.minAsLongArray( first );
+		dimensions = Intervals.dimensionsAsLongArray( first );
+		this.brickSize = brickSize;
+		numChannels = channels.size();
+		weights = new double[ numChannels ];
+		weights[ 0 ] = 1;
+		
+		int numLevels = 1;
+		for ( long size = brickSize; size < Math.max( dimensions[ 0 ], Math.max( dimensions[ 1 ], dimensions[ 2 ] ) ); size *= 2 )
+			++numLevels;
+		
+		gridDimensions = new long[ numLevels ][ 3 ];
+		mins = new float[ numLevels ][];
+		maxs = new float[ numLevels ][];
+		empty = new boolean[ numLevels ][];
+		for ( int l = 0; l < numLevels; ++l )
+		{
+			final long size = ( long )brickSize << l;
+			for ( int d = 0; d < 3; ++d )
+				gridDimensions[ l ][ d ] = ( dimensions[ d ] + size - 1 ) / size;
+			final int numBricks = ( int )( gridDimensions[ l ][ 0 ] * gridDimensions[ l ][ 1 ] * gridDimensions[ l ][ 2 ] );
+			mins[ l ] = new float[ numBricks * numChannels ];
+			maxs[ l ] = new float[ numBricks * numChannels ];
+			empty[ l ] = new boolean[ numBricks ];
+		}
+		
+		/* level 0 from the volume, bricks in parallel */
+		final long[] grid = gridDimensions[ 0 ];
+		IntStream.range( 0, empty[ 0 ].length ).parallel().forEach( i -> {
+			final long[] brickMin = new long[ 3 ];
+			final long[] brickMax = new long[ 3 ];
+			final long[] position = new long[]{ i % grid[ 0 ], ( i / grid[ 0 ] ) % grid[ 1 ], i / ( grid[ 0 ] * grid[ 1 ] ) };
+			for ( int d = 0; d < 3; ++d )
+			{
+				brickMin[ d ] = min[ d ] + position[ d ] * brickSize;
+				brickMax[ d ] = Math.min( brickMin[ d ] + brickSize, min[ d ] + dimensions[ d ] - 1 );
+			}
+			final FinalInterval brick = new FinalInterval( brickMin, brickMax );
+			for ( int c = 0; c < numChannels; ++c )
+			{
+				float lo = Float.POSITIVE_INFINITY;
+				float hi = Float.NEGATIVE_INFINITY;
+				final Cursor< ? extends RealType< ? > > cursor = Views.interval( channels.get( c ), brick ).cursor();
+				while ( cursor.hasNext() )
+				{
+					final float v = cursor.next().getRealFloat();
+					if ( v < lo )
+						lo = v;
+					if ( v > hi )
+						hi = v;
+				}
+				mins[ 0 ][ i * numChannels + c ] = lo;
+				maxs[ 0 ][ i * numChannels + c ] = hi;
+			}
+		} );
+		
+		/* higher levels from their children */
+		for ( int l = 1; l < numLevels; ++l )
+		{
+			final long[] g = gridDimensions[ l ];
+			final long[] h = gridDimensions[ l - 1 ];
+			Arrays.fill( mins[ l ], Float.POSITIVE_INFINITY );
+			Arrays.fill( maxs[ l ], Float.NEGATIVE_INFINITY );
+			for ( long z = 0, j = 0; z < h[ 2 ]; ++z )
+				for ( long y = 0; y < h[ 1 ]; ++y )
+					for ( long x = 0; x < h[ 0 ]; ++x, ++j )
+					{
+						final long i = ( ( z / 2 ) * g[ 1 ] + y / 2 ) * g[ 0 ] + x / 2;
+						for ( int c = 0; c < numChannels; ++c )
+						{
+							final int ic = ( int )i * numChannels + c;
+							final int jc = ( int )j * numChannels + c;
+							mins[ l ][ ic ] = Math.min( mins[ l ][ ic ], mins[ l - 1 ][ jc ] );
+							maxs[ l ][ ic ] = Math.max( maxs[ l ][ ic ], maxs[ l - 1 ][ jc ] );
+						}
+					}
+		}
+	}
+	
+	public MinMaxBrickPyramid( final RandomAccessibleInterval< ? extends RealType< ? > > volume, final int brickSize )
+	{
+		this( Arrays.asList( volume ), brickSize );
+	}
+	
+	public int getBrickSize()
+	{
+		return brickSize;
+	}
+	
+	public int numLevels()
+	{
+		return empty.length;
+	}
+	
+	public int numChannels()
+	{
+		return numChannels;
+	}
+	
+	/**
+	 * @return the minimum of channel c in brick i of level l
+	 */
+	public float min( final int l, final int i, final int c )
+	{
+		return mins[ l ][ i * numChannels + c ];
+	}
+	
+	/**
+	 * @return the maximum of channel c in brick i of level l
+	 */
+	public float max( final int l, final int i, final int c )
+	{
+		return maxs[ l ][ i * numChannels + c ];
+	}
+	
+	/**
+	 * Classify a brick as empty where the weighted sum of its channel maxima
+	 * is not above threshold.  For non-negative weights and intensities, this
+	 * is a conservative test for a transfer function that is 0 where the
+	 * weighted sum of the channels is not above threshold, e.g.
+	 * {@link RealCompositeARGBDoubleConverter#alphaWeights()} and 0.
+	 * Reclassifies all bricks, but does not read the volume.
+	 * 
+	 * @param outside whether positions outside of the volume are empty
+	 */
+	synchronized public void setWeights( final double[] weights, final double threshold, final boolean outside )
+	{
+		this.weights = weights.clone();
+		this.threshold = threshold;
+		emptyOutside = outside;
+		for ( int l = 0; l < empty.length; ++l )
+		{
+			final float[] max = maxs[ l ];
+			final boolean[] e = empty[ l ];
+			for ( int i = 0; i < e.length; ++i )
+			{
+				double sum = 0;
+				for ( int c = 0; c < numChannels; ++c )
+					sum += weights[ c ] * max[ i * numChannels + c ];
+				e[ i ] = sum <= threshold;
+			}
+		}
+	}
+	
+	/**
+	 * Classify as in {@link #setWeights(double[], double, boolean)},
+	 * positions outside the volume read as 0.
+	 */
+	public void setWeights( final double[] weights, final double threshold )
+	{
+		setWeights( weights, threshold, 0 <= threshold );
+	}
+	
+	/**
+	 * Classify a brick as empty where the maximum of channel 0 is not above
+	 * threshold, e.g. -offset for {@link AlphaIntensityLayers} with positive
+	 * scale.  If the previous classification was a threshold too, only
+	 * bricks whose maximum lies between the two thresholds are flipped.
+	 * Positions outside the volume read as 0 and are empty if 0 is not above
+	 * threshold.
+	 */
+	synchronized public void setThreshold( final double threshold )
+	{
+		boolean thresholdOnly = weights[ 0 ] == 1;
+		for ( int c = 1; c < numChannels; ++c )
+			thresholdOnly &= weights[ c ] == 0;
+		if ( !thresholdOnly || order == null )
+		{
+			final double[] w = new double[ numChannels ];
+			w[ 0 ] = 1;
+			setWeights( w, threshold, 0 <= threshold );
+			if ( order == null )
+				sort();
+			return;
+		}
+		
+		final double a = Math.min( this.threshold, threshold );
+		final double b = Math.max( this.threshold, threshold );
+		final boolean flipTo = threshold > this.threshold;
+		for ( int l = 0; l < empty.length; ++l )
+		{
+			final int[] o = order[ l ];
+			final float[] max = maxs[ l ];
+			/* bricks with a < max <= b change */
+			for ( int k = upperBound( o, max, a ); k < o.length && max[ o[ k ] * numChannels ] <= b; ++k )
+				empty[ l ][ o[ k ] ] = flipTo;
+		}
+		this.threshold = threshold;
+		emptyOutside = 0 <= threshold;
+	}
+	
+	/**
+	 * @return whether the bricks are classified as by
+	 * 		{@link #setThreshold(double)} with threshold
+	 */
+	synchronized public boolean isThreshold( final double threshold )
+	{
+		boolean thresholdOnly = weights[ 0 ] == 1;
+		for ( int c = 1; c < numChannels; ++c )
+			thresholdOnly &= weights[ c ] == 0;
+		return thresholdOnly && this.threshold == threshold && emptyOutside == 0 <= threshold;
+	}
+	
+	/**
+	 * @return the first k with max[o[k]] &gt; t
+	 */
+	protected int upperBound( final int[] o, final float[] max, final double t )
+	{
+		int lo = 0, hi = o.length;
+		while ( lo < hi )
+		{
+			final int mid = ( lo + hi ) >>> 1;
+			if ( max[ o[ mid ] * numChannels ] <= t )
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+	
+	protected void sort()
+	{
+		order = new int[ empty.length ][];
+		for ( int l = 0; l < empty.length; ++l )
+		{
+			/* sortable float bits in the upper, brick index in the lower half */
+			final float[] max = maxs[ l ];
+			final long[] keys = new long[ empty[ l ].length ];
+			for ( int i = 0; i < keys.length; ++i )
+			{
+				final int bits = Float.floatToIntBits( max[ i * numChannels ] );
+				keys[ i ] = ( ( long )( bits ^ ( ( bits >> 31 ) & 0x7fffffff ) ) << 32 ) | i;
+			}
+			Arrays.sort( keys );
+			order[ l ] = new int[ keys.length ];
+			for ( int i = 0; i < keys.length; ++i )
+				order[ l ][ i ] = ( int )keys[ i ];
+		}
+	}
+	
+	/**
+	 * How far can a ray that is at p and advances by dp per step move
+	 * without sampling a voxel of a non-empty brick?  The coarsest empty
+	 * brick that contains p is skipped as a whole.
+	 * 
+	 * @param p position in the volume
+	 * @param dp offset per step
+	 * @return the number of steps to the first sample that may not be
+	 * 		empty, 0 if the sample at p may not be empty,
+	 * 		{@link Long#MAX_VALUE} if the ray never enters the volume again
+	 */
+	public long emptySteps( final double[] p, final double[] dp )
+	{
+		final double x = p[ 0 ] - min[ 0 ];
+		final double y = p[ 1 ] - min[ 1 ];
+		final double z = p[ 2 ] - min[ 2 ];
+		if (
+				x < 0 || y < 0 || z < 0 ||
+				x >= dimensions[ 0 ] - 1 || y >= dimensions[ 1 ] - 1 || z >= dimensions[ 2 ] - 1 )
+		{
+			if ( !emptyOutside )
+				return 0;
+			/* until the ray enters the volume grown by one voxel */
+			double tEnter = 0;
+			double tExit = Double.POSITIVE_INFINITY;
+			for ( int d = 0; d < 3; ++d )
+			{
+				final double q = p[ d ] - min[ d ];
+				final double lo = -1;
+				final double hi = dimensions[ d ];
+				if ( dp[ d ] == 0 )
+				{
+					if ( q < lo || q > hi )
+						return Long.MAX_VALUE;
+				}
+				else
+				{
+					final double t0 = ( lo - q ) / dp[ d ];
+					final double t1 = ( hi - q ) / dp[ d ];
+					tEnter = Math.max( tEnter, Math.min( t0, t1 ) );
+					tExit = Math.min( tExit, Math.max( t0, t1 ) );
+				}
+			}
+			if ( tEnter > tExit )
+				return Long.MAX_VALUE;
+			return ( long )tEnter;
+		}
+		
+		final long ix = ( long )x;
+		final long iy = ( long )y;
+		final long iz = ( long )z;
+		for ( int l = empty.length - 1; l >= 0; --l )
+		{
+			final long size = ( long )brickSize << l;
+			final long bx = ix / size;
+			final long by = iy / size;
+			final long bz = iz / size;
+			final long[] g = gridDimensions[ l ];
+			if ( empty[ l ][ ( int )( ( bz * g[ 1 ] + by ) * g[ 0 ] + bx ) ] )
+			{
+				/* exit of the ray from the brick */
+				final double tx = exit( x, dp[ 0 ], bx * size, ( bx + 1 ) * size );
+				final double ty = exit( y, dp[ 1 ], by * size, ( by + 1 ) * size );
+				final double tz = exit( z, dp[ 2 ], bz * size, ( bz + 1 ) * size );
+				final double t = Math.min( tx, Math.min( ty, tz ) );
+				return t == Double.POSITIVE_INFINITY ? Long.MAX_VALUE : Math.max( 1, ( long )Math.ceil( t ) );
+			}
+		}
+		return 0;
+	}
+	
+	final static protected double exit( final double q, final double dq, final double lo, final double hi )
+	{
+		if ( dq > 0 )
+			return ( hi - q ) / dq;
+		else if ( dq < 0 )
+			return ( lo - q ) / dq;
+		else
+			return Double.POSITIVE_INFINITY;
+	}
+}
@@ -0,0 +1,387 @@
+/*
+ * #%L
+ * ImgLib2: a general-purpose, multidimensional image processing library.
+ * %%
+ * Copyright (C) 2009 - 2016 Tobias Pietzsch, Stephan Preibisch, Stephan Saalfeld,
+ * John Bogovic, Albert Cardona, Barry DeZonia, Christian Dietz, Jan Funke,
+ * Aivar Grislis, Jonathan Hale, Grant Harris, Stefan Helfrich, Mark Hiner,
+ * Martin Horn, Steffen Jaensch, Lee Kamentsky, Larry Lindsey, Melissa Linkert,
+ * Mark Longair, Brian Northan, Nick Perry, Curtis Rueden, Johannes Schindelin,
+ * Jean-Yves Tinevez and Michael Zinsmaier.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package render.volume;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.io.FileSaver;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * <p>Renders the frames of a movie concurrently and streams them to disk as
+ * a multi-page TIFF or as a sequence of TIFF files.  Frames are independent,
+ * each is rendered on one thread into a canvas of its own.  At most
+ * {@link #setMaxFramesInFlight(int) maxFramesInFlight} frames are rendered
+ * or waiting to be written at any time, so memory does not grow with the
+ * length of the movie.  Frames are written in order.</p>
+ *
+ * @author Stephan Saalfeld
+ */
+public class MovieRenderer< T >
+{
+	/**
+	 * Renders one frame.
+	 */
+	@FunctionalInterface
+	public static interface FrameRenderer< T >
+	{
+		public void render( final int frame, final RandomAccessibleInterval< T > canvas ) throws Exception;
+	}
+	
+	/**
+	 * Hands frames to {@link FileSaver} in order as they are finished.
+	 * {@link FileSaver#saveAsTiffStack(String)} requests the slices of a
+	 * virtual stack one after the other, a slice is dropped when the next
+	 * one is requested.
+	 */
+	protected class StreamingStack extends VirtualStack
+	{
+		public StreamingStack()
+		{
+			super( width, height, null, null );
+		}
+		
+		@Override
+		public ImageProcessor getProcessor( final int n )
+		{
+			try
+			{
+				return frame( n - 1 );
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+		
+		@Override
+		public Object getPixels( final int n )
+		{
+			final ImageProcessor ip = getProcessor( n );
+			return ip == null ? null : ip.getPixels();
+		}
+		
+		@Override
+		public int getSize()
+		{
+			return numFrames;
+		}
+		
+		@Override
+		public String getSliceLabel( final int n )
+		{
+			return null;
+		}
+	}
+	
+	final protected int width, height, numFrames;
+	final protected Supplier< ImageProcessor > processors;
+	final protected Function< ImageProcessor, RandomAccessibleInterval< T > > canvases;
+	final protected FrameRenderer< T > renderer;
+	
+	protected int numThreads = Runtime.getRuntime().availableProcessors();
+	/* 0 renders up to twice as many frames as there are threads */
+	protected int maxFramesInFlight = 0;
+	
+	/* finished frames that were not yet written, guarded by this */
+	final protected Map< Integer, ImageProcessor > frames = new HashMap< Integer, ImageProcessor >();
+	/* frames before this one have been dropped, guarded by this */
+	protected int firstFrame;
+	protected Semaphore permits;
+	protected Throwable error;
+	protected Thread feeder;
+	
+	/**
+	 * @param processors creates an empty frame
+	 * @param canvases wraps the pixels of a frame
+	 * @param renderer renders a frame, may be called concurrently
+	 */
+	public MovieRenderer(
+			final int width,
+			final int height,
+			final int numFrames,
+			final Supplier< ImageProcessor > processors,
+			final Function< ImageProcessor, RandomAccessibleInterval< T > > canvases,
+			final FrameRenderer< T > renderer )
+	{
+		this.width = width;
+		this.height = height;
+		this.numFrames = numFrames;
+		this.processors = processors;
+		this.canvases = canvases;
+		this.renderer = renderer;
+	}
+	
+	public static MovieRenderer< FloatType > floats( final int width, final int height, final int numFrames, final FrameRenderer< FloatType > renderer )
+	{
+		return new MovieRenderer< FloatType >(
+				width,
+				height,
+				numFrames,
+				() -> new FloatProcessor( width, height ),
+				ip -> ArrayImgs.floats( ( float[] )ip.getPixels(), width, height ),
+				renderer );
+	}
+	
+	public static MovieRenderer< ARGBType > argbs( final int width, final int height, final int numFrames, final FrameRenderer< ARGBType > renderer )
+	{
+		return new MovieRenderer< ARGBType >(
+				width,
+				height,
+				numFrames,
+				() -> new ColorProcessor( width, height ),
+				ip -> ArrayImgs.argbs( ( int[] )ip.getPixels(), width, height ),
+				renderer );
+	}
+	
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+	}
+	
+	/**
+	 * Set the maximum number of frames that are rendered or wait to be
+	 * written at the same time.  Should be larger than the number of threads
+	 * such that threads do not idle while a slow frame is being rendered.
+	 * By default, it is twice the number of threads when rendering starts.
+	 */
+	public void setMaxFramesInFlight( final int maxFramesInFlight )
+	{
+		this.maxFramesInFlight = Math.max( 1, maxFramesInFlight );
+	}
+	
+	/**
+	 * Render all frames into the multi-page TIFF file.
+	 */
+	public void renderTiff( final File file, final String title ) throws IOException, InterruptedException
+	{
+		final ExecutorService executor = start();
+		try
+		{
+			final boolean saved;
+			try
+			{
+				/* blocks until the first frame is there */
+				final ImagePlus imp = new ImagePlus( title, new StreamingStack() );
+				saved = new FileSaver( imp ).saveAsTiffStack( file.getPath() );
+			}
+			catch ( final RuntimeException e )
+			{
+				/* a failed frame reaches ImageJ as a missing slice */
+				check();
+				throw e;
+			}
+			check();
+			if ( !saved )
+				throw new IOException( "Could not write " + file );
+		}
+		finally
+		{
+			stop( executor );
+		}
+	}
+	
+	/**
+	 * Render all frames into a sequence of TIFF files
+	 * <code>directory/prefix0000.tif</code>, &hellip;.
+	 */
+	public void renderSequence( final File directory, final String prefix ) throws IOException, InterruptedException
+	{
+		if ( !directory.isDirectory() && !directory.mkdirs() )
+			throw new IOException( "Could not create directory " + directory );
+		final ExecutorService executor = start();
+		try
+		{
+			for ( int i = 0; i < numFrames; ++i )
+			{
+				final ImageProcessor ip = frame( i );
+				check();
+				final String name = String.format( "%s%04d", prefix, i );
+				final File file = new File( directory, name + ".tif" );
+				if ( !new FileSaver( new ImagePlus( name, ip ) ).saveAsTiff( file.getPath() ) )
+					throw new IOException( "Could not write " + file );
+			}
+		}
+		finally
+		{
+			stop( executor );
+		}
+	}
+	
+	/**
+	 * Start rendering.  Frames are submitted in order, each after acquiring a
+	 * permit that is returned when the frame is dropped.
+	 */
+	protected ExecutorService start()
+	{
+		synchronized ( this )
+		{
+			frames.clear();
+			firstFrame = 0;
+			error = null;
+			permits = new Semaphore( maxFramesInFlight > 0 ? maxFramesInFlight : 2 * numThreads );
+		}
+		final Semaphore permits = this.permits;
+		final ExecutorService executor = Executors.newFixedThreadPool( numThreads );
+		final Thread feeder = new Thread( () -> {
+			try
+			{
+				for ( int i = 0; i < numFrames; ++i )
+				{
+					permits.acquire();
+					final int frame = i;
+					executor.execute( () -> {
+						try
+						{
+							final ImageProcessor ip = processors.get();
+							renderer.render( frame, canvases.apply( ip ) );
+							synchronized ( MovieRenderer.this )
+							{
+								frames.put( frame, ip );
+								MovieRenderer.this.notifyAll();
+							}
+						}
+						catch ( final Throwable e )
+						{
+							fail( e );
+						}
+					} );
+				}
+			}
+			catch ( final InterruptedException e )
+			{
+				/* stopped */
+			}
+			catch ( final Throwable e )
+			{
+				fail( e );
+			}
+		}, "movie-feeder" );
+		feeder.setDaemon( true );
+		feeder.start();
+		synchronized ( this )
+		{
+			this.feeder = feeder;
+		}
+		return executor;
+	}
+	
+	protected void stop( final ExecutorService executor )
+	{
+		final Thread feeder;
+		synchronized ( this )
+		{
+			feeder = this.feeder;
+			this.feeder = null;
+			frames.clear();
+		}
+		if ( feeder != null )
+			feeder.interrupt();
+		executor.shutdownNow();
+	}
+	
+	synchronized protected void fail( final Throwable e )
+	{
+		if ( error == null )
+			error = e;
+		notifyAll();
+	}
+	
+	/**
+	 * Wait for frame i and drop all frames before it.
+	 * 
+	 * @return the frame or null if rendering failed
+	 * @throws IllegalStateException if frame i has been dropped already
+	 */
+	synchronized protected ImageProcessor frame( final int i ) throws InterruptedException
+	{
+		if ( i < firstFrame )
+			throw new IllegalStateException( "frame " + i + " has been dropped already" );
+		firstFrame = i;
+		for ( final Iterator< Integer > it = frames.keySet().iterator(); it.hasNext(); )
+		{
+			if ( it.next() < i )
+			{
+				it.remove();
+				permits.release();
+			}
+		}
+		while ( !frames.containsKey( i ) && error == null )
+			wait();
+		return frames.get( i );
+	}
+	
+	synchronized protected void check() throws IOException
+	{
+		if ( error instanceof IOException )
+			throw ( IOException )error;
+		else if ( error != null )
+			throw new IOException( "Rendering failed", error );
+	}
+}
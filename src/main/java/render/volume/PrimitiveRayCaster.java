@@ -0,0 +1,563 @@
+/*
+ * #%L
+ * ImgLib2: a general-purpose, multidimensional image processing library.
+ * %%
+ * Copyright (C) 2009 - 2016 Tobias Pietzsch, Stephan Preibisch, Stephan Saalfeld,
+ * John Bogovic, Albert Cardona, Barry DeZonia, Christian Dietz, Jan Funke,
+ * Aivar Grislis, Jonathan Hale, Grant Harris, Stefan Helfrich, Mark Hiner,
+ * Martin Horn, Steffen Jaensch, Lee Kamentsky, Larry Lindsey, Melissa Linkert,
+ * Mark Longair, Brian Northan, Nick Perry, Curtis Rueden, Johannes Schindelin,
+ * Jean-Yves Tinevez and Michael Zinsmaier.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package render.volume;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellImg;
+import net.imglib2.realtransform.RealTransform;
+import net.imglib2.type.numeric.ARGBDoubleType;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.NativeARGBDoubleType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * <p>A ray caster that samples {@link ArrayImg ArrayImgs} and
+ * {@link CellImg CellImgs} of {@link FloatType},
+ * {@link UnsignedShortType} and {@link NativeARGBDoubleType} directly from
+ * their primitive arrays instead of going through a transformed,
+ * interpolated and extended view.  For each ray, the entry point and the
+ * step vector in the volume are computed once from two points of the camera
+ * to volume transform, then samples are taken incrementally with trilinear
+ * interpolation, reading 0 outside of the volume.</p>
+ * 
+ * <p>With epsilon 0 and no pyramid the images equal those of
+ * {@link VolumeRenderer#render} with {@link AlphaIntensityLayers} and
+ * {@link VolumeRenderer#renderARGBDouble} with {@link ARGBDoubleLayers} on
+ * an n-linear interpolant of the zero extended volume, up to rounding.  The
+ * camera to volume transform must be linear along rays, see
+ * {@link BrickSkipper}.</p>
+ *
+ * @author Stephan Saalfeld
+ */
+public class PrimitiveRayCaster
+{
+	/**
+	 * The up to eight voxels of a trilinear sample that are inside the
+	 * volume, as cell, index in the cell, and weight.
+	 */
+	final static protected class Corners
+	{
+		final public int[] cells = new int[ 8 ];
+		final public int[] indices = new int[ 8 ];
+		final public double[] weights = new double[ 8 ];
+		public int n;
+	}
+	
+	/**
+	 * A volume stored as a grid of cells of primitive arrays, x fastest.  An
+	 * {@link ArrayImg} is a single cell.
+	 */
+	abstract static public class Volume
+	{
+		final protected long width, height, depth;
+		final protected int cellWidth, cellHeight, cellDepth;
+		final protected long gridWidth, gridHeight;
+		final public int numChannels;
+		
+		protected Volume( final Interval interval, final int[] cellDimensions, final int numChannels )
+		{
+			width = interval.dimension( 0 );
+			height = interval.dimension( 1 );
+			depth = interval.dimension( 2 );
+			cellWidth = cellDimensions[ 0 ];
+			cellHeight = cellDimensions[ 1 ];
+			cellDepth = cellDimensions[ 2 ];
+			gridWidth = ( width + cellWidth - 1 ) / cellWidth;
+			gridHeight = ( height + cellHeight - 1 ) / cellHeight;
+			this.numChannels = numChannels;
+		}
+		
+		/**
+		 * Set c to the voxels and weights of a trilinear sample at (x, y, z).
+		 */
+		final public void corners( final double x, final double y, final double z, final Corners c )
+		{
+			final long x0 = ( long )Math.floor( x );
+			final long y0 = ( long )Math.floor( y );
+			final long z0 = ( long )Math.floor( z );
+			final double fx = x - x0;
+			final double fy = y - y0;
+			final double fz = z - z0;
+			
+			c.n = 0;
+			if ( x0 < -1 || y0 < -1 || z0 < -1 || x0 >= width || y0 >= height || z0 >= depth )
+				return;
+			
+			final long cx = x0 / cellWidth;
+			final long cy = y0 / cellHeight;
+			final long cz = z0 / cellDepth;
+			if (
+					x0 >= 0 && y0 >= 0 && z0 >= 0 &&
+					x0 + 1 < Math.min( width, ( cx + 1 ) * cellWidth ) &&
+					y0 + 1 < Math.min( height, ( cy + 1 ) * cellHeight ) &&
+					z0 + 1 < Math.min( depth, ( cz + 1 ) * cellDepth ) )
+			{
+				/* all eight in one cell */
+				final int cell = ( int )( ( cz * gridHeight + cy ) * gridWidth + cx );
+				final int w = ( int )Math.min( cellWidth, width - cx * cellWidth );
+				final int wh = w * ( int )Math.min( cellHeight, height - cy * cellHeight );
+				final int i = ( int )( ( ( z0 - cz * cellDepth ) * ( wh / w ) + y0 - cy * cellHeight ) * w + x0 - cx * cellWidth );
+				final double gx = 1.0 - fx, gy = 1.0 - fy, gz = 1.0 - fz;
+				final int[] cells = c.cells;
+				final int[] indices = c.indices;
+				final double[] weights = c.weights;
+				for ( int k = 0; k < 8; ++k )
+					cells[ k ] = cell;
+				indices[ 0 ] = i;
+				indices[ 1 ] = i + 1;
+				indices[ 2 ] = i + w;
+				indices[ 3 ] = i + w + 1;
+				indices[ 4 ] = i + wh;
+				indices[ 5 ] = i + wh + 1;
+				indices[ 6 ] = i + wh + w;
+				indices[ 7 ] = i + wh + w + 1;
+				weights[ 0 ] = gx * gy * gz;
+				weights[ 1 ] = fx * gy * gz;
+				weights[ 2 ] = gx * fy * gz;
+				weights[ 3 ] = fx * fy * gz;
+				weights[ 4 ] = gx * gy * fz;
+				weights[ 5 ] = fx * gy * fz;
+				weights[ 6 ] = gx * fy * fz;
+				weights[ 7 ] = fx * fy * fz;
+				c.n = 8;
+				return;
+			}
+			
+			/* at cell or volume borders, one voxel at a time */
+			for ( int k = 0; k < 8; ++k )
+			{
+				final long xk = x0 + ( k & 1 );
+				final long yk = y0 + ( ( k >> 1 ) & 1 );
+				final long zk = z0 + ( k >> 2 );
+				if ( xk < 0 || yk < 0 || zk < 0 || xk >= width || yk >= height || zk >= depth )
+					continue;
+				final long cxk = xk / cellWidth;
+				final long cyk = yk / cellHeight;
+				final long czk = zk / cellDepth;
+				final int w = ( int )Math.min( cellWidth, width - cxk * cellWidth );
+				final int h = ( int )Math.min( cellHeight, height - cyk * cellHeight );
+				c.cells[ c.n ] = ( int )( ( czk * gridHeight + cyk ) * gridWidth + cxk );
+				c.indices[ c.n ] = ( int )( ( ( zk - czk * cellDepth ) * h + yk - cyk * cellHeight ) * w + xk - cxk * cellWidth );
+				c.weights[ c.n ] =
+						( ( k & 1 ) == 0 ? 1.0 - fx : fx ) *
+						( ( ( k >> 1 ) & 1 ) == 0 ? 1.0 - fy : fy ) *
+						( ( k >> 2 ) == 0 ? 1.0 - fz : fz );
+				++c.n;
+			}
+		}
+		
+		/**
+		 * Set values to the weighted sum of corners per channel.
+		 */
+		abstract public void sample( final Corners corners, final double[] values );
+	}
+	
+	final static public class FloatVolume extends Volume
+	{
+		final protected float[][] cells;
+		
+		public FloatVolume( final Interval interval, final int[] cellDimensions, final float[][] cells )
+		{
+			super( interval, cellDimensions, 1 );
+			this.cells = cells;
+		}
+		
+		@Override
+		public void sample( final Corners c, final double[] values )
+		{
+			double v = 0;
+			for ( int k = 0; k < c.n; ++k )
+				v += c.weights[ k ] * cells[ c.cells[ k ] ][ c.indices[ k ] ];
+			values[ 0 ] = v;
+		}
+	}
+	
+	final static public class UnsignedShortVolume extends Volume
+	{
+		final protected short[][] cells;
+		
+		public UnsignedShortVolume( final Interval interval, final int[] cellDimensions, final short[][] cells )
+		{
+			super( interval, cellDimensions, 1 );
+			this.cells = cells;
+		}
+		
+		@Override
+		public void sample( final Corners c, final double[] values )
+		{
+			double v = 0;
+			for ( int k = 0; k < c.n; ++k )
+				v += c.weights[ k ] * ( cells[ c.cells[ k ] ][ c.indices[ k ] ] & 0xffff );
+			values[ 0 ] = v;
+		}
+	}
+	
+	/**
+	 * {@link NativeARGBDoubleType} volume, channels a, r, g, b.
+	 */
+	final static public class ARGBDoubleVolume extends Volume
+	{
+		final protected double[][] cells;
+		
+		public ARGBDoubleVolume( final Interval interval, final int[] cellDimensions, final double[][] cells )
+		{
+			super( interval, cellDimensions, 4 );
+			this.cells = cells;
+		}
+		
+		@Override
+		public void sample( final Corners c, final double[] values )
+		{
+			double a = 0, r = 0, g = 0, b = 0;
+			for ( int k = 0; k < c.n; ++k )
+			{
+				final double[] data = cells[ c.cells[ k ] ];
+				final int i = 4 * c.indices[ k ];
+				final double w = c.weights[ k ];
+				a += w * data[ i ];
+				r += w * data[ i + 1 ];
+				g += w * data[ i + 2 ];
+				b += w * data[ i + 3 ];
+			}
+			values[ 0 ] = a;
+			values[ 1 ] = r;
+			values[ 2 ] = g;
+			values[ 3 ] = b;
+		}
+	}
+	
+	/**
+	 * Collect the storage arrays of an {@link ArrayImg} or
+	 * {@link CellImg} in cell order and their cell size.
+	 */
+	static protected ArrayList< Object > storage( final Img< ? > img, final int[] cellDimensions )
+	{
+		if ( img.numDimensions() != 3 )
+			throw new IllegalArgumentException( "only 3D volumes are supported" );
+		final ArrayList< Object > arrays = new ArrayList< Object >();
+		if ( img instanceof ArrayImg )
+		{
+			for ( int d = 0; d < 3; ++d )
+				cellDimensions[ d ] = ( int )img.dimension( d );
+			arrays.add( ( ( ArrayDataAccess< ? > )( ( ArrayImg< ?, ? > )img ).update( null ) ).getCurrentStorageArray() );
+		}
+		else if ( img instanceof CellImg )
+		{
+			final CellImg< ?, ? > cellImg = ( CellImg< ?, ? > )img;
+			cellImg.getCellGrid().cellDimensions( cellDimensions );
+			for ( final Cell< ? > cell : cellImg.getCells() )
+				arrays.add( ( ( ArrayDataAccess< ? > )cell.getData() ).getCurrentStorageArray() );
+		}
+		else
+			throw new IllegalArgumentException( "only ArrayImgs and CellImgs are supported, not " + img.getClass().getSimpleName() );
+		return arrays;
+	}
+	
+	public static FloatVolume floats( final Img< FloatType > img )
+	{
+		final int[] cellDimensions = new int[ 3 ];
+		return new FloatVolume( img, cellDimensions, storage( img, cellDimensions ).toArray( new float[ 0 ][] ) );
+	}
+	
+	public static UnsignedShortVolume unsignedShorts( final Img< UnsignedShortType > img )
+	{
+		final int[] cellDimensions = new int[ 3 ];
+		return new UnsignedShortVolume( img, cellDimensions, storage( img, cellDimensions ).toArray( new short[ 0 ][] ) );
+	}
+	
+	public static ARGBDoubleVolume argbDoubles( final Img< NativeARGBDoubleType > img )
+	{
+		final int[] cellDimensions = new int[ 3 ];
+		return new ARGBDoubleVolume( img, cellDimensions, storage( img, cellDimensions ).toArray( new double[ 0 ][] ) );
+	}
+	
+	final protected Volume volume;
+	protected double epsilon = 0;
+	protected MinMaxBrickPyramid pyramid = null;
+	
+	public PrimitiveRayCaster( final Volume volume )
+	{
+		this.volume = volume;
+	}
+	
+	/**
+	 * Stop rays once their transmittance drops below epsilon, 0 visits all
+	 * samples.
+	 */
+	public void setEpsilon( final double epsilon )
+	{
+		this.epsilon = epsilon;
+	}
+	
+	/**
+	 * Skip empty bricks of a classified pyramid of the volume, null samples
+	 * all of space.
+	 */
+	public void setPyramid( final MinMaxBrickPyramid pyramid )
+	{
+		this.pyramid = pyramid;
+	}
+	
+	/**
+	 * Render a single channel volume with the transfer function of
+	 * {@link AlphaIntensityLayers}.  The value of a canvas pixel is the
+	 * background of its ray.
+	 * 
+	 * @param cameraToVolume transform from canvas to volume coordinates,
+	 * 		linear along rays
+	 * @param minZ first sample on each ray, in camera coordinates
+	 * @param maxZ last sample on each ray
+	 */
+	public < T extends RealType< T > > void renderAlphaIntensity(
+			final RandomAccessibleInterval< T > canvas,
+			final RealTransform cameraToVolume,
+			final long minZ,
+			final long maxZ,
+			final long step,
+			final double scale,
+			final double offset )
+	{
+		if ( volume.numChannels != 1 )
+			throw new IllegalStateException( "volume has " + volume.numChannels + " channels" );
+		final RealTransform transform = cameraToVolume.copy();
+		final Corners corners = new Corners();
+		final double[] values = new double[ 1 ];
+		final double[] camera = new double[ 3 ];
+		final double[] p0 = new double[ 3 ];
+		final double[] dp = new double[ 3 ];
+		final double[] p = new double[ 3 ];
+		final long first = FrontToBackRowAccumulator.first( minZ, maxZ, step );
+		final long n = ( maxZ - first ) / step + 1;
+		
+		final Cursor< T > cursor = Views.flatIterable( canvas ).cursor();
+		while ( cursor.hasNext() )
+		{
+			final T pixel = cursor.next();
+			ray( transform, cursor.getDoublePosition( 0 ), cursor.getDoublePosition( 1 ), first, step, camera, p0, dp );
+			
+			double a = 0;
+			double transmittance = 1;
+			for ( long k = 0; k < n; ++k )
+			{
+				p[ 0 ] = p0[ 0 ] + k * dp[ 0 ];
+				p[ 1 ] = p0[ 1 ] + k * dp[ 1 ];
+				p[ 2 ] = p0[ 2 ] + k * dp[ 2 ];
+				if ( pyramid != null )
+				{
+					final long skip = pyramid.emptySteps( p, dp );
+					if ( skip > 0 )
+					{
+						k = skip < n - k ? k + skip - 1 : n;
+						continue;
+					}
+				}
+				volume.corners( p[ 0 ], p[ 1 ], p[ 2 ], corners );
+				volume.sample( corners, values );
+				final double b = values[ 0 ];
+				final double alpha = Math.max( 0, Math.min( 1, ( b + offset ) * scale ) );
+				a += transmittance * alpha * b;
+				transmittance *= 1.0 - alpha;
+				if ( transmittance < epsilon )
+					break;
+			}
+			pixel.setReal( a + transmittance * pixel.getRealDouble() );
+		}
+	}
+	
+	/**
+	 * Render an {@link ARGBDoubleVolume} with the compositing of
+	 * {@link ARGBDoubleLayers} over {@link VolumeRenderer#bgARGB}.
+	 * 
+	 * @param cameraToVolume transform from canvas to volume coordinates,
+	 * 		linear along rays
+	 * @param minZ first sample on each ray, in camera coordinates
+	 * @param maxZ last sample on each ray
+	 */
+	public void renderARGB(
+			final RandomAccessibleInterval< ARGBType > canvas,
+			final RealTransform cameraToVolume,
+			final long minZ,
+			final long maxZ,
+			final long step )
+	{
+		if ( volume.numChannels != 4 )
+			throw new IllegalStateException( "volume has " + volume.numChannels + " channels" );
+		final RealTransform transform = cameraToVolume.copy();
+		final Corners corners = new Corners();
+		final double[] values = new double[ 4 ];
+		final double[] camera = new double[ 3 ];
+		final double[] p0 = new double[ 3 ];
+		final double[] dp = new double[ 3 ];
+		final double[] p = new double[ 3 ];
+		final long first = FrontToBackRowAccumulator.first( minZ, maxZ, step );
+		final long n = ( maxZ - first ) / step + 1;
+		final ARGBDoubleType accumulate = new ARGBDoubleType();
+		final ARGBDoubleType bg = VolumeRenderer.bgARGB;
+		
+		final Cursor< ARGBType > cursor = Views.flatIterable( canvas ).cursor();
+		while ( cursor.hasNext() )
+		{
+			final ARGBType pixel = cursor.next();
+			ray( transform, cursor.getDoublePosition( 0 ), cursor.getDoublePosition( 1 ), first, step, camera, p0, dp );
+			
+			double a = 0, r = 0, g = 0, b = 0;
+			double transmittance = 1;
+			for ( long k = 0; k < n; ++k )
+			{
+				p[ 0 ] = p0[ 0 ] + k * dp[ 0 ];
+				p[ 1 ] = p0[ 1 ] + k * dp[ 1 ];
+				p[ 2 ] = p0[ 2 ] + k * dp[ 2 ];
+				if ( pyramid != null )
+				{
+					final long skip = pyramid.emptySteps( p, dp );
+					if ( skip > 0 )
+					{
+						k = skip < n - k ? k + skip - 1 : n;
+						continue;
+					}
+				}
+				volume.corners( p[ 0 ], p[ 1 ], p[ 2 ], corners );
+				volume.sample( corners, values );
+				final double alpha = values[ 0 ];
+				final double weight = transmittance * alpha;
+				a += weight * alpha;
+				r += weight * values[ 1 ];
+				g += weight * values[ 2 ];
+				b += weight * values[ 3 ];
+				transmittance *= 1.0 - alpha;
+				if ( transmittance < epsilon )
+					break;
+			}
+			accumulate.set(
+					a + transmittance * bg.getA(),
+					r + transmittance * bg.getR(),
+					g + transmittance * bg.getG(),
+					b + transmittance * bg.getB() );
+			pixel.set( accumulate.toARGBInt() );
+		}
+	}
+	
+	/**
+	 * {@link #renderAlphaIntensity(RandomAccessibleInterval, RealTransform, long, long, long, double, double)}
+	 * in row bands on pool.
+	 */
+	public < T extends RealType< T > > void renderAlphaIntensity(
+			final RandomAccessibleInterval< T > canvas,
+			final RealTransform cameraToVolume,
+			final long minZ,
+			final long maxZ,
+			final long step,
+			final double scale,
+			final double offset,
+			final ForkJoinPool pool )
+	{
+		pool.invoke( new VolumeRenderer.RenderBands(
+				canvas,
+				canvas.min( 1 ),
+				canvas.max( 1 ),
+				band -> renderAlphaIntensity( Views.interval( canvas, band ), cameraToVolume, minZ, maxZ, step, scale, offset ) ) );
+	}
+	
+	/**
+	 * {@link #renderARGB(RandomAccessibleInterval, RealTransform, long, long, long)}
+	 * in row bands on pool.
+	 */
+	public void renderARGB(
+			final RandomAccessibleInterval< ARGBType > canvas,
+			final RealTransform cameraToVolume,
+			final long minZ,
+			final long maxZ,
+			final long step,
+			final ForkJoinPool pool )
+	{
+		pool.invoke( new VolumeRenderer.RenderBands(
+				canvas,
+				canvas.min( 1 ),
+				canvas.max( 1 ),
+				band -> renderARGB( Views.interval( canvas, band ), cameraToVolume, minZ, maxZ, step ) ) );
+	}
+	
+	/**
+	 * Set p0 to the volume position of camera ray (x, y) at depth first and
+	 * dp to the offset per step, camera is scratch space.
+	 */
+	final static protected void ray(
+			final RealTransform transform,
+			final double x,
+			final double y,
+			final long first,
+			final long step,
+			final double[] camera,
+			final double[] p0,
+			final double[] dp )
+	{
+		camera[ 0 ] = x;
+		camera[ 1 ] = y;
+		camera[ 2 ] = first;
+		transform.apply( camera, p0 );
+		camera[ 2 ] = first + step;
+		transform.apply( camera, dp );
+		dp[ 0 ] -= p0[ 0 ];
+		dp[ 1 ] -= p0[ 1 ];
+		dp[ 2 ] -= p0[ 2 ];
+	}
+}
@@ -0,0 +1,275 @@
+/*
+ * #%L
+ * ImgLib2: a general-purpose, multidimensional image processing library.
+ * %%
+ * Copyright (C) 2009 - 2016 Tobias Pietzsch, Stephan Preibisch, Stephan Saalfeld,
+ * John Bogovic, Albert Cardona, Barry DeZonia, Christian Dietz, Jan Funke,
+ * Aivar Grislis, Jonathan Hale, Grant Harris, Stefan Helfrich, Mark Hiner,
+ * Martin Horn, Steffen Jaensch, Lee Kamentsky, Larry Lindsey, Melissa Linkert,
+ * Mark Longair, Brian Northan, Nick Perry, Curtis Rueden, Johannes Schindelin,
+ * Jean-Yves Tinevez and Michael Zinsmaier.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package render.volume;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.InvertibleRealTransformSequence;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.NativeARGBDoubleType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Renders one turntable frame of a synthetic volume both through the
+ * generic path of {@link VolumeRenderer}, a transformed n-linear
+ * interpolant with {@link SkippingAlphaIntensityLayers} or
+ * {@link SkippingARGBDoubleLayers}, and with {@link PrimitiveRayCaster},
+ * for an {@link ArrayImg} and a {@link net.imglib2.img.cell.CellImg}.
+ * Reports the best of a few single threaded renders for each and the
+ * maximum absolute difference of the two images.
+ * 
+ * Usage: RayCasterBenchmark [volume size] [frame]
+ * 
+ * @author Stephan Saalfeld
+ */
+public class RayCasterBenchmark
+{
+	final static double scale = 1.0 / 4095.0;
+	final static double offset = 0;
+	final static double epsilon = 1.0 / 512.0;
+	final static int brickSize = 16;
+	final static int cellSize = 64;
+	final static int numSpheres = 16;
+	final static int iterations = 3;
+	
+	static protected < T extends NativeType< T > > Img< T > create( final T type, final long[] dimensions, final boolean cells )
+	{
+		if ( cells )
+			return new CellImgFactory<>( type, cellSize ).create( dimensions );
+		else
+			return new ArrayImgFactory<>( type ).create( dimensions );
+	}
+	
+	/**
+	 * Random spheres that fall off from 4095 in the center to 0 at their
+	 * radius, in an otherwise empty volume such that there are bricks to
+	 * skip.
+	 */
+	static protected void fill( final Img< FloatType > img, final long seed )
+	{
+		final Random rnd = new Random( seed );
+		final double[][] centers = new double[ numSpheres ][ 3 ];
+		final double[] radii = new double[ numSpheres ];
+		for ( int i = 0; i < numSpheres; ++i )
+		{
+			for ( int d = 0; d < 3; ++d )
+				centers[ i ][ d ] = rnd.nextDouble() * img.dimension( d );
+			radii[ i ] = ( 0.05 + 0.1 * rnd.nextDouble() ) * img.dimension( 0 );
+		}
+		final Cursor< FloatType > cursor = img.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			final FloatType t = cursor.next();
+			double value = 0;
+			for ( int i = 0; i < numSpheres; ++i )
+			{
+				double r2 = 0;
+				for ( int d = 0; d < 3; ++d )
+				{
+					final double x = cursor.getDoublePosition( d ) - centers[ i ][ d ];
+					r2 += x * x;
+				}
+				final double r = Math.sqrt( r2 ) / radii[ i ];
+				if ( r < 1 )
+					value = Math.max( value, 4095 * ( 1 - r ) );
+			}
+			t.setReal( value );
+		}
+	}
+	
+	/**
+	 * @return the best time in ms of {@link #iterations} renders, each
+	 * 		after clear
+	 */
+	static protected double time( final Runnable render, final Runnable clear )
+	{
+		double best = Double.MAX_VALUE;
+		for ( int i = 0; i < iterations; ++i )
+		{
+			clear.run();
+			final long t = System.nanoTime();
+			render.run();
+			best = Math.min( best, ( System.nanoTime() - t ) / 1e6 );
+		}
+		return best;
+	}
+	
+	static protected void print( final String name, final double generic, final double primitive, final double difference )
+	{
+		System.out.println(
+				String.format(
+						"%s: generic %.1f ms, primitive %.1f ms (%.2fx), max abs difference %g",
+						name, generic, primitive, generic / primitive, difference ) );
+	}
+	
+	static protected void benchmarkAlphaIntensity( final Img< FloatType > img, final int frame, final String name )
+	{
+		final AffineTransform3D affine = VolumeRenderer.turntable( img, frame );
+		final InvertibleRealTransformSequence transformSequence = VolumeRenderer.camera( img, affine );
+		final FinalRealInterval bounds = affine.estimateBounds( img );
+		final long minZ = ( long )Math.floor( bounds.realMin( 2 ) );
+		final long maxZ = ( long )Math.ceil( bounds.realMax( 2 ) );
+		
+		final MinMaxBrickPyramid pyramid = new MinMaxBrickPyramid( img, brickSize );
+		SkippingAlphaIntensityLayers.classify( pyramid, scale, offset );
+		
+		final RealRandomAccessible< FloatType > interpolant = Views.interpolate( Views.extendZero( img ), new NLinearInterpolatorFactory< FloatType >() );
+		final RandomAccessible< FloatType > rotated = RealViews.transform( interpolant, transformSequence );
+		final SkippingAlphaIntensityLayers< FloatType > accumulator = new SkippingAlphaIntensityLayers<>( scale, offset, epsilon, pyramid, transformSequence.inverse() );
+		
+		final PrimitiveRayCaster caster = new PrimitiveRayCaster( PrimitiveRayCaster.floats( img ) );
+		caster.setEpsilon( epsilon );
+		caster.setPyramid( pyramid );
+		
+		/* the canvas holds the background of each ray */
+		final ArrayImg< FloatType, FloatArray > reference = ArrayImgs.floats( img.dimension( 0 ), img.dimension( 1 ) );
+		final ArrayImg< FloatType, FloatArray > canvas = ArrayImgs.floats( img.dimension( 0 ), img.dimension( 1 ) );
+		final float[] referencePixels = reference.update( null ).getCurrentStorageArray();
+		final float[] canvasPixels = canvas.update( null ).getCurrentStorageArray();
+		
+		final double generic = time(
+				() -> VolumeRenderer.render( rotated, reference, minZ, maxZ, accumulator ),
+				() -> Arrays.fill( referencePixels, 0 ) );
+		final double primitive = time(
+				() -> caster.renderAlphaIntensity( canvas, transformSequence.inverse(), minZ, maxZ, VolumeRenderer.stepSize, scale, offset ),
+				() -> Arrays.fill( canvasPixels, 0 ) );
+		
+		double difference = 0;
+		for ( int i = 0; i < canvasPixels.length; ++i )
+			difference = Math.max( difference, Math.abs( canvasPixels[ i ] - referencePixels[ i ] ) );
+		print( name + " alpha intensity", generic, primitive, difference );
+	}
+	
+	static protected void benchmarkARGB( final Img< NativeARGBDoubleType > img, final int frame, final String name )
+	{
+		final AffineTransform3D affine = VolumeRenderer.turntable( img, frame );
+		final InvertibleRealTransformSequence transformSequence = VolumeRenderer.camera( img, affine );
+		final FinalRealInterval bounds = affine.estimateBounds( img );
+		final long minZ = ( long )Math.floor( bounds.realMin( 2 ) );
+		final long maxZ = ( long )Math.ceil( bounds.realMax( 2 ) );
+		
+		final MinMaxBrickPyramid pyramid = new MinMaxBrickPyramid(
+				Converters.convert( ( RandomAccessibleInterval< NativeARGBDoubleType > )img, ( in, out ) -> out.setReal( in.getA() ), new DoubleType() ),
+				brickSize );
+		pyramid.setThreshold( 0 );
+		
+		final RealRandomAccessible< NativeARGBDoubleType > interpolant = Views.interpolate( Views.extendZero( img ), new NLinearInterpolatorFactory< NativeARGBDoubleType >() );
+		final RandomAccessible< NativeARGBDoubleType > rotated = RealViews.transform( interpolant, transformSequence );
+		final SkippingARGBDoubleLayers< NativeARGBDoubleType > accumulator = new SkippingARGBDoubleLayers<>( epsilon, pyramid, transformSequence.inverse() );
+		
+		final PrimitiveRayCaster caster = new PrimitiveRayCaster( PrimitiveRayCaster.argbDoubles( img ) );
+		caster.setEpsilon( epsilon );
+		caster.setPyramid( pyramid );
+		
+		final ArrayImg< ARGBType, IntArray > reference = ArrayImgs.argbs( img.dimension( 0 ), img.dimension( 1 ) );
+		final ArrayImg< ARGBType, IntArray > canvas = ArrayImgs.argbs( img.dimension( 0 ), img.dimension( 1 ) );
+		final int[] referencePixels = reference.update( null ).getCurrentStorageArray();
+		final int[] canvasPixels = canvas.update( null ).getCurrentStorageArray();
+		
+		final double generic = time(
+				() -> VolumeRenderer.renderARGBDouble( rotated, reference, minZ, maxZ, accumulator ),
+				() -> {} );
+		final double primitive = time(
+				() -> caster.renderARGB( canvas, transformSequence.inverse(), minZ, maxZ, VolumeRenderer.stepSize ),
+				() -> {} );
+		
+		int difference = 0;
+		for ( int i = 0; i < canvasPixels.length; ++i )
+			for ( int shift = 0; shift < 32; shift += 8 )
+				difference = Math.max( difference, Math.abs( ( ( canvasPixels[ i ] >> shift ) & 0xff ) - ( ( referencePixels[ i ] >> shift ) & 0xff ) ) );
+		print( name + " ARGB", generic, primitive, difference );
+	}
+	
+	final static public void main( final String[] args )
+	{
+		final long size = args.length > 0 ? Long.parseLong( args[ 0 ] ) : 192;
+		final int frame = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 45;
+		final long[] dimensions = new long[]{ size, size, size / 2 };
+		
+		for ( final boolean cells : new boolean[]{ false, true } )
+		{
+			final String name = cells ? "CellImg" : "ArrayImg";
+			
+			final Img< FloatType > img = create( new FloatType(), dimensions, cells );
+			fill( img, 0 );
+			benchmarkAlphaIntensity( img, frame, name );
+			
+			final Img< NativeARGBDoubleType > argbImg = create( new NativeARGBDoubleType(), dimensions, cells );
+			final Cursor< FloatType > source = img.cursor();
+			final Cursor< NativeARGBDoubleType > target = argbImg.cursor();
+			while ( source.hasNext() )
+			{
+				final double v = source.next().getRealDouble() * scale;
+				target.next().set( 0.5 * v, v, 0.5 * v, 0.25 * v );
+			}
+			benchmarkARGB( argbImg, frame, name );
+		}
+	}
+}
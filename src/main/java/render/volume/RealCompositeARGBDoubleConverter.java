@@ -76,6 +76,22 @@ public class RealCompositeARGBDoubleConverter< T extends RealType< T > > impleme
 		argbs[ i ].set( argb );
 	}
 	
+	/**
+	 * @return per channel weights w such that alpha is 0 where the sum of
+	 * 		w[ i ] times channel i is 0, for non-negative channels and colors,
+	 * 		see {@link MinMaxBrickPyramid#setWeights(double[], double)}
+	 */
+	public double[] alphaWeights()
+	{
+		final double[] weights = new double[ argbs.length ];
+		for ( int i = 0; i < argbs.length; ++i )
+		{
+			final ARGBDoubleType c = argbs[ i ];
+			weights[ i ] = c.getA() * Math.max( c.getR(), Math.max( c.getG(), c.getB() ) );
+		}
+		return weights;
+	}
+	
 	@Override
 	public void convert( final RealComposite< T > input, final ARGBDoubleType output )
 	{
@@ -0,0 +1,151 @@
+/*
+ * #%L
+ * ImgLib2: a general-purpose, multidimensional image processing library.
+ * %%
+ * Copyright (C) 2009 - 2016 Tobias Pietzsch, Stephan Preibisch, Stephan Saalfeld,
+ * John Bogovic, Albert Cardona, Barry DeZonia, Christian Dietz, Jan Funke,
+ * Aivar Grislis, Jonathan Hale, Grant Harris, Stefan Helfrich, Mark Hiner,
+ * Martin Horn, Steffen Jaensch, Lee Kamentsky, Larry Lindsey, Melissa Linkert,
+ * Mark Longair, Brian Northan, Nick Perry, Curtis Rueden, Johannes Schindelin,
+ * Jean-Yves Tinevez and Michael Zinsmaier.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package render.volume;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.realtransform.RealTransform;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * {@link FrontToBackAlphaIntensityLayers} that jumps over bricks of a
+ * {@link MinMaxBrickPyramid} of the volume whose maximum maps to alpha 0.
+ * The pyramid must be classified for scale and offset with
+ * {@link #classify(MinMaxBrickPyramid, double, double)} before, once for
+ * all layers that render with the same scale and offset.  The pyramid may
+ * be shared by concurrent frames, so it is not reclassified here.
+ *
+ * @author Stephan Saalfeld
+ */
+public class SkippingAlphaIntensityLayers< T extends RealType< T > > extends FrontToBackAlphaIntensityLayers< T >
+{
+	final protected BrickSkipper skipper;
+	
+	/**
+	 * @param pyramid min/max pyramid of the volume, classified with
+	 * 		{@link #classify(MinMaxBrickPyramid, double, double)}
+	 * @param cameraToVolume transform from the rendered to the volume
+	 * 		coordinates, must be linear along rays
+	 */
+	public SkippingAlphaIntensityLayers(
+			final double scale,
+			final double offset,
+			final double epsilon,
+			final MinMaxBrickPyramid pyramid,
+			final RealTransform cameraToVolume )
+	{
+		super( scale, offset, epsilon );
+		if ( !pyramid.isThreshold( threshold( scale, offset ) ) )
+			throw new IllegalArgumentException( "pyramid is not classified for scale " + scale + " and offset " + offset );
+		skipper = new BrickSkipper( pyramid, cameraToVolume );
+	}
+	
+	public SkippingAlphaIntensityLayers(
+			final double scale,
+			final double offset,
+			final MinMaxBrickPyramid pyramid,
+			final RealTransform cameraToVolume )
+	{
+		this( scale, offset, 1.0 / 512.0, pyramid, cameraToVolume );
+	}
+	
+	/**
+	 * @return the threshold of channel 0 below which scale and offset map
+	 * 		to alpha 0, -offset for positive scale, none otherwise
+	 */
+	static public double threshold( final double scale, final double offset )
+	{
+		return scale > 0 ? -offset : Double.NEGATIVE_INFINITY;
+	}
+	
+	/**
+	 * Classify pyramid for scale and offset, which is incremental if only
+	 * the offset changed since the last classification.  Call this before
+	 * rendering, not while other frames use the pyramid.
+	 */
+	static public void classify( final MinMaxBrickPyramid pyramid, final double scale, final double offset )
+	{
+		pyramid.setThreshold( threshold( scale, offset ) );
+	}
+	
+	@Override
+	public void accumulateRow(
+			final T accumulator,
+			final RandomAccess< T > access,
+			final long min,
+			final long max,
+			final long step,
+			final int d )
+	{
+		final long first = FrontToBackRowAccumulator.first( min, max, step );
+		final long n = ( max - first ) / step + 1;
+		final BrickSkipper.Ray ray = skipper.ray( access, first, step, d );
+		
+		double a = 0;
+		double transmittance = 1;
+		for ( long k = 0; k < n; )
+		{
+			final long skip = skipper.emptySteps( ray, k );
+			if ( skip > 0 )
+			{
+				k = skip < n - k ? k + skip : n;
+				continue;
+			}
+			access.setPosition( first + k * step, d );
+			final double b = access.get().getRealDouble();
+			final double alpha = alpha( b );
+			a += transmittance * alpha * b;
+			transmittance *= 1.0 - alpha;
+			if ( transmittance < epsilon )
+				break;
+			++k;
+		}
+		accumulator.setReal( a + transmittance * accumulator.getRealDouble() );
+	}
+}
@@ -49,6 +49,12 @@
  */
 package render.volume;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
 import ij.IJ;
 import ij.ImageJ;
 
@@ -57,7 +63,9 @@ import io.scif.img.ImgIOException;
 
 import net.imagej.ImgPlus;
 import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
 import net.imglib2.FinalRealInterval;
+import net.imglib2.Interval;
 import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
@@ -69,14 +77,11 @@ import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.cell.CellImgFactory;
 import net.imglib2.img.display.imagej.ImageJFunctions;
-import net.imglib2.img.imageplus.ImagePlusImg;
-import net.imglib2.img.imageplus.ImagePlusImgs;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.InvertibleRealTransformSequence;
 import net.imglib2.realtransform.Perspective3D;
 import net.imglib2.realtransform.RealViews;
-import net.imglib2.realtransform.Scale;
 import net.imglib2.realtransform.Scale3D;
 import net.imglib2.realtransform.Translation3D;
 import net.imglib2.type.numeric.ARGBDoubleType;
@@ -85,8 +90,8 @@ import net.imglib2.type.numeric.AbstractARGBDoubleType;
 import net.imglib2.type.numeric.NativeARGBDoubleType;
 import net.imglib2.type.numeric.NumericType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.view.ExtendedRandomAccessibleInterval;
 import net.imglib2.view.Views;
 import net.imglib2.view.composite.CompositeIntervalView;
 import net.imglib2.view.composite.RealComposite;
@@ -104,6 +109,9 @@ public class VolumeRenderer
 	final static int numFrames = 360;
 	final static int stepSize = 1;
 	
+	/* rows per parallel task, small enough for work stealing to balance rays of different length */
+	final static int bandHeight = 8;
+	
 	static protected < T extends NumericType< ? > > void render(
 			final RandomAccessible< T > volume,
 			final RandomAccessibleInterval< T > canvas,
@@ -115,7 +123,7 @@ public class VolumeRenderer
 		final RandomAccess< T > poxel = volume.randomAccess();
 		
 		pixel.setPosition( canvas.min( 0 ), 0 );
-		pixel.setPosition( canvas.min( 1 ), 0 );
+		pixel.setPosition( canvas.min( 1 ), 1 );
 
 		poxel.setPosition( pixel.getLongPosition( 0 ), 0 );
 		poxel.setPosition( pixel.getLongPosition( 1 ), 1 );
@@ -151,7 +159,7 @@ public class VolumeRenderer
 		final T accumulate = volume.randomAccess().get().createVariable();
 		
 		pixel.setPosition( canvas.min( 0 ), 0 );
-		pixel.setPosition( canvas.min( 1 ), 0 );
+		pixel.setPosition( canvas.min( 1 ), 1 );
 
 		poxel.setPosition( pixel.getLongPosition( 0 ), 0 );
 		poxel.setPosition( pixel.getLongPosition( 1 ), 1 );
@@ -177,12 +185,136 @@ public class VolumeRenderer
 		}
 	}
 	
+	/**
+	 * Splits a range of canvas rows in halves until bands are at most
+	 * {@link #bandHeight} rows high and renders each band with its own
+	 * {@link RandomAccess RandomAccesses} and accumulator variable.
+	 */
+	static protected class RenderBands extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		final protected Interval canvas;
+		final protected long minY, maxY;
+		final protected Consumer< Interval > renderBand;
+		
+		public RenderBands( final Interval canvas, final long minY, final long maxY, final Consumer< Interval > renderBand )
+		{
+			this.canvas = canvas;
+			this.minY = minY;
+			this.maxY = maxY;
+			this.renderBand = renderBand;
+		}
+		
+		@Override
+		protected void compute()
+		{
+			if ( maxY - minY < bandHeight )
+				renderBand.accept( new FinalInterval(
+						new long[]{ canvas.min( 0 ), minY },
+						new long[]{ canvas.max( 0 ), maxY } ) );
+			else
+			{
+				final long center = ( minY + maxY ) / 2;
+				invokeAll(
+						new RenderBands( canvas, minY, center, renderBand ),
+						new RenderBands( canvas, center + 1, maxY, renderBand ) );
+			}
+		}
+	}
+	
+	/**
+	 * Render canvas in row bands on pool.  Rays are independent, so the
+	 * result is identical to {@link #render(RandomAccessible, RandomAccessibleInterval, long, long, RowAccumulator)}.
+	 * accumulator must be stateless, it is shared by all workers.
+	 */
+	static protected < T extends NumericType< ? > > void render(
+			final RandomAccessible< T > volume,
+			final RandomAccessibleInterval< T > canvas,
+			final long minZ,
+			final long maxZ,
+			final RowAccumulator< T > accumulator,
+			final ForkJoinPool pool )
+	{
+		pool.invoke( new RenderBands(
+				canvas,
+				canvas.min( 1 ),
+				canvas.max( 1 ),
+				band -> render( volume, Views.interval( canvas, band ), minZ, maxZ, accumulator ) ) );
+	}
+	
+	/**
+	 * Render canvas in row bands on pool, see
+	 * {@link #render(RandomAccessible, RandomAccessibleInterval, long, long, RowAccumulator, ForkJoinPool)}.
+	 */
+	static protected < T extends AbstractARGBDoubleType< T > > void renderARGBDouble(
+			final RandomAccessible< T > volume,
+			final RandomAccessibleInterval< ARGBType > canvas,
+			final long minZ,
+			final long maxZ,
+			final RowAccumulator< T > accumulator,
+			final ForkJoinPool pool )
+	{
+		pool.invoke( new RenderBands(
+				canvas,
+				canvas.min( 1 ),
+				canvas.max( 1 ),
+				band -> renderARGBDouble( volume, Views.interval( canvas, band ), minZ, maxZ, accumulator ) ) );
+	}
+	
 	final static double accelerate( final double x )
 	{
 		return 0.5 - 0.5 * Math.cos( Math.PI * x );
 	}
 	
-	public static void test1() throws ImgIOException
+	/**
+	 * Rotation of turntable frame i about the center of volume, moved in
+	 * front of the camera.
+	 */
+	static protected AffineTransform3D turntable( final Interval volume, final int i )
+	{
+		final double j = ( double )i / numFrames;
+		//final double k = Math.max( 0, Math.min( 1, j * 1.5 - 0.25 ) );
+		final double l = accelerate( j );
+		final double f = volume.dimension( 1 );
+		
+		final AffineTransform3D affine = new AffineTransform3D();
+		affine.set(
+				1, 0, 0, -volume.dimension( 0 ) / 2.0 - volume.min( 0 ),
+				0, 1, 0, -volume.dimension( 1 ) / 2.0 - volume.min( 1 ),
+				0, 0, 1, -volume.dimension( 2 ) / 2.0 - volume.min( 2 ) );
+		affine.rotate( 0, -l * Math.PI * 2 * 2 );
+		affine.rotate( 1, j * Math.PI * 2 );
+		affine.translate( 0, 0, volume.dimension( 2 ) / 2.0 + f );
+		return affine;
+	}
+	
+	/**
+	 * Rotation followed by a perspective camera with focal length
+	 * volume.dimension( 1 ), centered on volume.  Each frame needs its own
+	 * because frames are rendered concurrently.
+	 */
+	static protected InvertibleRealTransformSequence camera( final Interval volume, final AffineTransform3D rotation )
+	{
+		final double f = volume.dimension( 1 );
+		
+		final InvertibleRealTransformSequence transformSequence = new InvertibleRealTransformSequence();
+		
+		/* rotation */
+		transformSequence.add( rotation );
+		
+		/* camera */
+		transformSequence.add( Perspective3D.getInstance() );
+		transformSequence.add( new Scale3D( f, f, 1 ) );
+		transformSequence.add( new Translation3D(
+				volume.dimension( 0 ) / 2.0 + volume.min( 0 ),
+				volume.dimension( 1 ) / 2.0 + volume.min( 1 ),
+				0 ) );
+		
+		return transformSequence;
+	}
+	
+	public static void test1() throws ImgIOException, IOException, InterruptedException
 	{
 		new ImageJ();
 		final String filename = "./l1-cns.tif";
@@ -198,86 +330,38 @@ public class VolumeRenderer
 		
 		ImageJFunctions.show( img );
 		
-		final ImagePlusImg< FloatType, ? > movie = ImagePlusImgs.floats( img.dimension( 0 ), img.dimension( 1 ), numFrames );
-		ImageJFunctions.show( movie );
-		
-		final AffineTransform3D centerShift = new AffineTransform3D();
-		centerShift.set(
-				1, 0, 0, -img.dimension( 0 ) / 2.0 - img.min( 0 ),
-				0, 1, 0, -img.dimension( 1 ) / 2.0 - img.min( 1 ),
-				0, 0, 1, -img.dimension( 2 ) / 2.0 - img.min( 2 ) );
-		
-		final AffineTransform3D centerUnshiftXY = centerShift.inverse();
-		centerUnshiftXY.set( 0, 2, 3 );
-		
-		final double f = img.dimension( 1 );
-		
-		final AffineTransform3D zShift = new AffineTransform3D();
-		zShift.set(
-				1, 0, 0, 0,
-				0, 1, 0, 0,
-				0, 0, 1, img.dimension( 2 ) / 2.0 + f );
-		
-		final AffineTransform3D rotation = new AffineTransform3D();
-		final AffineTransform3D affine = new AffineTransform3D();
-		
-		final Perspective3D perspective = Perspective3D.getInstance();
-		final Scale scale = new Scale( f, f, 1 );
-		
-		final InvertibleRealTransformSequence transformSequence = new InvertibleRealTransformSequence();
-		
-		/* rotation */
-		transformSequence.add( affine );
-		
-		/* camera */
-		transformSequence.add( perspective );
-		transformSequence.add( scale );
-		transformSequence.add( centerUnshiftXY );
-		
-		final ExtendedRandomAccessibleInterval< FloatType, ImgPlus< FloatType > > extendedImg = Views.extendValue( img, img.firstElement().createVariable() );
-		final RealRandomAccessible< FloatType > interpolant = Views.interpolate( extendedImg, new NLinearInterpolatorFactory< FloatType >() );
-//		final RealRandomAccessible< FloatType > interpolant = Views.interpolate( extendedImg, new NearestNeighborInterpolatorFactory< FloatType >() );
-		final RandomAccessible< FloatType > rotated = RealViews.transform( interpolant, transformSequence );
-		
-		final AlphaIntensityLayers< FloatType > accumulator = new AlphaIntensityLayers<>( 1.0 / 4095.0, 0 );
-//		final AlphaIntensityLayers< FloatType > accumulator = new AlphaIntensityLayers<>( 1.0 / 5000.0, -500 );
-//		final AlphaIntensityLayers< FloatType > accumulator = new AlphaIntensityLayers<>( 1.0 / 0.2, -0.01 );
-		
-		for ( int i = 0; i < numFrames; ++i )
-		{
-			final double j = ( double )i / numFrames;
-			//final double k = Math.max( 0, Math.min( 1, j * 1.5 - 0.25 ) );
-			final double l = accelerate( j );
-			
-			
-			affine.set(
-					1, 0, 0, 0,
-					0, 1, 0, 0,
-					0, 0, 1, 0 );
-			
-			rotation.set( affine );
-			
-			rotation.rotate( 0, -l * Math.PI * 2 * 2 );
-			rotation.rotate( 1, j * Math.PI * 2 );
-			
-			affine.preConcatenate( centerShift );
-			affine.preConcatenate( rotation );
-			affine.preConcatenate( zShift );
-		
-			final FinalRealInterval bounds = affine.estimateBounds( img );
-			final long minZ	= ( long )Math.floor( bounds.realMin( 2 ) );
-			final long maxZ	= ( long )Math.ceil( bounds.realMax( 2 ) );
-			
-			System.out.println( "minZ = " + minZ + "; maxZ = " + maxZ );
-			
-			//final ArrayImg< FloatType, ? > canvas = ArrayImgs.floats( img.dimension( 0 ), img.dimension( 1 ) );
-			final RandomAccessibleInterval< FloatType > canvas = Views.hyperSlice( movie, 2, i );
-		
-			render( rotated, canvas, minZ, maxZ, accumulator );
-		}
+		/* min/max bricks of the source for skipping voxels with alpha 0 */
+		final MinMaxBrickPyramid pyramid = new MinMaxBrickPyramid( img, 16 );
+		SkippingAlphaIntensityLayers.classify( pyramid, 1.0 / 4095.0, 0 );
+		
+		/* sample the ArrayImg directly instead of the transformed interpolant */
+		final PrimitiveRayCaster caster = new PrimitiveRayCaster( PrimitiveRayCaster.floats( img.getImg() ) );
+		caster.setEpsilon( 1.0 / 512.0 );
+		caster.setPyramid( pyramid );
+		
+		final MovieRenderer< FloatType > movie = MovieRenderer.floats(
+				( int )img.dimension( 0 ),
+				( int )img.dimension( 1 ),
+				numFrames,
+				( i, canvas ) -> {
+					final AffineTransform3D affine = turntable( img, i );
+					final InvertibleRealTransformSequence transformSequence = camera( img, affine );
+					
+					final FinalRealInterval bounds = affine.estimateBounds( img );
+					final long minZ	= ( long )Math.floor( bounds.realMin( 2 ) );
+					final long maxZ	= ( long )Math.ceil( bounds.realMax( 2 ) );
+					
+					caster.renderAlphaIntensity( canvas, transformSequence.inverse(), minZ, maxZ, stepSize, 1.0 / 4095.0, 0 );
+				} );
+		
+		IJ.log( "Rendering " + numFrames + " frames ..." );
+		t = System.currentTimeMillis();
+		movie.renderTiff( new File( filename + "-turntable.tif" ), "turntable" );
+		t = System.currentTimeMillis() - t;
+		IJ.log( "  took " +  t + "ms" );
 	}
 	
-	public static void test2() throws ImgIOException
+	public static void test2() throws ImgIOException, IOException, InterruptedException
 	{
 		new ImageJ();
 		
@@ -309,88 +393,34 @@ public class VolumeRenderer
 				new ARGBType() );
 		ImageJFunctions.show( argb );
 		
-		
-		final ImagePlusImg< ARGBType, ? > movie = ImagePlusImgs.argbs( xycz.dimension( 0 ), xycz.dimension( 1 ), numFrames );
-		ImageJFunctions.show( movie );
-				
-		final AffineTransform3D centerShift = new AffineTransform3D();
-		centerShift.set(
-				1, 0, 0, -xyzc.dimension( 0 ) / 2.0 - xyzc.min( 0 ),
-				0, 1, 0, -xyzc.dimension( 1 ) / 2.0 - xyzc.min( 1 ),
-				0, 0, 1, -xyzc.dimension( 2 ) / 2.0 - xyzc.min( 2 ) );
-		
-		final AffineTransform3D centerUnshiftXY = centerShift.inverse();
-		centerUnshiftXY.set( 0, 2, 3 );
-		
-		final double f = xyzc.dimension( 1 );
-		
-		final AffineTransform3D zShift = new AffineTransform3D();
-		zShift.set(
-				1, 0, 0, 0,
-				0, 1, 0, 0,
-				0, 0, 1, xyzc.dimension( 2 ) / 2.0 + f );
-		
-		final AffineTransform3D rotation = new AffineTransform3D();
-		final AffineTransform3D affine = new AffineTransform3D();
-		
-		final Perspective3D perspective = Perspective3D.getInstance();
-		final Scale scale = new Scale( f, f, 1 );
-		
-		final InvertibleRealTransformSequence transformSequence = new InvertibleRealTransformSequence();
-		
-		/* rotation */
-		transformSequence.add( affine );
-		
-		/* camera */
-		transformSequence.add( perspective );
-		transformSequence.add( scale );
-		transformSequence.add( centerUnshiftXY );
-		
 		final RealRandomAccessible< ARGBDoubleType > interpolant = Views.interpolate( argbComposite, new NLinearInterpolatorFactory< ARGBDoubleType >() );
 //		final RealRandomAccessible< ARGBDoubleType > interpolant = Views.interpolate( argbComposite, new NearestNeighborInterpolatorFactory< ARGBDoubleType >() );
-		final RandomAccessible< ARGBDoubleType > rotated = RealViews.transform( interpolant, transformSequence );
 
 //		final RealRandomAccessible< NativeARGBDoubleType > interpolant = Views.interpolate( Views.extendZero( argbCopy ), new NLinearInterpolatorFactory< NativeARGBDoubleType >() );
 //		final RealRandomAccessible< NativeARGBDoubleType > interpolant = Views.interpolate( Views.extendZero( argbCopy ), new NearestNeighborInterpolatorFactory< NativeARGBDoubleType >() );
-//		final RandomAccessible< NativeARGBDoubleType > rotated = RealViews.transform( interpolant, transformSequence );
 		
 //		final ARGBDoubleLayers< NativeARGBDoubleType > accumulator = new ARGBDoubleLayers<>();
 		final ARGBDoubleLayers< ARGBDoubleType > accumulator = new ARGBDoubleLayers<>();
 		
-		for ( int i = 44; i < numFrames; ++i )
-		{
-			final double j = ( double )i / numFrames;
-			//final double k = Math.max( 0, Math.min( 1, j * 1.5 - 0.25 ) );
-			final double l = accelerate( j );
-			
-			
-			affine.set(
-					1, 0, 0, 0,
-					0, 1, 0, 0,
-					0, 0, 1, 0 );
-			
-			rotation.set( affine );
-			
-			rotation.rotate( 0, -l * Math.PI * 2 * 2 );
-			rotation.rotate( 1, j * Math.PI * 2 );
-			
-			affine.preConcatenate( centerShift );
-			affine.preConcatenate( rotation );
-			affine.preConcatenate( zShift );
-		
-			final FinalRealInterval bounds = affine.estimateBounds( img );
-			final long minZ	= ( long )Math.floor( bounds.realMin( 2 ) );
-			final long maxZ	= ( long )Math.ceil( bounds.realMax( 2 ) );
-			
-			System.out.println( "minZ = " + minZ + "; maxZ = " + maxZ );
-			
-			final RandomAccessibleInterval< ARGBType > canvas = Views.hyperSlice( movie, 2, i );
-		
-			renderARGBDouble( rotated, canvas, minZ, maxZ, accumulator );
-		}
+		final MovieRenderer< ARGBType > movie = MovieRenderer.argbs(
+				( int )xycz.dimension( 0 ),
+				( int )xycz.dimension( 1 ),
+				numFrames,
+				( i, canvas ) -> {
+					final AffineTransform3D affine = turntable( img, i );
+					final RandomAccessible< ARGBDoubleType > rotated = RealViews.transform( interpolant, camera( img, affine ) );
+					
+					final FinalRealInterval bounds = affine.estimateBounds( img );
+					final long minZ	= ( long )Math.floor( bounds.realMin( 2 ) );
+					final long maxZ	= ( long )Math.ceil( bounds.realMax( 2 ) );
+					
+					renderARGBDouble( rotated, canvas, minZ, maxZ, accumulator );
+				} );
+		
+		movie.renderTiff( new File( filename + "-turntable.tif" ), "turntable" );
 	}
 	
-	public static void test3() throws ImgIOException
+	public static void test3() throws ImgIOException, IOException, InterruptedException
 	{
 		new ImageJ();
 		
@@ -435,88 +465,38 @@ public class VolumeRenderer
 				new ARGBType() );
 		ImageJFunctions.show( argb );
 		
-		
-		
-		
-		final ImagePlusImg< ARGBType, ? > movie = ImagePlusImgs.argbs( xycz.dimension( 0 ), xycz.dimension( 1 ), numFrames );
-		ImageJFunctions.show( movie );
-				
-		final Translation3D centerShift = new Translation3D(
-				-xyzc.dimension( 0 ) / 2.0 - xyzc.min( 0 ),
-				-xyzc.dimension( 1 ) / 2.0 - xyzc.min( 1 ),
-				-xyzc.dimension( 2 ) / 2.0 - xyzc.min( 2 ) );
-		
-		final Translation3D centerUnshiftXY = new Translation3D(
-				xyzc.dimension( 0 ) / 2.0 + xyzc.min( 0 ),
-				xyzc.dimension( 1 ) / 2.0 + xyzc.min( 1 ),
-				0 );
-		
-		final double f = xyzc.dimension( 1 );
-		
-		final Translation3D zShift = new Translation3D( 0, 0, xyzc.dimension( 2 ) / 2.0 + f );
-		
-		final AffineTransform3D rotation = new AffineTransform3D();
-		final AffineTransform3D affine = new AffineTransform3D();
-		
-		final Perspective3D perspective = Perspective3D.getInstance();
-		final Scale3D scale = new Scale3D( f, f, 1 );
-		
-		final InvertibleRealTransformSequence transformSequence = new InvertibleRealTransformSequence();
-		
-		/* rotation */
-		transformSequence.add( affine );
-		
-		/* camera */
-		transformSequence.add( perspective );
-		transformSequence.add( scale );
-		transformSequence.add( centerUnshiftXY );
-		
-//		final RealRandomAccessible< ARGBDoubleType > interpolant = Views.interpolate( argbComposite, new NLinearInterpolatorFactory< ARGBDoubleType >() );
-//		final RealRandomAccessible< ARGBDoubleType > interpolant = Views.interpolate( argbComposite, new NearestNeighborInterpolatorFactory< ARGBDoubleType >() );
-//		final RandomAccessible< ARGBDoubleType > rotated = RealViews.transform( interpolant, transformSequence );
-
-		final RealRandomAccessible< NativeARGBDoubleType > interpolant = Views.interpolate( Views.extendZero( argbCopy ), new NLinearInterpolatorFactory< NativeARGBDoubleType >() );
-//		final RealRandomAccessible< NativeARGBDoubleType > interpolant = Views.interpolate( Views.extendZero( argbCopy ), new NearestNeighborInterpolatorFactory< NativeARGBDoubleType >() );
-		final RandomAccessible< NativeARGBDoubleType > rotated = RealViews.transform( interpolant, transformSequence );
-		
-		final ARGBDoubleLayers< NativeARGBDoubleType > accumulator = new ARGBDoubleLayers<>();
-		
-		for ( int i = 0; i < numFrames; ++i )
-		{
-			final double j = ( double )i / numFrames;
-			//final double k = Math.max( 0, Math.min( 1, j * 1.5 - 0.25 ) );
-			final double l = accelerate( j );
-			
-			
-			affine.set(
-					1, 0, 0, 0,
-					0, 1, 0, 0,
-					0, 0, 1, 0 );
-			
-			rotation.set( affine );
-			
-			rotation.rotate( 0, -l * Math.PI * 2 * 2 );
-			rotation.rotate( 1, j * Math.PI * 2 );
-			
-			affine.preConcatenate( centerShift );
-			affine.preConcatenate( rotation );
-			affine.preConcatenate( zShift );
-		
-			final FinalRealInterval bounds = affine.estimateBounds( img );
-			final long minZ	= ( long )Math.floor( bounds.realMin( 2 ) );
-			final long maxZ	= ( long )Math.ceil( bounds.realMax( 2 ) );
-			
-			System.out.println( "minZ = " + minZ + "; maxZ = " + maxZ );
-			
-//			final ArrayImg< FloatType, ? > canvas = ArrayImgs.floats( img.dimension( 0 ), img.dimension( 1 ) );
-			final RandomAccessibleInterval< ARGBType > canvas = Views.hyperSlice( movie, 2, i );
-		
-//			renderARGBDouble( rotated, canvas, minZ, maxZ, accumulator );
-			renderARGBDouble( rotated, canvas, minZ, maxZ, accumulator );
-		}
+		/* min/max bricks of alpha for skipping transparent voxels */
+		final MinMaxBrickPyramid pyramid = new MinMaxBrickPyramid(
+				Converters.convert( ( RandomAccessibleInterval< NativeARGBDoubleType > )argbCopy, ( in, out ) -> out.setReal( in.getA() ), new DoubleType() ),
+				16 );
+		pyramid.setThreshold( 0 );
+		
+		/* sample the NativeARGBDoubleType storage directly instead of the transformed interpolant */
+		final PrimitiveRayCaster caster = new PrimitiveRayCaster( PrimitiveRayCaster.argbDoubles( argbCopy ) );
+		caster.setEpsilon( 1.0 / 512.0 );
+		caster.setPyramid( pyramid );
+		
+		final MovieRenderer< ARGBType > movie = MovieRenderer.argbs(
+				( int )xycz.dimension( 0 ),
+				( int )xycz.dimension( 1 ),
+				numFrames,
+				( i, canvas ) -> {
+					final AffineTransform3D affine = turntable( img, i );
+					final InvertibleRealTransformSequence transformSequence = camera( img, affine );
+					
+					final FinalRealInterval bounds = affine.estimateBounds( img );
+					final long minZ	= ( long )Math.floor( bounds.realMin( 2 ) );
+					final long maxZ	= ( long )Math.ceil( bounds.realMax( 2 ) );
+					
+					System.out.println( "frame " + i + ": minZ = " + minZ + "; maxZ = " + maxZ );
+					
+					caster.renderARGB( canvas, transformSequence.inverse(), minZ, maxZ, stepSize );
+				} );
+		
+		movie.renderTiff( new File( filename + "-turntable.tif" ), "turntable" );
 	}
 	
-	final static public void main( final String[] args ) throws ImgIOException
+	final static public void main( final String[] args ) throws ImgIOException, IOException, InterruptedException
 	{
 		test3();
 	}